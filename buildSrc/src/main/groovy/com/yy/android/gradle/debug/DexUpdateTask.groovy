@@ -31,6 +31,9 @@ import org.gradle.workers.WorkerExecutor
 import com.android.build.gradle.BaseExtension
 
 import javax.inject.Inject
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
 
 /**
  * The 'DexUpdateTask' workflow
@@ -44,6 +47,7 @@ import javax.inject.Inject
 
 class DexUpdateTask extends DefaultTask {
     private static final String classListShouldUpdateFileNameSuffix = "classes_list_should_update_"
+    private static final int MAIN_DEX_LIST_CACHE_SIZE = 16
 
     private final WorkerExecutor workerExecutor
 
@@ -62,6 +66,8 @@ class DexUpdateTask extends DefaultTask {
     BaseExtension baseExtension
     @Internal
     File dexInfoDir
+    @Internal
+    File mainDexListCacheDir
 
     @InputDirectory
     File dexDirToUpdate
@@ -228,10 +234,61 @@ class DexUpdateTask extends DefaultTask {
         if (mainDexClassesNoAaptRulesFile.exists()) {
             rules.add(mainDexClassesNoAaptRulesFile)
         }
+
+        // The main dex of the host apk, android.jar and the rules don't change between builds,
+        // so reuse the list computed for them instead of tracing android.jar again
+        File cachedMainDexClassesListFile = new File(mainDexListCacheDir, mainDexListCacheKey(dexFile, androidJarFile, rules) + ".txt")
+        if (cachedMainDexClassesListFile.exists()) {
+            println("Reuse main dex classes list " + cachedMainDexClassesListFile)
+            mainDexClassesListFile.bytes = cachedMainDexClassesListFile.bytes
+            // Mark as recently used for the eviction
+            cachedMainDexClassesListFile.setLastModified(System.currentTimeMillis())
+            return true
+        }
         GradleApiAdapter.generateMainDexList(dexFile, androidJarFile, rules, mainDexClassesListFile)
+        if (mainDexClassesListFile.exists()) {
+            mainDexListCacheDir.mkdirs()
+            // Builds computing the same key may publish at the same time, so each writes its own
+            // temp file and moves it into place atomically
+            File tmpFile = File.createTempFile(cachedMainDexClassesListFile.name, ".tmp", mainDexListCacheDir)
+            try {
+                tmpFile.bytes = mainDexClassesListFile.bytes
+                Files.move(tmpFile.toPath(), cachedMainDexClassesListFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+            } catch (IOException e) {
+                println("can't cache main dex classes list " + cachedMainDexClassesListFile + ": " + e)
+            } finally {
+                tmpFile.delete()
+            }
+            evictMainDexListCache()
+        }
         return true
     }
 
+    // Keep only the most recently used lists, a new one is added whenever the host apk changes
+    void evictMainDexListCache() {
+        File[] cached = mainDexListCacheDir.listFiles({ File f -> f.name.endsWith(".txt") } as FileFilter)
+        if (cached == null || cached.length <= MAIN_DEX_LIST_CACHE_SIZE) {
+            return
+        }
+        cached.sort { File f -> -f.lastModified() }.drop(MAIN_DEX_LIST_CACHE_SIZE).each { File f ->
+            f.delete()
+        }
+    }
+
+    static String mainDexListCacheKey(File dexFile, File androidJarFile, List<File> rules) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1")
+        dexFile.eachByte(64 * 1024) { byte[] buffer, int length ->
+            digest.update(buffer, 0, length)
+        }
+        // android.jar is large and only replaced when the platform is updated
+        digest.update("${androidJarFile.absolutePath}:${androidJarFile.length()}:${androidJarFile.lastModified()}".getBytes("UTF-8"))
+        rules.each { File rule ->
+            digest.update(rule.bytes)
+        }
+        return digest.digest().encodeHex().toString()
+    }
+
 
     void generateSecondlyDexToUpdate(def dexesToUpdate , DexMerger dexMerger) {
         FileTree dexes = project.fileTree(outputDir).include("*.dex")
@@ -333,6 +390,8 @@ class DexUpdateTask extends DefaultTask {
             this.dexInfoDir.mkdirs()
         }
         this.dexMergeDir = new File(project.buildDir, "debughelp/dexMerge")
+        // Outside the build directory, so the lists survive a clean build
+        this.mainDexListCacheDir = new File(project.gradle.gradleUserHomeDir, "caches/debughelp/mainDexListCache")
         this.baseExtension = project.android
         this.minApiLevel = minApiLevel
         this.messageReceiver = GradleApiAdapter.getMessageReceiver(applicationVariant, project)
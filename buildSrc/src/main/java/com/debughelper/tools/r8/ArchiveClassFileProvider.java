@@ -14,6 +14,7 @@ import com.debughelper.tools.r8.origin.ArchiveEntryOrigin;
 import com.debughelper.tools.r8.origin.Origin;
 import com.debughelper.tools.r8.origin.PathOrigin;
 import com.debughelper.tools.r8.utils.DescriptorUtils;
+import com.debughelper.tools.r8.utils.MappedZipArchive;
 import com.debughelper.tools.r8.utils.ZipUtils;
 import com.google.common.io.ByteStreams;
 import java.io.Closeable;
@@ -40,7 +41,9 @@ import java.util.zip.ZipFile;
 @Keep
 public class ArchiveClassFileProvider implements ClassFileResourceProvider, Closeable {
   private final Origin origin;
+  // Exactly one of zipFile and mappedArchive is set.
   private final ZipFile zipFile;
+  private final MappedZipArchive mappedArchive;
   private final Set<String> descriptors = new HashSet<>();
 
   /**
@@ -61,6 +64,17 @@ public class ArchiveClassFileProvider implements ClassFileResourceProvider, Clos
   public ArchiveClassFileProvider(Path archive, Predicate<String> include) throws IOException {
     assert isArchive(archive);
     origin = new PathOrigin(archive);
+    mappedArchive = MappedZipArchive.isEnabled() ? MappedZipArchive.open(archive) : null;
+    if (mappedArchive != null) {
+      zipFile = null;
+      for (MappedZipArchive.Entry entry : mappedArchive.getEntries()) {
+        String name = entry.getName();
+        if (ZipUtils.isClassFile(name) && include.test(name)) {
+          descriptors.add(DescriptorUtils.guessTypeDescriptor(name));
+        }
+      }
+      return;
+    }
     try {
       zipFile = new ZipFile(archive.toFile(), StandardCharsets.UTF_8);
     } catch (IOException e) {
@@ -90,6 +104,13 @@ public class ArchiveClassFileProvider implements ClassFileResourceProvider, Clos
     if (!descriptors.contains(descriptor)) {
       return null;
     }
+    if (mappedArchive != null) {
+      String name = descriptor.substring(1, descriptor.length() - 1) + CLASS_EXTENSION;
+      return mappedArchive
+          .getEntry(name)
+          .asProgramResource(
+              new ArchiveEntryOrigin(name, origin), Kind.CF, Collections.singleton(descriptor));
+    }
     ZipEntry zipEntry = getZipEntryFromDescriptor(descriptor);
     try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
       return ProgramResource.fromBytes(
@@ -110,7 +131,9 @@ public class ArchiveClassFileProvider implements ClassFileResourceProvider, Clos
 
   @Override
   public void close() throws IOException {
-    zipFile.close();
+    if (zipFile != null) {
+      zipFile.close();
+    }
   }
 
   private ZipEntry getZipEntryFromDescriptor(String descriptor) {
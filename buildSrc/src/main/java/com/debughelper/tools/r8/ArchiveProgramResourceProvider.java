@@ -13,6 +13,7 @@ import com.debughelper.tools.r8.origin.ArchiveEntryOrigin;
 import com.debughelper.tools.r8.origin.Origin;
 import com.debughelper.tools.r8.origin.PathOrigin;
 import com.debughelper.tools.r8.utils.DescriptorUtils;
+import com.debughelper.tools.r8.utils.MappedZipArchive;
 import com.debughelper.tools.r8.utils.ZipUtils;
 import com.google.common.io.ByteStreams;
 import java.io.IOException;
@@ -53,6 +54,8 @@ public class ArchiveProgramResourceProvider implements ProgramResourceProvider {
   private final Origin origin;
   private final ZipFileSupplier supplier;
   private final Predicate<String> include;
+  // Archive on disk that can be memory mapped instead of being read through the supplier.
+  private final Path archive;
 
   public static ArchiveProgramResourceProvider fromArchive(Path archive) {
     return fromArchive(archive, ArchiveProgramResourceProvider::includeClassFileOrDexEntries);
@@ -60,10 +63,11 @@ public class ArchiveProgramResourceProvider implements ProgramResourceProvider {
 
   public static ArchiveProgramResourceProvider fromArchive(
       Path archive, Predicate<String> include) {
-    return fromSupplier(
+    return new ArchiveProgramResourceProvider(
         new PathOrigin(archive),
         () -> new ZipFile(archive.toFile(), StandardCharsets.UTF_8),
-        include);
+        include,
+        archive);
   }
 
   public static ArchiveProgramResourceProvider fromSupplier(
@@ -74,20 +78,27 @@ public class ArchiveProgramResourceProvider implements ProgramResourceProvider {
 
   public static ArchiveProgramResourceProvider fromSupplier(
       Origin origin, ZipFileSupplier supplier, Predicate<String> include) {
-    return new ArchiveProgramResourceProvider(origin, supplier, include);
+    return new ArchiveProgramResourceProvider(origin, supplier, include, null);
   }
 
   private ArchiveProgramResourceProvider(
-      Origin origin, ZipFileSupplier supplier, Predicate<String> include) {
+      Origin origin, ZipFileSupplier supplier, Predicate<String> include, Path archive) {
     assert origin != null;
     assert supplier != null;
     assert include != null;
     this.origin = origin;
     this.supplier = supplier;
     this.include = include;
+    this.archive = archive;
   }
 
   private List<com.debughelper.tools.r8.ProgramResource> readArchive() throws IOException {
+    if (archive != null && MappedZipArchive.isEnabled()) {
+      List<com.debughelper.tools.r8.ProgramResource> resources = readMappedArchive();
+      if (resources != null) {
+        return resources;
+      }
+    }
     List<com.debughelper.tools.r8.ProgramResource> dexResources = new ArrayList<>();
     List<com.debughelper.tools.r8.ProgramResource> classResources = new ArrayList<>();
     try (ZipFile zipFile = supplier.open()) {
@@ -125,6 +136,44 @@ public class ArchiveProgramResourceProvider implements ProgramResourceProvider {
     return !dexResources.isEmpty() ? dexResources : classResources;
   }
 
+  /**
+   * Reads the archive through a memory mapping. The entry contents are only read when the
+   * resources are consumed. Returns null if the archive can't be mapped.
+   */
+  private List<com.debughelper.tools.r8.ProgramResource> readMappedArchive() throws IOException {
+    MappedZipArchive mappedArchive;
+    try {
+      mappedArchive = MappedZipArchive.open(archive);
+    } catch (ZipException e) {
+      throw new CompilationError("Zip error while reading archive" + e.getMessage(), e, origin);
+    }
+    if (mappedArchive == null) {
+      return null;
+    }
+    List<com.debughelper.tools.r8.ProgramResource> dexResources = new ArrayList<>();
+    List<com.debughelper.tools.r8.ProgramResource> classResources = new ArrayList<>();
+    for (MappedZipArchive.Entry entry : mappedArchive.getEntries()) {
+      String name = entry.getName();
+      if (!include.test(name)) {
+        continue;
+      }
+      Origin entryOrigin = new ArchiveEntryOrigin(name, origin);
+      if (ZipUtils.isDexFile(name)) {
+        dexResources.add(entry.asProgramResource(entryOrigin, Kind.DEX, null));
+      } else if (ZipUtils.isClassFile(name)) {
+        String descriptor = DescriptorUtils.guessTypeDescriptor(name);
+        classResources.add(
+            entry.asProgramResource(entryOrigin, Kind.CF, Collections.singleton(descriptor)));
+      }
+    }
+    if (!dexResources.isEmpty() && !classResources.isEmpty()) {
+      throw new CompilationError(
+          "Cannot create debughelper app from an archive containing both DEX and Java-bytecode content",
+          origin);
+    }
+    return !dexResources.isEmpty() ? dexResources : classResources;
+  }
+
   @Override
   public Collection<ProgramResource> getProgramResources() throws com.debughelper.tools.r8.ResourceException {
     try {
@@ -6,6 +6,7 @@ package com.debughelper.tools.r8;
 
 import com.debughelper.tools.r8.BaseCommand;
 import com.debughelper.tools.r8.utils.AndroidApp;
+import com.debughelper.tools.r8.utils.ExceptionUtils;
 import com.debughelper.tools.r8.utils.InternalOptions;
 import java.io.IOException;
 
@@ -25,6 +26,20 @@ public class CompatDxHelper {
     D8.runForTesting(app, options);
   }
 
+  /**
+   * Run D8 producing a dex file per class file, each with the marker, so the dex file of a class
+   * is the same as when compiling the class on its own.
+   */
+  public static void runDexFilePerClassFile(D8Command command, int numberOfThreads)
+      throws CompilationFailedException {
+    AndroidApp app = command.getInputApp();
+    InternalOptions options = command.getInternalOptions();
+    options.markerInDexFilePerClassFile = true;
+    options.numberOfThreads = numberOfThreads;
+    ExceptionUtils.withD8CompilationHandler(
+        command.getReporter(), () -> D8.runForTesting(app, options));
+  }
+
   public static void ignoreDexInArchive(BaseCommand.Builder builder) {
     builder.setIgnoreDexInArchive(true);
   }
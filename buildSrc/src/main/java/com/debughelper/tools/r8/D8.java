@@ -12,10 +12,12 @@ import com.debughelper.tools.r8.dex.Marker.Tool;
 import com.debughelper.tools.r8.graph.AppInfo;
 import com.debughelper.tools.r8.graph.DexApplication;
 import com.debughelper.tools.r8.ir.conversion.IRConverter;
+import com.debughelper.tools.r8.ir.desugar.DesugaredOutputCache;
 import com.debughelper.tools.r8.naming.NamingLens;
 import com.debughelper.tools.r8.origin.CommandLineOrigin;
 import com.debughelper.tools.r8.utils.AndroidApp;
 import com.debughelper.tools.r8.utils.CfgPrinter;
+import com.debughelper.tools.r8.utils.ExceptionDiagnostic;
 import com.debughelper.tools.r8.utils.ExceptionUtils;
 import com.debughelper.tools.r8.utils.InternalOptions;
 import com.debughelper.tools.r8.utils.ThreadUtils;
@@ -158,6 +160,11 @@ public final class D8 {
       options.enableClassInlining = false;
       options.outline.enabled = false;
 
+      DesugaredOutputCache cache =
+          DesugaredOutputCache.create(inputApp, options, getMarker(options));
+      if (cache != null) {
+        inputApp = cache.apply();
+      }
       DexApplication app = new ApplicationReader(inputApp, options, timing).read(executor);
       AppInfo appInfo = new AppInfo(app);
       app = optimize(app, appInfo, options, timing, executor);
@@ -178,6 +185,8 @@ public final class D8 {
               null)
           .write(executor);
       options.printWarnings();
+    } catch (ResourceException e) {
+      throw options.reporter.fatalError(new ExceptionDiagnostic(e, e.getOrigin()));
     } catch (ExecutionException e) {
       R8.unwrapExecutionException(e);
       throw new AssertionError(e); // unwrapping method should have thrown
@@ -201,6 +210,7 @@ public final class D8 {
 
     IRConverter converter = new IRConverter(appInfo, options, timing, printer);
     application = converter.convertToDex(application, executor);
+    converter.reportMethodTimes();
 
     if (options.printCfg) {
       if (options.printCfgFile == null || options.printCfgFile.isEmpty()) {
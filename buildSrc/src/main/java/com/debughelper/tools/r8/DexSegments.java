@@ -4,46 +4,89 @@
 package com.debughelper.tools.r8;
 
 import com.debughelper.tools.r8.BaseCommand;
-import com.debughelper.tools.r8.ProgramResource;
-import com.debughelper.tools.r8.ProgramResource.Kind;
-import com.debughelper.tools.r8.ResourceException;
 import com.debughelper.tools.r8.dex.DexParser;
 import com.debughelper.tools.r8.dex.DexSection;
+import com.debughelper.tools.r8.origin.ArchiveEntryOrigin;
 import com.debughelper.tools.r8.origin.CommandLineOrigin;
+import com.debughelper.tools.r8.origin.Origin;
+import com.debughelper.tools.r8.origin.PathOrigin;
 import com.debughelper.tools.r8.utils.AndroidApp;
+import com.debughelper.tools.r8.utils.FileUtils;
 import com.debughelper.tools.r8.utils.InternalOptions;
 import com.debughelper.tools.r8.utils.StringDiagnostic;
+import com.debughelper.tools.r8.utils.StringUtils;
+import com.debughelper.tools.r8.utils.ThreadUtils;
+import com.debughelper.tools.r8.utils.ZipUtils;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Closer;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class DexSegments {
+
+  private enum OutputFormat {
+    TEXT,
+    CSV,
+    JSON
+  }
+
   private static class Command extends com.debughelper.tools.r8.BaseCommand {
 
     public static class Builder
         extends BaseCommand.Builder<Command, Builder> {
 
+      private final List<Path> programFiles = new ArrayList<>();
+      private OutputFormat outputFormat = OutputFormat.TEXT;
+
       @Override
       Command.Builder self() {
         return this;
       }
 
+      @Override
+      public Command.Builder addProgramFiles(Collection<Path> files) {
+        programFiles.addAll(files);
+        return super.addProgramFiles(files);
+      }
+
+      Command.Builder setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+        return this;
+      }
+
       @Override
       protected Command makeCommand() {
         // If printing versions ignore everything else.
         if (isPrintHelp()) {
           return new Command(isPrintHelp());
         }
-        return new Command(getAppBuilder().build());
+        return new Command(
+            getAppBuilder().build(), ImmutableList.copyOf(programFiles), outputFormat);
       }
     }
 
     static final String USAGE_MESSAGE = String.join("\n", ImmutableList.of(
         "Usage: dexsegments [options] <input-files>",
-        " where <input-files> are dex files",
+        " where <input-files> are dex files or archives with dex files",
+        "  --csv                   # Output the sizes of each dex file in CSV format.",
+        "  --json                  # Output the sizes of each dex file in JSON format.",
         "  --version               # Print the version of r8.",
         "  --help                  # Print this message."));
 
@@ -64,6 +107,10 @@ public class DexSegments {
           continue;
         } else if (arg.equals("--help")) {
           builder.setPrintHelp(true);
+        } else if (arg.equals("--csv")) {
+          builder.setOutputFormat(OutputFormat.CSV);
+        } else if (arg.equals("--json")) {
+          builder.setOutputFormat(OutputFormat.JSON);
         } else {
           if (arg.startsWith("--")) {
             builder.getReporter().error(new StringDiagnostic("Unknown option: " + arg,
@@ -74,12 +121,19 @@ public class DexSegments {
       }
     }
 
-    private Command(AndroidApp inputApp) {
+    private final List<Path> programFiles;
+    private final OutputFormat outputFormat;
+
+    private Command(AndroidApp inputApp, List<Path> programFiles, OutputFormat outputFormat) {
       super(inputApp);
+      this.programFiles = programFiles;
+      this.outputFormat = outputFormat;
     }
 
     private Command(boolean printHelp) {
       super(printHelp, false);
+      this.programFiles = ImmutableList.of();
+      this.outputFormat = OutputFormat.TEXT;
     }
 
     @Override
@@ -88,29 +142,140 @@ public class DexSegments {
     }
   }
 
+  /** The byte sizes of the sections of a dex file, in the order of its map list. */
+  private static class DexSizes {
+    final String input;
+    final String dex;
+    final Map<String, Integer> sections = new LinkedHashMap<>();
+
+    DexSizes(String input, String dex, DexSection[] dexSections) {
+      this.input = input;
+      this.dex = dex;
+      for (DexSection dexSection : dexSections) {
+        sections.merge(dexSection.typeName(), dexSection.size(), Integer::sum);
+      }
+    }
+  }
+
   public static void main(String[] args)
-      throws IOException, CompilationFailedException, ResourceException {
+      throws IOException, CompilationFailedException, ExecutionException {
     Command.Builder builder = Command.parse(args);
     Command command = builder.build();
     if (command.isPrintHelp()) {
       System.out.println(Command.USAGE_MESSAGE);
       return;
     }
-    AndroidApp app = command.getInputApp();
-    Map<String, Integer> result = new HashMap<>();
+    ExecutorService executor = ThreadUtils.getExecutorService(ThreadUtils.NOT_SPECIFIED);
+    List<DexSizes> result;
+    try {
+      result = computeSizes(command.programFiles, executor);
+    } finally {
+      executor.shutdown();
+    }
+    switch (command.outputFormat) {
+      case CSV:
+        printCsv(result);
+        break;
+      case JSON:
+        printJson(result);
+        break;
+      default:
+        printText(result);
+        break;
+    }
+  }
+
+  /**
+   * Compute the section sizes of all dex files of the inputs in parallel. Only the header and the
+   * map list of each dex file are read. Dex files are mapped into memory, and dex files in archives
+   * are read without extracting the other entries.
+   */
+  private static List<DexSizes> computeSizes(List<Path> inputs, ExecutorService executor)
+      throws IOException, ExecutionException {
+    List<Future<DexSizes>> futures = new ArrayList<>();
     try (Closer closer = Closer.create()) {
-      for (ProgramResource resource : app.computeAllProgramResources()) {
-        if (resource.getKind() == Kind.DEX) {
-          for (DexSection dexSection :
-              DexParser.parseMapFrom(
-                  closer.register(resource.getByteStream()), resource.getOrigin())) {
-            int value = result.computeIfAbsent(dexSection.typeName(), (key) -> 0);
-            result.put(dexSection.typeName(), value + dexSection.size());
+      for (Path input : inputs) {
+        if (FileUtils.isDexFile(input)) {
+          futures.add(
+              executor.submit(
+                  () ->
+                      new DexSizes(
+                          input.toString(),
+                          input.getFileName().toString(),
+                          DexParser.parseMapFrom(input))));
+        } else if (FileUtils.isArchive(input)) {
+          // ZipFile supports reading entries from several threads.
+          ZipFile zipFile = closer.register(new ZipFile(input.toFile(), StandardCharsets.UTF_8));
+          Origin archiveOrigin = new PathOrigin(input);
+          Enumeration<? extends ZipEntry> entries = zipFile.entries();
+          while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory() || !ZipUtils.isDexFile(entry.getName())) {
+              continue;
+            }
+            futures.add(
+                executor.submit(
+                    () -> {
+                      try (InputStream stream = zipFile.getInputStream(entry)) {
+                        return new DexSizes(
+                            input.toString(),
+                            entry.getName(),
+                            DexParser.parseMapFrom(
+                                stream, new ArchiveEntryOrigin(entry.getName(), archiveOrigin)));
+                      }
+                    }));
           }
         }
       }
+      List<DexSizes> result = new ArrayList<>(futures.size());
+      ThreadUtils.awaitFutures(futures);
+      for (Future<DexSizes> future : futures) {
+        try {
+          result.add(future.get());
+        } catch (InterruptedException e) {
+          throw new RuntimeException("Interrupted while waiting for future.", e);
+        }
+      }
+      return result;
+    }
+  }
+
+  private static void printText(List<DexSizes> result) {
+    Map<String, Integer> total = new LinkedHashMap<>();
+    for (DexSizes dexSizes : result) {
+      dexSizes.sections.forEach((key, value) -> total.merge(key, value, Integer::sum));
     }
     System.out.println("Segments in dex application (name: size):");
-    result.forEach( (key, value) -> System.out.println(" - " + key + ": " + value));
+    total.forEach( (key, value) -> System.out.println(" - " + key + ": " + value));
+  }
+
+  private static void printCsv(List<DexSizes> result) {
+    System.out.println("input,dex,section,size");
+    for (DexSizes dexSizes : result) {
+      dexSizes.sections.forEach(
+          (key, value) ->
+              System.out.println(
+                  StringUtils.csvField(dexSizes.input)
+                      + ","
+                      + StringUtils.csvField(dexSizes.dex)
+                      + ","
+                      + StringUtils.csvField(key)
+                      + ","
+                      + value));
+    }
+  }
+
+  private static void printJson(List<DexSizes> result) {
+    JsonArray dexFiles = new JsonArray();
+    for (DexSizes dexSizes : result) {
+      JsonObject dexFile = new JsonObject();
+      dexFile.addProperty("input", dexSizes.input);
+      dexFile.addProperty("dex", dexSizes.dex);
+      JsonObject sections = new JsonObject();
+      dexSizes.sections.forEach(sections::addProperty);
+      dexFile.add("sections", sections);
+      dexFiles.add(dexFile);
+    }
+    System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(dexFiles));
   }
 }
@@ -13,13 +13,13 @@ import com.debughelper.tools.r8.dex.ApplicationWriter;
 import com.debughelper.tools.r8.dex.Marker;
 import com.debughelper.tools.r8.graph.AppInfo;
 import com.debughelper.tools.r8.graph.DexApplication;
-import com.debughelper.tools.r8.graph.DexApplication.Builder;
+import com.debughelper.tools.r8.graph.DexEncodedMethod;
 import com.debughelper.tools.r8.graph.DexProgramClass;
+import com.debughelper.tools.r8.graph.DexString;
 import com.debughelper.tools.r8.naming.ClassNameMapper;
 import com.debughelper.tools.r8.naming.NamingLens;
 import com.debughelper.tools.r8.utils.ExceptionUtils;
 import com.debughelper.tools.r8.utils.FeatureClassMapping;
-import com.debughelper.tools.r8.utils.FeatureClassMapping.FeatureMappingException;
 import com.debughelper.tools.r8.utils.InternalOptions;
 import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.debughelper.tools.r8.utils.Timing;
@@ -27,16 +27,21 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 @Keep
 public final class DexSplitterHelper {
 
+  // Number of classes assigned to features by one task.
+  private static final int CLASSES_PER_TASK = 1024;
+
   public static void run(
           com.debughelper.tools.r8.D8Command command, FeatureClassMapping featureClassMapping, String output, String proguardMap)
       throws CompilationFailedException {
@@ -76,65 +81,184 @@ public final class DexSplitterHelper {
       if (proguardMap != null) {
         mapper = ClassNameMapper.mapperFromFile(Paths.get(proguardMap));
       }
-      Map<String, Builder> applications = getDistribution(app, featureClassMapping, mapper);
-      for (Entry<String, Builder> entry : applications.entrySet()) {
-        DexApplication featureApp = entry.getValue().build();
-        // We use the same factory, reset sorting.
-        featureApp.dexItemFactory.resetSortedIndices();
-        assert !options.hasMethodsFilter();
-
-        // Run d8 optimize to ensure jumbo strings are handled.
-        AppInfo appInfo = new AppInfo(featureApp);
-        featureApp = com.debughelper.tools.r8.D8.optimize(featureApp, appInfo, options, timing, executor);
+      Map<String, FeatureSplit> splits =
+          getDistribution(app, featureClassMapping, mapper, options, executor);
+      // All features share the item factory. Prepare the writers of all of them before sorting the
+      // items once, so that the features can be written concurrently.
+      app.dexItemFactory.resetSortedIndices();
+      assert !options.hasMethodsFilter();
+      List<ApplicationWriter> writers = new ArrayList<>(splits.size());
+      List<DexIndexedConsumer> consumers = new ArrayList<>(splits.size());
+      for (Entry<String, FeatureSplit> entry : splits.entrySet()) {
+        FeatureSplit split = entry.getValue();
+        // Each feature is written with its own timing, as timings are not thread safe.
+        DexApplication.Builder<?> builder =
+            DexApplication.builder(app.dexItemFactory, new Timing("DexSplitter " + entry.getKey()));
+        split.classes.forEach(builder::addProgramClass);
+        DexApplication featureApp;
+        if (split.unchanged) {
+          // The code is passed through as is, only the jumbo string information is needed.
+          featureApp = builder.setHighestSortingString(split.highestSortingString).build();
+        } else {
+          // Run d8 optimize to ensure jumbo strings are handled.
+          featureApp = builder.build();
+          AppInfo appInfo = new AppInfo(featureApp);
+          featureApp = com.debughelper.tools.r8.D8.optimize(featureApp, appInfo, options, timing, executor);
+        }
         // We create a specific consumer for each split.
         Path outputDir = Paths.get(output).resolve(entry.getKey());
         if (!Files.exists(outputDir)) {
           Files.createDirectory(outputDir);
         }
         DexIndexedConsumer consumer = new DirectoryConsumer(outputDir);
+        ApplicationWriter writer =
+            new ApplicationWriter(
+                featureApp,
+                options,
+                markers,
+                null,
+                NamingLens.getIdentityLens(),
+                null,
+                null,
+                consumer);
+        writer.prepare();
+        writers.add(writer);
+        consumers.add(consumer);
+      }
+      app.dexItemFactory.sort(NamingLens.getIdentityLens());
 
-        try {
-          new ApplicationWriter(
-                  featureApp,
-                  options,
-                  markers,
-                  null,
-                  NamingLens.getIdentityLens(),
-                  null,
-                  null,
-                  consumer)
-              .write(executor);
-          options.printWarnings();
-        } finally {
-          consumer.finished(options.reporter);
-        }
+      List<Future<?>> futures = new ArrayList<>(writers.size());
+      for (int i = 0; i < writers.size(); i++) {
+        ApplicationWriter writer = writers.get(i);
+        DexIndexedConsumer consumer = consumers.get(i);
+        futures.add(
+            executor.submit(
+                () -> {
+                  try {
+                    writer.writeSorted(executor);
+                  } finally {
+                    consumer.finished(options.reporter);
+                  }
+                  return null;
+                }));
       }
+      ThreadUtils.awaitFutures(futures);
+      options.printWarnings();
     } catch (ExecutionException e) {
       R8.unwrapExecutionException(e);
       throw new AssertionError(e); // unwrapping method should have thrown
-    } catch (FeatureMappingException e) {
-      options.reporter.error(e.getMessage());
     } finally {
       options.signalFinishedToConsumers();
     }
   }
 
-  private static Map<String, Builder> getDistribution(
-      DexApplication app, FeatureClassMapping featureClassMapping, ClassNameMapper mapper)
-      throws FeatureMappingException {
-    Map<String, Builder> applications = new HashMap<>();
-    for (DexProgramClass clazz : app.classes()) {
-      String clazzName =
-          mapper != null ? mapper.deobfuscateClassName(clazz.toString()) : clazz.toString();
-      String feature = featureClassMapping.featureForClass(clazzName);
-      Builder featureApplication = applications.get(feature);
-      if (featureApplication == null) {
-        featureApplication = DexApplication.builder(app.dexItemFactory, app.timing);
-        applications.put(feature, featureApplication);
+  /** The classes of a feature, and whether they can be written without running D8 on them. */
+  private static class FeatureSplit {
+    final List<DexProgramClass> classes = new ArrayList<>();
+    boolean unchanged = true;
+    DexString highestSortingString = null;
+
+    void add(DexProgramClass clazz, boolean unchangedClass, DexString highestSortingString) {
+      classes.add(clazz);
+      unchanged &= unchangedClass;
+      if (highestSortingString != null
+          && (this.highestSortingString == null
+              || highestSortingString.slowCompareTo(this.highestSortingString) > 0)) {
+        this.highestSortingString = highestSortingString;
+      }
+    }
+  }
+
+  private static Map<String, FeatureSplit> getDistribution(
+      DexApplication app,
+      FeatureClassMapping featureClassMapping,
+      ClassNameMapper mapper,
+      InternalOptions options,
+      ExecutorService executor)
+      throws ExecutionException {
+    // Look up the features of the classes in parallel, then group the classes in their order.
+    List<DexProgramClass> classes = app.classes();
+    String[] features = new String[classes.size()];
+    boolean[] unchangedClasses = new boolean[classes.size()];
+    DexString[] highestSortingStrings = new DexString[classes.size()];
+    List<Future<?>> futures = new ArrayList<>();
+    for (int start = 0; start < classes.size(); start += CLASSES_PER_TASK) {
+      int chunkStart = start;
+      int chunkEnd = Math.min(start + CLASSES_PER_TASK, classes.size());
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                  DexProgramClass clazz = classes.get(i);
+                  String clazzName =
+                      mapper != null
+                          ? mapper.deobfuscateClassName(clazz.toString())
+                          : clazz.toString();
+                  features[i] = featureClassMapping.featureForClass(clazzName);
+                  unchangedClasses[i] = isUnchanged(clazz, options);
+                  if (unchangedClasses[i]) {
+                    highestSortingStrings[i] = getHighestSortingString(clazz);
+                    // Done by D8 for the classes it processes.
+                    clazz.annotations =
+                        clazz.annotations.getWithout(app.dexItemFactory.annotationSynthesizedClassMap);
+                  }
+                }
+              }));
+    }
+    ThreadUtils.awaitFutures(futures);
+    Map<String, FeatureSplit> splits = new HashMap<>();
+    for (int i = 0; i < classes.size(); i++) {
+      splits
+          .computeIfAbsent(features[i], k -> new FeatureSplit())
+          .add(classes.get(i), unchangedClasses[i], highestSortingStrings[i]);
+    }
+    return splits;
+  }
+
+  /**
+   * Returns true if D8 would not change the class: all its code is passed through as dex code, and
+   * there is nothing to desugar.
+   */
+  private static boolean isUnchanged(DexProgramClass clazz, InternalOptions options) {
+    assert options.passthroughDexCode && !options.enableDesugaring;
+    if (options.intermediate) {
+      return false;
+    }
+    for (DexEncodedMethod method : clazz.directMethods()) {
+      if (method.getCode() != null && !method.getCode().isDexCode()) {
+        return false;
+      }
+    }
+    for (DexEncodedMethod method : clazz.virtualMethods()) {
+      if (method.getCode() != null && !method.getCode().isDexCode()) {
+        return false;
+      }
+      if (options.processCovariantReturnTypeAnnotations
+          && (method.annotations.getFirstMatching(options.itemFactory.annotationCovariantReturnType)
+                  != null
+              || method.annotations.getFirstMatching(
+                      options.itemFactory.annotationCovariantReturnTypes)
+                  != null)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static DexString getHighestSortingString(DexProgramClass clazz) {
+    DexString highestSortingString = null;
+    for (DexEncodedMethod method : clazz.methods()) {
+      if (method.getCode() == null) {
+        continue;
+      }
+      DexString methodHighestSortingString = method.getCode().asDexCode().highestSortingString;
+      if (methodHighestSortingString != null
+          && (highestSortingString == null
+              || methodHighestSortingString.slowCompareTo(highestSortingString) > 0)) {
+        highestSortingString = methodHighestSortingString;
       }
-      featureApplication.addProgramClass(clazz);
     }
-    return applications;
+    return highestSortingString;
   }
 
   public static void runD8ForTesting(D8Command command, boolean dontCreateMarkerInD8)
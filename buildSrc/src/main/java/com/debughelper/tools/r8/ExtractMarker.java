@@ -8,10 +8,13 @@ import com.debughelper.tools.r8.ProgramResource;
 import com.debughelper.tools.r8.ProgramResource.Kind;
 import com.debughelper.tools.r8.ResourceException;
 import com.debughelper.tools.r8.dex.ApplicationReader;
+import com.debughelper.tools.r8.dex.DexParser;
+import com.debughelper.tools.r8.dex.DexReader;
 import com.debughelper.tools.r8.dex.Marker;
 import com.debughelper.tools.r8.dex.VDexReader;
 import com.debughelper.tools.r8.dex.VDexParser;
 import com.debughelper.tools.r8.errors.CompilationError;
+import com.debughelper.tools.r8.graph.ClassKind;
 import com.debughelper.tools.r8.graph.DexApplication;
 import com.debughelper.tools.r8.origin.Origin;
 import com.debughelper.tools.r8.origin.PathOrigin;
@@ -19,13 +22,15 @@ import com.debughelper.tools.r8.utils.AndroidApiLevel;
 import com.debughelper.tools.r8.utils.AndroidApp;
 import com.debughelper.tools.r8.utils.FileUtils;
 import com.debughelper.tools.r8.utils.InternalOptions;
+import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.debughelper.tools.r8.utils.Timing;
 import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 public class ExtractMarker {
   public static class VdexOrigin extends Origin {
@@ -45,17 +50,56 @@ public class ExtractMarker {
 
   public static Marker extractMarkerFromDexFile(Path file)
       throws IOException, ExecutionException, com.debughelper.tools.r8.ResourceException {
-    AndroidApp.Builder appBuilder = AndroidApp.builder();
-    addDexResources(appBuilder, file);
-    return extractMarker(appBuilder.build());
+    if (FileUtils.isVDexFile(file)) {
+      return extractMarkerFromVDexFile(file);
+    }
+    return extractMarker(AndroidApp.builder().addProgramFiles(file).build());
+  }
+
+  // The dex files are read in place from the mapped vdex, and only their strings are read as the
+  // marker is one of them.
+  private static Marker extractMarkerFromVDexFile(Path file) throws IOException {
+    PathOrigin vdexOrigin = new PathOrigin(file);
+    VDexParser vDexParser = new VDexParser(VDexReader.map(vdexOrigin, file));
+    InternalOptions options = new InternalOptions();
+    int index = 0;
+    for (ByteBuffer dexFile : vDexParser.getDexFileBuffers()) {
+      DexReader dexReader = new DexReader(new VdexOrigin(vdexOrigin, index), dexFile);
+      new DexParser(dexReader, ClassKind.PROGRAM, options.itemFactory, options.reporter)
+          .populateStrings();
+      index++;
+    }
+    return options.itemFactory.extractMarker();
+  }
+
+  /** Check the checksums of the dex files in a vdex file, see {@link VDexParser#verifyChecksums}. */
+  public static void verifyVDexFile(Path file, ExecutorService executorService)
+      throws IOException, ExecutionException {
+    VDexParser vDexParser = new VDexParser(VDexReader.map(new PathOrigin(file), file));
+    try {
+      vDexParser.verifyChecksums(executorService);
+    } catch (ExecutionException e) {
+      // Report a bad checksum like any other invalid vdex file.
+      if (e.getCause() instanceof CompilationError) {
+        throw (CompilationError) e.getCause();
+      }
+      throw e;
+    }
   }
 
   public static int extractDexSize(Path file)
       throws IOException, ExecutionException, com.debughelper.tools.r8.ResourceException {
-    AndroidApp.Builder appBuilder = AndroidApp.builder();
-    addDexResources(appBuilder, file);
+    if (FileUtils.isVDexFile(file)) {
+      int size = 0;
+      for (ByteBuffer dexFile :
+          new VDexParser(VDexReader.map(new PathOrigin(file), file)).getDexFileBuffers()) {
+        size += dexFile.remaining();
+      }
+      return size;
+    }
     int size = 0;
-    for (ProgramResource resource : appBuilder.build().computeAllProgramResources()) {
+    for (ProgramResource resource :
+        AndroidApp.builder().addProgramFiles(file).build().computeAllProgramResources()) {
       if (resource.getKind() == Kind.DEX) {
         try (InputStream input = resource.getByteStream()) {
           size += ByteStreams.toByteArray(input).length;
@@ -71,24 +115,6 @@ public class ExtractMarker {
     return extractMarker(app);
   }
 
-  private static void addDexResources(AndroidApp.Builder appBuilder, Path file)
-      throws IOException, com.debughelper.tools.r8.ResourceException {
-    if (FileUtils.isVDexFile(file)) {
-      PathOrigin vdexOrigin = new PathOrigin(file);
-      try (InputStream fileInputStream = Files.newInputStream(file)) {
-        VDexReader vdexReader = new VDexReader(vdexOrigin, fileInputStream);
-        VDexParser vDexParser = new VDexParser(vdexReader);
-        int index = 0;
-        for (byte[] bytes : vDexParser.getDexFiles()) {
-          appBuilder.addDexProgramData(bytes, new VdexOrigin(vdexOrigin, index));
-          index++;
-        }
-      }
-    } else {
-      appBuilder.addProgramFiles(file);
-    }
-  }
-
   private static Marker extractMarker(AndroidApp app) throws IOException, ExecutionException {
     InternalOptions options = new InternalOptions();
     options.skipReadingDexCode = true;
@@ -112,43 +138,55 @@ public class ExtractMarker {
     int d8Count = 0;
     int r8Count = 0;
     int otherCount = 0;
-    for (Path programFile : command.getProgramFiles()) {
-      try {
-        Marker marker = extractMarkerFromDexFile(programFile);
-        if (marker == null) {
-          otherCount++;
-          if (!command.getIncludeOther()) {
-            continue;
-          }
-        } else {
-          if (marker.isD8()) {
-            d8Count++;
-          } else {
-            r8Count++;
+    ExecutorService executorService = command.getVerifyVDex()
+        ? ThreadUtils.getExecutorService(ThreadUtils.NOT_SPECIFIED)
+        : null;
+    try {
+      for (Path programFile : command.getProgramFiles()) {
+        try {
+          if (executorService != null && FileUtils.isVDexFile(programFile)) {
+            verifyVDexFile(programFile, executorService);
           }
-        }
-        if (command.getCSV()) {
-          System.out.print("\"" + programFile + "\"");
-          System.out.print(", ");
+          Marker marker = extractMarkerFromDexFile(programFile);
           if (marker == null) {
-            System.out.print("\"no marker\"");
+            otherCount++;
+            if (!command.getIncludeOther()) {
+              continue;
+            }
           } else {
-            System.out.print("\"" + (marker.isD8() ? "D8Adapter" : "R8") + "\"");
+            if (marker.isD8()) {
+              d8Count++;
+            } else {
+              r8Count++;
+            }
           }
-          System.out.print(", ");
-          System.out.print(extractDexSize(programFile));
-        } else {
-          if (command.getVerbose()) {
-            System.out.print(programFile);
-            System.out.print(": ");
+          if (command.getCSV()) {
+            System.out.print("\"" + programFile + "\"");
+            System.out.print(", ");
+            if (marker == null) {
+              System.out.print("\"no marker\"");
+            } else {
+              System.out.print("\"" + (marker.isD8() ? "D8Adapter" : "R8") + "\"");
+            }
+            System.out.print(", ");
+            System.out.print(extractDexSize(programFile));
+          } else {
+            if (command.getVerbose()) {
+              System.out.print(programFile);
+              System.out.print(": ");
+            }
+            System.out.print(marker == null ? "D8Adapter/R8 marker not found" : marker);
+            System.out.print(", " + extractDexSize(programFile) + " bytes");
           }
-          System.out.print(marker == null ? "D8Adapter/R8 marker not found" : marker);
-          System.out.print(", " + extractDexSize(programFile) + " bytes");
+          System.out.println();
+        } catch (CompilationError e) {
+          System.out.println(
+              "Failed to read dex/vdex file `" + programFile +"`: '" + e.getMessage() + "'");
         }
-        System.out.println();
-      } catch (CompilationError e) {
-        System.out.println(
-            "Failed to read dex/vdex file `" + programFile +"`: '" + e.getMessage() + "'");
+      }
+    } finally {
+      if (executorService != null) {
+        executorService.shutdown();
       }
     }
     if (command.getSummary()) {
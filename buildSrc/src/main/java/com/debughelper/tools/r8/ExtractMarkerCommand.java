@@ -19,6 +19,7 @@ class ExtractMarkerCommand {
     private boolean verbose;
     private boolean summary;
     private boolean csv;
+    private boolean verifyVDex;
     private final List<Path> programFiles = new ArrayList<>();
 
     public Builder setPrintHelp(boolean printHelp) {
@@ -50,6 +51,11 @@ class ExtractMarkerCommand {
       return this;
     }
 
+    public Builder setVerifyVDex(boolean verifyVDex) {
+      this.verifyVDex = verifyVDex;
+      return this;
+    }
+
     public Builder addProgramFile(Path programFile) {
       programFiles.add(programFile);
       return this;
@@ -60,7 +66,8 @@ class ExtractMarkerCommand {
       if (isPrintHelp()) {
         return new ExtractMarkerCommand(isPrintHelp());
       }
-      return new ExtractMarkerCommand(includeOther, verbose, summary, csv, programFiles);
+      return new ExtractMarkerCommand(
+          includeOther, verbose, summary, csv, verifyVDex, programFiles);
     }
   }
 
@@ -71,6 +78,7 @@ class ExtractMarkerCommand {
       "  --verbose               # More verbose output.",
       "  --summary               # Print summary at the end.",
       "  --csv                   # Output in CSV format.",
+      "  --verify-vdex           # Verify the checksums of the dex files in vdex files.",
       "  --help                  # Print this message."));
 
   public static Builder builder() {
@@ -96,6 +104,8 @@ class ExtractMarkerCommand {
         builder.setSummary(true);
       } else if (arg.equals("--csv")) {
         builder.setCSV(true);
+      } else if (arg.equals("--verify-vdex")) {
+        builder.setVerifyVDex(true);
       } else if (arg.equals("--help")) {
         builder.setPrintHelp(true);
       } else {
@@ -112,15 +122,17 @@ class ExtractMarkerCommand {
   private final boolean verbose;
   private final boolean summary;
   private final boolean csv;
+  private final boolean verifyVDex;
   private final List<Path> programFiles;
 
   private ExtractMarkerCommand(boolean includeOther, boolean verbose, boolean summary,
-      boolean csv, List<Path> programFiles) {
+      boolean csv, boolean verifyVDex, List<Path> programFiles) {
     this.printHelp = false;
     this.includeOther = includeOther;
     this.verbose = verbose;
     this.summary = summary;
     this.csv = csv;
+    this.verifyVDex = verifyVDex;
     this.programFiles = programFiles;
   }
 
@@ -130,6 +142,7 @@ class ExtractMarkerCommand {
     this.verbose = false;
     this.summary = false;
     this.csv = false;
+    this.verifyVDex = false;
     programFiles = ImmutableList.of();
   }
 
@@ -156,4 +169,8 @@ class ExtractMarkerCommand {
   public boolean getCSV() {
     return csv;
   }
+
+  public boolean getVerifyVDex() {
+    return verifyVDex;
+  }
 }
@@ -23,12 +23,19 @@ import com.debughelper.tools.r8.utils.AndroidApp;
 import com.debughelper.tools.r8.utils.AndroidAppConsumers;
 import com.debughelper.tools.r8.utils.DescriptorUtils;
 import com.debughelper.tools.r8.utils.InternalOptions;
+import com.debughelper.tools.r8.utils.StringUtils;
+import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.debughelper.tools.r8.utils.Timing;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -37,6 +44,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 
 /**
@@ -45,6 +54,9 @@ import java.util.function.BiConsumer;
  *
  * <p>By default, only shows methods where R8's DEX output is 5 or more instructions larger than
  * ProGuard+D8Adapter's output. Pass {@code --threshold 0} to display all methods.
+ *
+ * <p>The inputs are processed in parallel. Pass {@code --csv} or {@code --json} for output that is
+ * meant to be processed by other tools.
  */
 public class JarSizeCompare {
 
@@ -52,6 +64,7 @@ public class JarSizeCompare {
       "Arguments:\n"
           + "    [--threshold <threshold>]\n"
           + "    [--lib <lib.jar>]\n"
+          + "    [--csv | --json]\n"
           + "    --input <name1> <input1.jar> [<map1.txt>]\n"
           + "    --input <name2> <input2.jar> [<map2.txt>] ...\n"
           + "\n"
@@ -69,45 +82,57 @@ public class JarSizeCompare {
           .put("it.unimi.dsi.fastutil", "com.debughelper.tools.r8.it.unimi.dsi.fastutil")
           .build();
 
+  private enum OutputFormat {
+    TEXT,
+    CSV,
+    JSON
+  }
+
   private final List<Path> libraries;
   private final List<InputParameter> inputParameters;
   private final int threshold;
-  private final InternalOptions options;
+  private final OutputFormat outputFormat;
   private int pgIndex;
   private int r8Index;
 
   private JarSizeCompare(
-      List<Path> libraries, List<InputParameter> inputParameters, int threshold) {
+      List<Path> libraries,
+      List<InputParameter> inputParameters,
+      int threshold,
+      OutputFormat outputFormat) {
     this.libraries = libraries;
     this.inputParameters = inputParameters;
     this.threshold = threshold;
-    options = new InternalOptions();
-    options.enableCfFrontend = true;
+    this.outputFormat = outputFormat;
   }
 
   public void run() throws Exception {
     List<String> names = new ArrayList<>();
-    List<InputApplication> inputApplicationList = new ArrayList<>();
-    Timing timing = new Timing("JarSizeCompare");
     for (InputParameter inputParameter : inputParameters) {
-      AndroidApp inputApp = inputParameter.getInputApp(libraries);
-      DexApplication input = inputParameter.getReader(options, inputApp, timing);
-      AndroidAppConsumers appConsumer = new AndroidAppConsumers();
-      D8.run(
-          D8Command.builder(inputApp)
-              .setMinApiLevel(AndroidApiLevel.P.getLevel())
-              .setProgramConsumer(appConsumer.wrapDexIndexedConsumer(null))
-              .build());
-      DexApplication d8Input = inputParameter.getReader(options, appConsumer.build(), timing);
-      InputApplication inputApplication =
-          new InputApplication(input, translateClassNames(input, input.classes()));
-      InputApplication d8Classes =
-          new InputApplication(input, translateClassNames(input, d8Input.classes()));
       names.add(inputParameter.name + "-input");
-      inputApplicationList.add(inputApplication);
       names.add(inputParameter.name + "-d8");
-      inputApplicationList.add(d8Classes);
     }
+    // The inputs are read and compiled independently of each other, each with its own options and
+    // item factory, as classes are compared by their signatures.
+    InputApplication[] inputApplications = new InputApplication[names.size()];
+    ExecutorService executor = ThreadUtils.getExecutorService(ThreadUtils.NOT_SPECIFIED);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < inputParameters.size(); i++) {
+        InputParameter inputParameter = inputParameters.get(i);
+        int index = 2 * i;
+        futures.add(
+            executor.submit(
+                () -> {
+                  readInput(inputParameter, inputApplications, index);
+                  return null;
+                }));
+      }
+      ThreadUtils.awaitFutures(futures);
+    } finally {
+      executor.shutdown();
+    }
+    List<InputApplication> inputApplicationList = Arrays.asList(inputApplications);
     if (threshold != 0) {
       pgIndex = names.indexOf("pg-d8");
       r8Index = names.indexOf("r8-d8");
@@ -120,16 +145,44 @@ public class JarSizeCompare {
             classes.getInputClass(className);
       }
     }
+    SizeReport report = createReport(names);
     for (Entry<String, Map<String, InputClass[]>> library : byLibrary(inputClasses)) {
-      System.out.println("");
-      System.out.println(Strings.repeat("=", 100));
       String commonPrefix = getCommonPrefix(library.getValue().keySet());
-      if (library.getKey().isEmpty()) {
-        System.out.println("PROGRAM (" + commonPrefix + ")");
-      } else {
-        System.out.println("LIBRARY: " + library.getKey() + " (" + commonPrefix + ")");
-      }
-      printLibrary(library.getValue(), commonPrefix);
+      report.startLibrary(library.getKey(), commonPrefix);
+      printLibrary(report, library.getValue(), commonPrefix);
+    }
+    report.finish();
+  }
+
+  private void readInput(
+      InputParameter inputParameter, InputApplication[] inputApplications, int index)
+      throws Exception {
+    InternalOptions options = new InternalOptions();
+    options.enableCfFrontend = true;
+    Timing timing = new Timing("JarSizeCompare " + inputParameter.name);
+    AndroidApp inputApp = inputParameter.getInputApp(libraries);
+    DexApplication input = inputParameter.getReader(options, inputApp, timing);
+    AndroidAppConsumers appConsumer = new AndroidAppConsumers();
+    D8.run(
+        D8Command.builder(inputApp)
+            .setMinApiLevel(AndroidApiLevel.P.getLevel())
+            .setProgramConsumer(appConsumer.wrapDexIndexedConsumer(null))
+            .build());
+    DexApplication d8Input = inputParameter.getReader(options, appConsumer.build(), timing);
+    inputApplications[index] =
+        new InputApplication(input, translateClassNames(input, input.classes()));
+    inputApplications[index + 1] =
+        new InputApplication(input, translateClassNames(input, d8Input.classes()));
+  }
+
+  private SizeReport createReport(List<String> names) {
+    switch (outputFormat) {
+      case CSV:
+        return new CsvReport(names);
+      case JSON:
+        return new JsonReport(names);
+      default:
+        return new TextReport();
     }
   }
 
@@ -175,31 +228,32 @@ public class JarSizeCompare {
     return commonPrefix;
   }
 
-  private void printLibrary(Map<String, InputClass[]> classMap, String commonPrefix) {
+  private void printLibrary(
+      SizeReport report, Map<String, InputClass[]> classMap, String commonPrefix) {
     List<Entry<String, InputClass[]>> classes = new ArrayList<>(classMap.entrySet());
     classes.sort(Comparator.comparing(Entry::getKey));
     for (Entry<String, InputClass[]> clazz : classes) {
-      printClass(
-          clazz.getKey().substring(commonPrefix.length()), new ClassCompare(clazz.getValue()));
+      printClass(report, clazz.getKey(), commonPrefix, new ClassCompare(clazz.getValue()));
     }
   }
 
-  private void printClass(String name, ClassCompare inputClasses) {
+  private void printClass(
+      SizeReport report, String name, String commonPrefix, ClassCompare inputClasses) {
     List<MethodSignature> methods = getMethods(inputClasses);
     List<FieldSignature> fields = getFields(inputClasses);
     if (methods.isEmpty() && fields.isEmpty()) {
       return;
     }
-    System.out.println(name);
+    report.startClass(name, commonPrefix);
     for (MethodSignature sig : methods) {
-      printSignature(getMethodString(sig), inputClasses.sizes(sig));
+      report.method(sig, inputClasses.sizes(sig));
     }
     for (FieldSignature sig : fields) {
-      printSignature(getFieldString(sig), inputClasses.sizes(sig));
+      report.field(sig, inputClasses.sizes(sig));
     }
   }
 
-  private String getMethodString(MethodSignature sig) {
+  private static String getMethodString(MethodSignature sig) {
     StringBuilder builder = new StringBuilder().append('(');
     for (int i = 0; i < sig.parameters.length; i++) {
       builder.append(DescriptorUtils.javaTypeToShorty(sig.parameters[i]));
@@ -208,18 +262,10 @@ public class JarSizeCompare {
     return builder.append(sig.name).toString();
   }
 
-  private String getFieldString(FieldSignature sig) {
+  private static String getFieldString(FieldSignature sig) {
     return DescriptorUtils.javaTypeToShorty(sig.type) + ' ' + sig.name;
   }
 
-  private void printSignature(String key, int[] sizes) {
-    System.out.print(padItem(key));
-    for (int size : sizes) {
-      System.out.print(padValue(size));
-    }
-    System.out.print('\n');
-  }
-
   private List<MethodSignature> getMethods(ClassCompare inputClasses) {
     List<MethodSignature> methods = new ArrayList<>();
     for (MethodSignature methodSignature : inputClasses.getMethods()) {
@@ -243,12 +289,179 @@ public class JarSizeCompare {
     return threshold == 0 ? inputClasses.getFields() : Collections.emptyList();
   }
 
-  private String padItem(String s) {
-    return String.format("%-52s", s);
+  /**
+   * Receives the classes with their method and field sizes, library by library. A size of -1
+   * stands for a member that is not present in an input.
+   */
+  private abstract static class SizeReport {
+
+    abstract void startLibrary(String library, String commonPrefix);
+
+    abstract void startClass(String name, String commonPrefix);
+
+    abstract void method(MethodSignature signature, int[] sizes);
+
+    abstract void field(FieldSignature signature, int[] sizes);
+
+    void finish() {}
   }
 
-  private String padValue(int v) {
-    return String.format("%8s", v == -1 ? "---" : v);
+  private static class TextReport extends SizeReport {
+
+    @Override
+    void startLibrary(String library, String commonPrefix) {
+      System.out.println("");
+      System.out.println(Strings.repeat("=", 100));
+      if (library.isEmpty()) {
+        System.out.println("PROGRAM (" + commonPrefix + ")");
+      } else {
+        System.out.println("LIBRARY: " + library + " (" + commonPrefix + ")");
+      }
+    }
+
+    @Override
+    void startClass(String name, String commonPrefix) {
+      System.out.println(name.substring(commonPrefix.length()));
+    }
+
+    @Override
+    void method(MethodSignature signature, int[] sizes) {
+      printSignature(getMethodString(signature), sizes);
+    }
+
+    @Override
+    void field(FieldSignature signature, int[] sizes) {
+      printSignature(getFieldString(signature), sizes);
+    }
+
+    private void printSignature(String key, int[] sizes) {
+      System.out.print(padItem(key));
+      for (int size : sizes) {
+        System.out.print(padValue(size));
+      }
+      System.out.print('\n');
+    }
+
+    private String padItem(String s) {
+      return String.format("%-52s", s);
+    }
+
+    private String padValue(int v) {
+      return String.format("%8s", v == -1 ? "---" : v);
+    }
+  }
+
+  /** One line per member, with the sizes of absent members left empty. */
+  private static class CsvReport extends SizeReport {
+    private String library;
+    private String className;
+
+    CsvReport(List<String> names) {
+      StringBuilder header = new StringBuilder("library,class,kind,member");
+      for (String name : names) {
+        header.append(',').append(StringUtils.csvField(name));
+      }
+      System.out.println(header);
+    }
+
+    @Override
+    void startLibrary(String library, String commonPrefix) {
+      this.library = library;
+    }
+
+    @Override
+    void startClass(String name, String commonPrefix) {
+      this.className = name;
+    }
+
+    @Override
+    void method(MethodSignature signature, int[] sizes) {
+      printMember("method", signature.toString(), sizes);
+    }
+
+    @Override
+    void field(FieldSignature signature, int[] sizes) {
+      printMember("field", signature.toString(), sizes);
+    }
+
+    private void printMember(String kind, String signature, int[] sizes) {
+      StringBuilder line =
+          new StringBuilder()
+              .append(StringUtils.csvField(library)).append(',')
+              .append(StringUtils.csvField(className)).append(',')
+              .append(StringUtils.csvField(kind)).append(',')
+              .append(StringUtils.csvField(signature));
+      for (int size : sizes) {
+        line.append(',');
+        if (size != -1) {
+          line.append(size);
+        }
+      }
+      System.out.println(line);
+    }
+  }
+
+  /** A single JSON object, with null for the sizes of absent members. */
+  private static class JsonReport extends SizeReport {
+    private final JsonObject result = new JsonObject();
+    private final JsonArray classes = new JsonArray();
+    private String library;
+    private JsonArray methods;
+    private JsonArray fields;
+
+    JsonReport(List<String> names) {
+      JsonArray inputs = new JsonArray();
+      names.forEach(inputs::add);
+      result.add("inputs", inputs);
+      result.add("classes", classes);
+    }
+
+    @Override
+    void startLibrary(String library, String commonPrefix) {
+      this.library = library;
+    }
+
+    @Override
+    void startClass(String name, String commonPrefix) {
+      JsonObject clazz = new JsonObject();
+      clazz.addProperty("library", library);
+      clazz.addProperty("class", name);
+      methods = new JsonArray();
+      fields = new JsonArray();
+      clazz.add("methods", methods);
+      clazz.add("fields", fields);
+      classes.add(clazz);
+    }
+
+    @Override
+    void method(MethodSignature signature, int[] sizes) {
+      methods.add(toJson(signature.toString(), sizes));
+    }
+
+    @Override
+    void field(FieldSignature signature, int[] sizes) {
+      fields.add(toJson(signature.toString(), sizes));
+    }
+
+    private static JsonObject toJson(String signature, int[] sizes) {
+      JsonObject member = new JsonObject();
+      member.addProperty("signature", signature);
+      JsonArray array = new JsonArray();
+      for (int size : sizes) {
+        if (size == -1) {
+          array.add(JsonNull.INSTANCE);
+        } else {
+          array.add(size);
+        }
+      }
+      member.add("sizes", array);
+      return member;
+    }
+
+    @Override
+    void finish() {
+      System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(result));
+    }
   }
 
   private List<Map.Entry<String, Map<String, InputClass[]>>> byLibrary(
@@ -442,6 +655,7 @@ public class JarSizeCompare {
   public static JarSizeCompare parse(String[] args) {
     int i = 0;
     int threshold = 0;
+    OutputFormat outputFormat = OutputFormat.TEXT;
     List<Path> libraries = new ArrayList<>();
     List<InputParameter> inputs = new ArrayList<>();
     Set<String> names = new HashSet<>();
@@ -449,6 +663,12 @@ public class JarSizeCompare {
       if (args[i].equals("--threshold") && i + 1 < args.length) {
         threshold = Integer.parseInt(args[i + 1]);
         i += 2;
+      } else if (args[i].equals("--csv")) {
+        outputFormat = OutputFormat.CSV;
+        i++;
+      } else if (args[i].equals("--json")) {
+        outputFormat = OutputFormat.JSON;
+        i++;
       } else if (args[i].equals("--lib") && i + 1 < args.length) {
         libraries.add(Paths.get(args[i + 1]));
         i += 2;
@@ -480,6 +700,6 @@ public class JarSizeCompare {
               + "or use \"--threshold 0\".");
       return null;
     }
-    return new JarSizeCompare(libraries, inputs, threshold);
+    return new JarSizeCompare(libraries, inputs, threshold, outputFormat);
   }
 }
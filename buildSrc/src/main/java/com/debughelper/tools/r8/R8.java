@@ -370,6 +370,7 @@ public class R8 {
       try {
         IRConverter converter = new IRConverter(appInfo, options, timing, printer, graphLense);
         application = converter.optimize(application, executorService);
+        converter.reportMethodTimes();
       } finally {
         timing.end();
       }
@@ -442,7 +443,7 @@ public class R8 {
       // will happen. Just avoid the overhead.
       NamingLens namingLens =
           options.enableMinification
-              ? new Minifier(appInfo.withLiveness(), rootSet, options).run(timing)
+              ? new Minifier(appInfo.withLiveness(), rootSet, options).run(executorService, timing)
               : NamingLens.getIdentityLens();
       timing.end();
 
@@ -454,7 +455,8 @@ public class R8 {
             LineNumberOptimizer.run(
                 application,
                 namingLens,
-                options.lineNumberOptimization == LineNumberOptimization.IDENTITY_MAPPING);
+                options.lineNumberOptimization == LineNumberOptimization.IDENTITY_MAPPING,
+                executorService);
         timing.end();
         proguardMapSupplier =
             ProguardMapSupplier.fromClassNameMapper(classNameMapper, options.minApiLevel);
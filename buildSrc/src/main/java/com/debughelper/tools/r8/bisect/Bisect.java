@@ -8,12 +8,14 @@ import com.debughelper.tools.r8.dex.ApplicationReader;
 import com.debughelper.tools.r8.dex.ApplicationWriter;
 import com.debughelper.tools.r8.graph.DexApplication;
 import com.debughelper.tools.r8.graph.DexProgramClass;
+import com.debughelper.tools.r8.naming.NamingLens;
 import com.debughelper.tools.r8.utils.AndroidApp;
 import com.debughelper.tools.r8.utils.InternalOptions;
 import com.debughelper.tools.r8.utils.Timing;
 import com.debughelper.tools.r8.OutputMode;
 import com.debughelper.tools.r8.errors.CompilationError;
 import com.debughelper.tools.r8.utils.AndroidAppConsumers;
+import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.google.common.io.CharStreams;
 import java.io.File;
 import java.io.IOException;
@@ -23,9 +25,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Bisect {
 
@@ -35,6 +39,37 @@ public class Bisect {
   public interface Command {
 
     BisectOptions.Result apply(DexApplication application) throws Exception;
+
+    /**
+     * Do the work of {@link #apply} that depends on the application, and return the remaining work,
+     * which does not. By default nothing is done ahead.
+     */
+    default Callable<Result> prepare(DexApplication application) throws Exception {
+      return () -> apply(application);
+    }
+  }
+
+  // A command that runs the post-build command on an application written to its own directory.
+  private class DirectoryCommand implements Command {
+
+    private final Path output;
+    private final ExecutorService executor;
+
+    DirectoryCommand(Path output, ExecutorService executor) {
+      this.output = output;
+      this.executor = executor;
+    }
+
+    @Override
+    public Result apply(DexApplication application) throws Exception {
+      return prepare(application).call();
+    }
+
+    @Override
+    public Callable<Result> prepare(DexApplication application) throws Exception {
+      writeApp(application, output, executor);
+      return () -> runCommand(output);
+    }
   }
 
   private static class StreamReader implements Runnable {
@@ -86,6 +121,49 @@ public class Bisect {
     }
   }
 
+  /**
+   * Run a parallel bisection. Each round evaluates one application per partition of the bad range,
+   * the i'th with the i'th command, and narrows the bad range to the first bad partition. The
+   * applications are written one at a time, as they share the item factory, and the commands are
+   * run concurrently on the given executor.
+   *
+   * <p>If no partition is bad on its own, the application of the first partition is written to the
+   * output directory, from which the bisection continues sequentially.
+   */
+  public static DexProgramClass run(BisectState state, List<Command> commands, Path output,
+      ExecutorService executor)
+      throws Exception {
+    while (true) {
+      List<DexApplication> apps = state.bisect(commands.size());
+      state.write();
+      if (apps == null) {
+        return state.getFinalClass();
+      }
+      assert apps.size() <= commands.size();
+      List<Future<Result>> futures = new ArrayList<>(apps.size());
+      for (int i = 0; i < apps.size(); i++) {
+        futures.add(executor.submit(commands.get(i).prepare(apps.get(i))));
+      }
+      ThreadUtils.awaitFutures(futures);
+      List<Result> results = new ArrayList<>(futures.size());
+      for (Future<Result> future : futures) {
+        results.add(future.get());
+      }
+      if (!state.setResults(results)) {
+        // The saved state expects the result of the first partition.
+        writeApp(apps.get(0), output, executor);
+        System.out.println("No partition of the bad range is bad on its own, the failure depends"
+            + " on classes of several partitions.");
+        System.out.println("Bisecting continues sequentially with the build of the first"
+            + " partition in " + output + "/");
+        System.out.println("Continue bisection by passing either --"
+            + BisectOptions.RESULT_GOOD_FLAG + " or --"
+            + BisectOptions.RESULT_BAD_FLAG);
+        return null;
+      }
+    }
+  }
+
   public DexProgramClass run() throws Exception {
     // Setup output directory (or write to a temp dir).
     Path output;
@@ -100,8 +178,10 @@ public class Bisect {
 
     ExecutorService executor = Executors.newWorkStealingPool();
     try {
-      DexApplication goodApp = readApp(options.goodBuild, executor);
-      DexApplication badApp = readApp(options.badBuild, executor);
+      // Both applications are read into the same item factory, as the bisection mixes their classes.
+      InternalOptions readOptions = new InternalOptions();
+      DexApplication goodApp = readApp(options.goodBuild, readOptions, executor);
+      DexApplication badApp = readApp(options.badBuild, readOptions, executor);
 
       File stateFile = options.stateFile != null
           ? options.stateFile
@@ -118,13 +198,27 @@ public class Bisect {
         state.setPreviousResult(options.result);
       }
 
+      if (options.partitions > 1) {
+        // Each partition is written to its own directory and checked by its own command process.
+        List<Command> commands = new ArrayList<>(options.partitions);
+        for (int i = 0; i < options.partitions; i++) {
+          File directory = output.resolve("partition-" + i).toFile();
+          directory.mkdir();
+          commands.add(new DirectoryCommand(directory.toPath(), executor));
+        }
+        // The commands mostly wait for their processes, so run them on threads of their own.
+        ExecutorService commandExecutor = Executors.newFixedThreadPool(options.partitions);
+        try {
+          return run(state, commands, output, commandExecutor);
+        } finally {
+          commandExecutor.shutdown();
+        }
+      }
+
       // Setup post-build command.
       Command command = null;
       if (options.command != null) {
-        command = (application) -> {
-          writeApp(application, output, executor);
-          return runCommand(output);
-        };
+        command = new DirectoryCommand(output, executor);
       }
 
       // Run bisection.
@@ -167,18 +261,24 @@ public class Bisect {
     throw new com.debughelper.tools.r8.errors.CompilationError("Failed to run command " + args);
   }
 
-  private DexApplication readApp(File apk, ExecutorService executor)
+  private DexApplication readApp(File apk, InternalOptions options, ExecutorService executor)
       throws IOException, ExecutionException {
     AndroidApp app = AndroidApp.builder().addProgramFiles(apk.toPath()).build();
-    return new ApplicationReader(app, new InternalOptions(), timing).read(executor);
+    return new ApplicationReader(app, options, timing).read(executor);
   }
 
   private static void writeApp(DexApplication app, Path output, ExecutorService executor)
       throws IOException, ExecutionException {
     InternalOptions options = new InternalOptions();
+    // The classes are written again in later bisection steps.
+    options.releaseCodeAfterWriting = false;
     com.debughelper.tools.r8.utils.AndroidAppConsumers compatSink = new AndroidAppConsumers(options);
-    ApplicationWriter writer = new ApplicationWriter(app, options, null, null, null, null, null);
+    ApplicationWriter writer = new ApplicationWriter(
+        app, options, null, null, NamingLens.getIdentityLens(), null, null);
     writer.write(executor);
+    options.signalFinishedToConsumers();
+    // The next application written shares the item factory.
+    app.dexItemFactory.resetSortedIndices();
     compatSink.build().writeToDirectory(output, OutputMode.DexIndexed);
   }
 
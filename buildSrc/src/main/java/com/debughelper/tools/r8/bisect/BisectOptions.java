@@ -21,6 +21,7 @@ public class BisectOptions {
   public static final String STATE_FLAG = "state";
   public static final String OUTPUT_FLAG = "output";
   public static final String COMMAND_FLAG = "command";
+  public static final String PARALLEL_FLAG = "parallel";
 
   public final File goodBuild;
   public final File badBuild;
@@ -28,6 +29,7 @@ public class BisectOptions {
   public final File command;
   public final File output;
   public final Result result;
+  public final int partitions;
 
   public enum Result { UNKNOWN, GOOD, BAD }
 
@@ -37,6 +39,7 @@ public class BisectOptions {
     OptionSpec<String> command;
     OptionSpec<String> stateFile;
     OptionSpec<String> output;
+    OptionSpec<Integer> partitions;
     OptionSpec<Void> resultGood;
     OptionSpec<Void> resultBad;
     OptionSpec<Void> help;
@@ -62,6 +65,12 @@ public class BisectOptions {
           .requiredUnless(stateFile)
           .withRequiredArg()
           .describedAs("file");
+      partitions = parser.accepts(PARALLEL_FLAG,
+          "Split the bad range into this many partitions and check them concurrently.")
+          .withRequiredArg()
+          .ofType(Integer.class)
+          .defaultsTo(1)
+          .describedAs("partitions");
     }
 
     OptionSet parse(String[] args) {
@@ -78,13 +87,14 @@ public class BisectOptions {
   }
 
   private BisectOptions(File goodBuild, File badBuild, File stateFile, File command, File output,
-      Result result) {
+      Result result, int partitions) {
     this.goodBuild = goodBuild;
     this.badBuild = badBuild;
     this.stateFile = stateFile;
     this.command = command;
     this.output = output;
     this.result = result;
+    this.partitions = partitions;
   }
 
   public static BisectOptions parse(String[] args) throws IOException {
@@ -119,7 +129,15 @@ public class BisectOptions {
       }
       result = Result.BAD;
     }
-    return new BisectOptions(goodBuild, badBuild, stateFile, command, output, result);
+    int partitions = options.valueOf(parser.partitions);
+    if (partitions < 1) {
+      throw new CompilationError("Invalid --" + PARALLEL_FLAG + ": " + partitions);
+    }
+    if (partitions > 1 && command == null) {
+      throw new CompilationError("Option --" + PARALLEL_FLAG + " requires --" + COMMAND_FLAG);
+    }
+    return new BisectOptions(
+        goodBuild, badBuild, stateFile, command, output, result, partitions);
   }
 
   private static <T> T require(OptionSet options, OptionSpec<T> option, String flag) {
@@ -86,6 +86,20 @@ public class BisectState {
       return new Range(start, start + length);
     }
 
+    // Split into the given number of adjacent ranges, or into ranges of one element if this range
+    // is smaller. The sizes of the ranges differ by at most one.
+    public List<Range> split(int partitions) {
+      partitions = Integer.min(partitions, size());
+      List<Range> result = new ArrayList<>(partitions);
+      int partitionStart = start;
+      for (int i = 1; i <= partitions; i++) {
+        int partitionEnd = start + (int) ((long) size() * i / partitions);
+        result.add(new Range(partitionStart, partitionEnd));
+        partitionStart = partitionEnd;
+      }
+      return result;
+    }
+
     public boolean contains(int index) {
       return start <= index && index < end;
     }
@@ -152,6 +166,8 @@ public class BisectState {
 
   // Computed data
   private Range nextRange = null;
+  // The ranges of the current round of a parallel bisection, see bisect(int).
+  private List<Range> nextRanges = null;
 
   public BisectState(DexApplication goodApp, DexApplication badApp, File stateFile) {
     this.badApp = badApp;
@@ -254,18 +270,93 @@ public class BisectState {
       System.out.println("Last bad range: " + badRange);
       nextRange = badRange.split();
     }
-    System.out.println("Next bisection range: " + nextRange);
+    return buildApplication(nextRange);
+  }
+
+  /**
+   * Returns the applications of the next round of a parallel bisection, or null if the bisection
+   * is complete. The first round checks the reference and the input application. Each later round
+   * splits the bad range into the given number of partitions, and each application has the bad
+   * classes of one partition only. The results are recorded with {@link #setResults}.
+   */
+  public List<DexApplication> bisect(int partitions) {
+    assert nextRanges == null;
+    assert partitions > 1;
+    List<Range> ranges = new ArrayList<>();
+    if (runs.isEmpty()) {
+      ranges.add(new Range(0, 0));
+      ranges.add(new Range(0, sortedGoodClasses.size()));
+    } else if (runs.size() == 1) {
+      ranges.add(new Range(0, sortedGoodClasses.size()));
+    } else {
+      Range badRange = getLastBadRange();
+      if (badRange.isEmpty()) {
+        throw new CompilationError("Bad range is empty. Cannot continue bisecting :-(");
+      }
+      if (badRange.size() == 1) {
+        nextRange = badRange;
+        return null;
+      }
+      System.out.println("Last bad range: " + badRange);
+      ranges.addAll(badRange.split(partitions));
+    }
+    nextRanges = ranges;
+    // The first range is also the next range of a sequential bisection: it is at the start of the
+    // bad range. This keeps the state file valid for resuming in either mode.
+    nextRange = ranges.get(0);
+    List<DexApplication> applications = new ArrayList<>(ranges.size());
+    for (Range range : ranges) {
+      applications.add(buildApplication(range));
+    }
+    return applications;
+  }
+
+  /**
+   * Record the results of the applications of {@link #bisect(int)}, in the same order. The bad
+   * range is narrowed to the first bad partition, and the results of the partitions after it are
+   * not needed.
+   *
+   * @return false if no partition is bad on its own. The state is then left as before the round,
+   *     waiting for the result of the first partition in a sequential bisection.
+   */
+  public boolean setResults(List<Result> results) {
+    assert nextRanges != null && results.size() == nextRanges.size();
+    List<Range> ranges = nextRanges;
+    nextRanges = null;
+    if (runs.size() < 2) {
+      // Checks of the reference and the input application.
+      for (int i = 0; i < ranges.size(); i++) {
+        nextRange = ranges.get(i);
+        setPreviousResult(results.get(i));
+      }
+      return true;
+    }
+    int firstBad = results.indexOf(Result.BAD);
+    if (firstBad == -1) {
+      // Leave the state as before the round, from which a sequential bisection can continue.
+      nextRange = ranges.get(0);
+      return false;
+    }
+    for (int i = 0; i <= firstBad; i++) {
+      nextRange = ranges.get(i);
+      setPreviousResult(results.get(i));
+    }
+    return true;
+  }
+
+  private DexApplication buildApplication(Range range) {
+    System.out.println("Next bisection range: " + range);
     int goodClasses = 0;
     int badClasses = 0;
     List<DexProgramClass> programClasses = new ArrayList<>();
     for (DexProgramClass clazz : badApp.classes()) {
-      DexProgramClass goodClass = getGoodClass(clazz);
+      DexProgramClass goodClass = getGoodClass(clazz, range);
       if (goodClass != null) {
         programClasses.add(goodClass);
         ++goodClasses;
       } else {
         programClasses.add(clazz);
-        assert !nextRange.isEmpty();
+        assert !range.isEmpty();
         ++badClasses;
       }
     }
@@ -273,9 +364,9 @@ public class BisectState {
     return badApp.builder().replaceProgramClasses(programClasses).build();
   }
 
-  private DexProgramClass getGoodClass(DexProgramClass clazz) {
+  private DexProgramClass getGoodClass(DexProgramClass clazz, Range range) {
     Integer index = indexMap.get(clazz.type);
-    if (index != null && !nextRange.contains(index)) {
+    if (index != null && !range.contains(index)) {
       return sortedGoodClasses.get(index);
     }
     return null;
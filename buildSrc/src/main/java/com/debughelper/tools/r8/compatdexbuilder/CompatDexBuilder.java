@@ -4,14 +4,19 @@
 package com.debughelper.tools.r8.compatdexbuilder;
 
 import com.debughelper.tools.r8.origin.ArchiveEntryOrigin;
+import com.debughelper.tools.r8.origin.Origin;
 import com.debughelper.tools.r8.origin.PathOrigin;
 import com.debughelper.tools.r8.utils.AndroidApiLevel;
+import com.debughelper.tools.r8.utils.ConcurrentZipWriter;
+import com.debughelper.tools.r8.utils.DescriptorUtils;
+import com.debughelper.tools.r8.utils.ExceptionDiagnostic;
 import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.debughelper.tools.r8.CompatDxHelper;
 import com.debughelper.tools.r8.CompilationFailedException;
 import com.debughelper.tools.r8.CompilationMode;
 import com.debughelper.tools.r8.D8;
 import com.debughelper.tools.r8.D8Command;
+import com.debughelper.tools.r8.DexFilePerClassFileConsumer;
 import com.debughelper.tools.r8.DexIndexedConsumer;
 import com.debughelper.tools.r8.DiagnosticsHandler;
 import com.google.common.io.ByteStreams;
@@ -20,17 +25,20 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import org.objectweb.asm.ClassReader;
 
 public class CompatDexBuilder {
 
@@ -55,17 +63,57 @@ public class CompatDexBuilder {
     }
   }
 
+  private static class SessionConsumer extends DexFilePerClassFileConsumer.ForwardingConsumer {
+
+    private final Map<String, ZipEntry> entries;
+    private final ConcurrentZipWriter out;
+    private final Origin origin;
+
+    SessionConsumer(Map<String, ZipEntry> entries, ConcurrentZipWriter out, Origin origin) {
+      super(null);
+      this.entries = entries;
+      this.out = out;
+      this.origin = origin;
+    }
+
+    @Override
+    public void accept(
+        String primaryClassDescriptor,
+        byte[] data,
+        Set<String> descriptors,
+        DiagnosticsHandler handler) {
+      super.accept(primaryClassDescriptor, data, descriptors, handler);
+      try {
+        addEntry(entries.get(primaryClassDescriptor), data, out);
+      } catch (IOException e) {
+        handler.error(new ExceptionDiagnostic(e, origin));
+      }
+    }
+  }
+
+  // Dex the class entries in D8 sessions sharing one set of options and one item factory, instead
+  // of in a compilation per entry. The dex files are written in the order they are produced.
+  private static final boolean DEX_SESSIONS =
+      System.getProperty("com.debughelper.tools.r8.dexsessions") != null;
+
+  // Number of class entries dexed in one session. Bounds the class files and IR held at once.
+  private static final int ENTRIES_PER_SESSION = 2048;
+
+  // Number of class entries submitted but not yet written, per thread.
+  private static final int ENTRIES_IN_FLIGHT_PER_THREAD = 4;
+
   private String input = null;
   private String output = null;
   private int numberOfThreads = 8;
   private boolean noLocals = false;
 
   public static void main(String[] args)
-      throws IOException, InterruptedException, ExecutionException {
+      throws IOException, InterruptedException, ExecutionException, CompilationFailedException {
     new CompatDexBuilder().run(args);
   }
 
-  private void run(String[] args) throws IOException, InterruptedException, ExecutionException {
+  private void run(String[] args)
+      throws IOException, InterruptedException, ExecutionException, CompilationFailedException {
     List<String> flags = new ArrayList<>();
 
     for (String arg : args) {
@@ -124,9 +172,13 @@ public class CompatDexBuilder {
     }
 
     ExecutorService executor = ThreadUtils.getExecutorService(numberOfThreads);
-    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(Paths.get(output)))) {
+    // Unless dexing in sessions, entries are written in a fixed order: the other entries followed
+    // by the dex file of each class entry, in the order of the input. Dex files are prepared on the
+    // thread producing them and appended as soon as the entries before them are written.
+    try (ConcurrentZipWriter out = new ConcurrentZipWriter(Paths.get(output))) {
 
       List<ZipEntry> toDex = new ArrayList<>();
+      int sequence = 0;
 
       try (ZipFile zipFile = new ZipFile(input, StandardCharsets.UTF_8)) {
         final Enumeration<? extends ZipEntry> entries = zipFile.entries();
@@ -134,22 +186,45 @@ public class CompatDexBuilder {
           ZipEntry entry = entries.nextElement();
           if (!entry.getName().endsWith(".class")) {
             try (InputStream stream = zipFile.getInputStream(entry)) {
-              addEntry(entry.getName(), stream, entry.getTime(), out);
+              ConcurrentZipWriter.Chunk chunk =
+                  ConcurrentZipWriter.prepare(
+                      entry.getName(), stream, entry.getTime(), ZipEntry.STORED);
+              if (DEX_SESSIONS) {
+                out.write(chunk);
+              } else {
+                out.write(sequence++, chunk);
+              }
             }
           } else {
             toDex.add(entry);
           }
         }
 
-        List<Future<DexConsumer>> futures = new ArrayList<>(toDex.size());
-        for (int i = 0; i < toDex.size(); i++) {
-          ZipEntry classEntry = toDex.get(i);
-          futures.add(executor.submit(() -> dexEntry(zipFile, classEntry, executor)));
+        if (DEX_SESSIONS) {
+          dexInSessions(zipFile, toDex, out, executor);
+          return;
+        }
+
+        // A dex file finished ahead of its turn is held by the writer until the dex files before
+        // it are written. Limiting the entries in flight bounds the dex files held this way when
+        // an entry is slow to dex.
+        int maxEntriesInFlight = ENTRIES_IN_FLIGHT_PER_THREAD * Math.max(1, numberOfThreads);
+        Deque<Future<?>> futures = new ArrayDeque<>();
+        for (ZipEntry classEntry : toDex) {
+          if (futures.size() == maxEntriesInFlight) {
+            futures.removeFirst().get();
+          }
+          int entrySequence = sequence++;
+          futures.addLast(
+              executor.submit(
+                  () -> {
+                    DexConsumer consumer = dexEntry(zipFile, classEntry, executor);
+                    addEntry(classEntry, consumer.getBytes(), entrySequence, out);
+                    return null;
+                  }));
         }
-        for (int i = 0; i < futures.size(); i++) {
-          ZipEntry entry = toDex.get(i);
-          DexConsumer consumer = futures.get(i).get();
-          addEntry(entry.getName() + ".dex", consumer.getBytes(), entry.getTime(), out);
+        for (Future<?> future : futures) {
+          future.get();
         }
       }
     } finally {
@@ -157,16 +232,85 @@ public class CompatDexBuilder {
     }
   }
 
-  private DexConsumer dexEntry(ZipFile zipFile, ZipEntry classEntry, ExecutorService executor)
-      throws IOException, CompilationFailedException {
-    DexConsumer consumer = new DexConsumer();
-    com.debughelper.tools.r8.D8Command.Builder builder = D8Command.builder();
+  /**
+   * Dex the class entries in sessions of {@link #ENTRIES_PER_SESSION} entries, each a single
+   * compilation producing a dex file per class. Desugaring is disabled, so the dex file of a class
+   * only depends on the class itself. Entries defining the same class as another entry of their
+   * session, or whose class name cannot be read, are dexed on their own.
+   */
+  private void dexInSessions(
+      ZipFile zipFile, List<ZipEntry> toDex, ConcurrentZipWriter out, ExecutorService executor)
+      throws IOException, InterruptedException, ExecutionException, CompilationFailedException {
+    PathOrigin inputOrigin = new PathOrigin(Paths.get(zipFile.getName()));
+    PathOrigin outputOrigin = new PathOrigin(Paths.get(output));
+    List<ZipEntry> singleEntries = new ArrayList<>();
+    for (int start = 0; start < toDex.size(); start += ENTRIES_PER_SESSION) {
+      Map<String, ZipEntry> entries = new HashMap<>();
+      D8Command.Builder builder = createBuilder();
+      for (ZipEntry classEntry :
+          toDex.subList(start, Math.min(start + ENTRIES_PER_SESSION, toDex.size()))) {
+        byte[] bytes;
+        try (InputStream stream = zipFile.getInputStream(classEntry)) {
+          bytes = ByteStreams.toByteArray(stream);
+        }
+        String descriptor = getClassDescriptor(bytes);
+        if (descriptor == null || entries.containsKey(descriptor)) {
+          singleEntries.add(classEntry);
+          continue;
+        }
+        entries.put(descriptor, classEntry);
+        builder.addClassProgramData(
+            bytes, new ArchiveEntryOrigin(classEntry.getName(), inputOrigin));
+      }
+      if (!entries.isEmpty()) {
+        builder.setProgramConsumer(new SessionConsumer(entries, out, outputOrigin));
+        CompatDxHelper.runDexFilePerClassFile(builder.build(), numberOfThreads);
+      }
+    }
+
+    int maxEntriesInFlight = ENTRIES_IN_FLIGHT_PER_THREAD * Math.max(1, numberOfThreads);
+    Deque<Future<?>> futures = new ArrayDeque<>();
+    for (ZipEntry classEntry : singleEntries) {
+      if (futures.size() == maxEntriesInFlight) {
+        futures.removeFirst().get();
+      }
+      futures.addLast(
+          executor.submit(
+              () -> {
+                DexConsumer consumer = dexEntry(zipFile, classEntry, executor);
+                addEntry(classEntry, consumer.getBytes(), out);
+                return null;
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  private static String getClassDescriptor(byte[] bytes) {
+    try {
+      return DescriptorUtils.getDescriptorFromClassBinaryName(new ClassReader(bytes).getClassName());
+    } catch (RuntimeException e) {
+      // Malformed class files are left to D8 to report.
+      return null;
+    }
+  }
+
+  private D8Command.Builder createBuilder() {
+    D8Command.Builder builder = D8Command.builder();
     CompatDxHelper.ignoreDexInArchive(builder);
     builder
-        .setProgramConsumer(consumer)
-        .setMode(noLocals ? com.debughelper.tools.r8.CompilationMode.RELEASE : CompilationMode.DEBUG)
+        .setMode(noLocals ? CompilationMode.RELEASE : CompilationMode.DEBUG)
         .setMinApiLevel(AndroidApiLevel.H_MR2.getLevel())
         .setDisableDesugaring(true);
+    return builder;
+  }
+
+  private DexConsumer dexEntry(ZipFile zipFile, ZipEntry classEntry, ExecutorService executor)
+      throws IOException, CompilationFailedException {
+    DexConsumer consumer = new DexConsumer();
+    D8Command.Builder builder = createBuilder();
+    builder.setProgramConsumer(consumer);
     try (InputStream stream = zipFile.getInputStream(classEntry)) {
       builder.addClassProgramData(
           ByteStreams.toByteArray(stream),
@@ -177,22 +321,18 @@ public class CompatDexBuilder {
     return consumer;
   }
 
-  private static void addEntry(String name, InputStream stream, long time, ZipOutputStream out)
+  private static void addEntry(ZipEntry classEntry, byte[] dex, ConcurrentZipWriter out)
       throws IOException {
-    addEntry(name, ByteStreams.toByteArray(stream), time, out);
+    out.write(
+        ConcurrentZipWriter.prepare(
+            classEntry.getName() + ".dex", dex, classEntry.getTime(), ZipEntry.STORED));
   }
 
-  private static void addEntry(String name, byte[] bytes, long time, ZipOutputStream out)
-      throws IOException {
-    ZipEntry zipEntry = new ZipEntry(name);
-    CRC32 crc32 = new CRC32();
-    crc32.update(bytes);
-    zipEntry.setSize(bytes.length);
-    zipEntry.setMethod(ZipEntry.STORED);
-    zipEntry.setCrc(crc32.getValue());
-    zipEntry.setTime(time);
-    out.putNextEntry(zipEntry);
-    out.write(bytes);
-    out.closeEntry();
+  private static void addEntry(
+      ZipEntry classEntry, byte[] dex, int sequence, ConcurrentZipWriter out) throws IOException {
+    out.write(
+        sequence,
+        ConcurrentZipWriter.prepare(
+            classEntry.getName() + ".dex", dex, classEntry.getTime(), ZipEntry.STORED));
   }
 }
@@ -176,6 +176,9 @@ public class ApplicationReader {
     }
   }
 
+  // Number of class-file resources parsed by a single task.
+  private static final int CLASS_SOURCES_PER_BATCH = 64;
+
   private final class ClassReader {
     private final ExecutorService executorService;
     private final List<Future<?>> futures;
@@ -185,6 +188,8 @@ public class ApplicationReader {
     private final Queue<com.debughelper.tools.r8.graph.DexProgramClass> programClasses = new ConcurrentLinkedQueue<>();
     private final Queue<com.debughelper.tools.r8.graph.DexClasspathClass> classpathClasses = new ConcurrentLinkedQueue<>();
     private final Queue<com.debughelper.tools.r8.graph.DexLibraryClass> libraryClasses = new ConcurrentLinkedQueue<>();
+    // Program classes read from class files, one list per batch of resources.
+    private final List<List<DexProgramClass>> programClassBatches = new ArrayList<>();
     // Jar application reader to share across all class readers.
     private final com.debughelper.tools.r8.graph.JarApplicationReader application = new com.debughelper.tools.r8.graph.JarApplicationReader(options);
 
@@ -221,16 +226,23 @@ public class ApplicationReader {
     }
 
     private <T extends com.debughelper.tools.r8.graph.DexClass> void readClassSources(
-            List<com.debughelper.tools.r8.ProgramResource> classSources, com.debughelper.tools.r8.graph.ClassKind classKind, Queue<T> classes) {
-      com.debughelper.tools.r8.graph.JarClassFileReader reader = new JarClassFileReader(
-          application, classKind.bridgeConsumer(classes::add));
-      // Read classes in parallel.
-      for (com.debughelper.tools.r8.ProgramResource input : classSources) {
+            List<com.debughelper.tools.r8.ProgramResource> classSources, com.debughelper.tools.r8.graph.ClassKind classKind, List<List<T>> batches) {
+      // Read classes in parallel, in batches of consecutive resources. Each batch collects its
+      // classes separately so that they can be added in input order once all batches are read.
+      for (int start = 0; start < classSources.size(); start += CLASS_SOURCES_PER_BATCH) {
+        List<com.debughelper.tools.r8.ProgramResource> inputs = classSources.subList(
+            start, Math.min(start + CLASS_SOURCES_PER_BATCH, classSources.size()));
+        List<T> batch = new ArrayList<>(inputs.size());
+        batches.add(batch);
+        com.debughelper.tools.r8.graph.JarClassFileReader reader = new JarClassFileReader(
+            application, classKind.<T>bridgeConsumer(batch::add));
         futures.add(
             executorService.submit(
                 () -> {
-                  try (InputStream is = input.getByteStream()) {
-                    reader.read(input.getOrigin(), classKind, is);
+                  for (com.debughelper.tools.r8.ProgramResource input : inputs) {
+                    try (InputStream is = input.getByteStream()) {
+                      reader.read(input.getOrigin(), classKind, is);
+                    }
                   }
                   // No other way to have a void callable, but we want the IOException from the
                   // previous
@@ -253,7 +265,7 @@ public class ApplicationReader {
         }
       }
       readDexSources(dexResources, com.debughelper.tools.r8.graph.ClassKind.PROGRAM, programClasses);
-      readClassSources(cfResources, com.debughelper.tools.r8.graph.ClassKind.PROGRAM, programClasses);
+      readClassSources(cfResources, com.debughelper.tools.r8.graph.ClassKind.PROGRAM, programClassBatches);
     }
 
     private <T extends DexClass> com.debughelper.tools.r8.utils.ClassProvider<T> buildClassProvider(com.debughelper.tools.r8.graph.ClassKind classKind,
@@ -280,6 +292,11 @@ public class ApplicationReader {
     }
 
     void initializeLazyClassCollection(LazyLoadedDexApplication.Builder builder) {
+      // Class-file classes are added after the dex classes, in the order of their resources.
+      for (List<DexProgramClass> batch : programClassBatches) {
+        programClasses.addAll(batch);
+      }
+
       // Add all program classes to the builder.
       for (DexProgramClass clazz : programClasses) {
         builder.addProgramClass(clazz.asProgramClass());
@@ -60,6 +60,7 @@ public class ApplicationWriter {
   public List<DexString> markerStrings;
   public com.debughelper.tools.r8.DexIndexedConsumer programConsumer;
   public final com.debughelper.tools.r8.naming.ProguardMapSupplier proguardMapSupplier;
+  private boolean prepared = false;
 
   private static class SortAnnotations extends MixedSectionCollection {
 
@@ -184,89 +185,120 @@ public class ApplicationWriter {
   public void write(ExecutorService executorService) throws IOException, ExecutionException {
     application.timing.begin("DexApplication.write");
     try {
-      insertAttributeAnnotations();
-
+      prepare();
       application.dexItemFactory.sort(namingLens);
-      assert this.markerStrings == null
-          || this.markerStrings.isEmpty()
-          || application.dexItemFactory.extractMarker() != null;
-
-      SortAnnotations sortAnnotations = new SortAnnotations();
-      application.classes().forEach((clazz) -> clazz.addDependencies(sortAnnotations));
-
-      // Collect the indexed items sets for all files and perform JumboString processing.
-      // This is required to ensure that shared code blocks have a single and consistent code
-      // item that is valid for all dex files.
-      // Use a linked hash map as the order matters when addDexProgramData is called below.
-      Map<com.debughelper.tools.r8.dex.VirtualFile, Future<com.debughelper.tools.r8.graph.ObjectToOffsetMapping>> offsetMappingFutures = new LinkedHashMap<>();
-      for (com.debughelper.tools.r8.dex.VirtualFile newFile : distribute(executorService)) {
-        if (!newFile.isEmpty()) {
-          offsetMappingFutures
-              .put(newFile, executorService.submit(() -> {
-                com.debughelper.tools.r8.graph.ObjectToOffsetMapping mapping = newFile.computeMapping(application);
-                rewriteCodeWithJumboStrings(mapping, newFile.classes(), application);
-                return mapping;
-              }));
-        }
-      }
+      writeSortedItems(executorService);
+    } finally {
+      application.timing.end();
+    }
+  }
 
-      // Wait for all spawned futures to terminate to ensure jumbo string writing is complete.
-      com.debughelper.tools.r8.utils.ThreadUtils.awaitFutures(offsetMappingFutures.values());
-
-      // Generate the dex file contents.
-      List<Future<Boolean>> dexDataFutures = new ArrayList<>();
-      try {
-        for (VirtualFile virtualFile : offsetMappingFutures.keySet()) {
-          assert !virtualFile.isEmpty();
-          final com.debughelper.tools.r8.graph.ObjectToOffsetMapping mapping = offsetMappingFutures.get(virtualFile).get();
-          dexDataFutures.add(
-              executorService.submit(
-                  () -> {
-                    byte[] result = writeDexFile(mapping);
-                    if (programConsumer != null) {
-                      programConsumer.accept(
-                          virtualFile.getId(),
-                          result,
-                          virtualFile.getClassDescriptors(),
-                          options.reporter);
-                    } else if (virtualFile.getPrimaryClassDescriptor() != null) {
-                      options
-                          .getDexFilePerClassFileConsumer()
-                          .accept(
-                              virtualFile.getPrimaryClassDescriptor(),
-                              result,
-                              virtualFile.getClassDescriptors(),
-                              options.reporter);
-                    } else {
-                      options
-                          .getDexIndexedConsumer()
-                          .accept(
-                              virtualFile.getId(),
-                              result,
-                              virtualFile.getClassDescriptors(),
-                              options.reporter);
-                    }
-                    return true;
-                  }));
-        }
-      } catch (InterruptedException e) {
-        throw new RuntimeException("Interrupted while waiting for future.", e);
-      }
+  /**
+   * Convert the class attributes that are represented as annotations in dex. This creates items in
+   * the item factory, so when several applications sharing a factory are written with {@link
+   * #writeSorted}, all of them must be prepared before the factory is sorted.
+   */
+  public void prepare() {
+    if (!prepared) {
+      insertAttributeAnnotations();
+      prepared = true;
+    }
+  }
 
-      // Clear out the map, as it is no longer needed.
-      offsetMappingFutures.clear();
-      // Wait for all files to be processed before moving on.
-      ThreadUtils.awaitFutures(dexDataFutures);
-      // Fail if there are pending errors, e.g., the program consumers may have reported errors.
-      options.reporter.failIfPendingErrors();
-      // Supply info to all additional resource consumers.
-      supplyAdditionalConsumers(
-          application, namingLens, options, deadCode, proguardMapSupplier, proguardSeedsData);
+  /**
+   * Write a prepared application whose item factory is already sorted. Applications sharing the
+   * factory can be written concurrently, provided that they have distinct classes.
+   */
+  public void writeSorted(ExecutorService executorService)
+      throws IOException, ExecutionException {
+    assert prepared;
+    application.timing.begin("DexApplication.write");
+    try {
+      writeSortedItems(executorService);
     } finally {
       application.timing.end();
     }
   }
 
+  private void writeSortedItems(ExecutorService executorService)
+      throws IOException, ExecutionException {
+    assert this.markerStrings == null
+        || this.markerStrings.isEmpty()
+        || application.dexItemFactory.extractMarker() != null;
+
+    SortAnnotations sortAnnotations = new SortAnnotations();
+    application.classes().forEach((clazz) -> clazz.addDependencies(sortAnnotations));
+
+    // Collect the indexed items sets for all files and perform JumboString processing.
+    // This is required to ensure that shared code blocks have a single and consistent code
+    // item that is valid for all dex files.
+    // Use a linked hash map as the order matters when addDexProgramData is called below.
+    Map<com.debughelper.tools.r8.dex.VirtualFile, Future<com.debughelper.tools.r8.graph.ObjectToOffsetMapping>> offsetMappingFutures = new LinkedHashMap<>();
+    for (com.debughelper.tools.r8.dex.VirtualFile newFile : distribute(executorService)) {
+      if (!newFile.isEmpty()) {
+        offsetMappingFutures
+            .put(newFile, executorService.submit(() -> {
+              com.debughelper.tools.r8.graph.ObjectToOffsetMapping mapping = newFile.computeMapping(application);
+              rewriteCodeWithJumboStrings(mapping, newFile.classes(), application);
+              return mapping;
+            }));
+      }
+    }
+
+    // Wait for all spawned futures to terminate to ensure jumbo string writing is complete.
+    com.debughelper.tools.r8.utils.ThreadUtils.awaitFutures(offsetMappingFutures.values());
+
+    // Generate the dex file contents.
+    List<Future<Boolean>> dexDataFutures = new ArrayList<>();
+    try {
+      for (VirtualFile virtualFile : offsetMappingFutures.keySet()) {
+        assert !virtualFile.isEmpty();
+        final com.debughelper.tools.r8.graph.ObjectToOffsetMapping mapping = offsetMappingFutures.get(virtualFile).get();
+        dexDataFutures.add(
+            executorService.submit(
+                () -> {
+                  byte[] result = writeDexFile(mapping);
+                  if (programConsumer != null) {
+                    programConsumer.accept(
+                        virtualFile.getId(),
+                        result,
+                        virtualFile.getClassDescriptors(),
+                        options.reporter);
+                  } else if (virtualFile.getPrimaryClassDescriptor() != null) {
+                    options
+                        .getDexFilePerClassFileConsumer()
+                        .accept(
+                            virtualFile.getPrimaryClassDescriptor(),
+                            result,
+                            virtualFile.getClassDescriptors(),
+                            options.reporter);
+                  } else {
+                    options
+                        .getDexIndexedConsumer()
+                        .accept(
+                            virtualFile.getId(),
+                            result,
+                            virtualFile.getClassDescriptors(),
+                            options.reporter);
+                  }
+                  return true;
+                }));
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while waiting for future.", e);
+    }
+
+    // Clear out the map, as it is no longer needed.
+    offsetMappingFutures.clear();
+    // Wait for all files to be processed before moving on.
+    ThreadUtils.awaitFutures(dexDataFutures);
+    // Fail if there are pending errors, e.g., the program consumers may have reported errors.
+    options.reporter.failIfPendingErrors();
+    // Supply info to all additional resource consumers.
+    supplyAdditionalConsumers(
+        application, namingLens, options, deadCode, proguardMapSupplier, proguardSeedsData);
+  }
+
   public static void supplyAdditionalConsumers(
       com.debughelper.tools.r8.graph.DexApplication application,
       com.debughelper.tools.r8.naming.NamingLens namingLens,
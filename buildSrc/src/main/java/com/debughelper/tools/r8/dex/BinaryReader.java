@@ -25,9 +25,18 @@ public abstract class BinaryReader {
   }
 
   protected BinaryReader(com.debughelper.tools.r8.origin.Origin origin, byte[] bytes) {
+    this(origin, ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Read the content of the buffer in place, from index zero to its limit. The buffer must not be
+   * modified while it is read.
+   */
+  protected BinaryReader(com.debughelper.tools.r8.origin.Origin origin, ByteBuffer buffer) {
     assert origin != null;
+    assert buffer.position() == 0;
     this.origin = origin;
-    buffer = ByteBuffer.wrap(bytes);
+    this.buffer = buffer;
   }
 
   public Origin getOrigin() {
@@ -42,6 +51,14 @@ public abstract class BinaryReader {
     return result;
   }
 
+  /** Returns a buffer sharing the given range of the content, in the current byte order. */
+  ByteBuffer slice(int offset, int size) {
+    ByteBuffer result = buffer.duplicate();
+    result.position(offset);
+    result.limit(offset + size);
+    return result.slice().order(buffer.order());
+  }
+
   int getUleb128() {
     return com.debughelper.tools.r8.utils.LebUtils.parseUleb128(this);
   }
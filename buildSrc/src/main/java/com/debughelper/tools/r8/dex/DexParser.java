@@ -60,7 +60,6 @@ import com.debughelper.tools.r8.graph.ParameterAnnotationsList;
 import com.debughelper.tools.r8.logging.Log;
 import com.debughelper.tools.r8.origin.Origin;
 import com.debughelper.tools.r8.origin.PathOrigin;
-import com.debughelper.tools.r8.utils.DefaultDiagnosticsHandler;
 import com.debughelper.tools.r8.utils.EncodedValueUtils;
 import com.debughelper.tools.r8.utils.Pair;
 import com.google.common.io.ByteStreams;
@@ -71,7 +70,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ShortBuffer;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -91,17 +89,17 @@ public class DexParser {
   private final com.debughelper.tools.r8.DiagnosticsHandler reporter;
 
   public static DexSection[] parseMapFrom(Path file) throws IOException {
-    return parseMapFrom(Files.newInputStream(file), new PathOrigin(file));
+    return parseMapFrom(DexReader.map(new PathOrigin(file), file));
   }
 
   public static DexSection[] parseMapFrom(InputStream stream, Origin origin) throws IOException {
     return parseMapFrom(new DexReader(origin, ByteStreams.toByteArray(stream)));
   }
 
-  private static DexSection[] parseMapFrom(DexReader dexReader) {
-    DexParser dexParser = new DexParser(dexReader,
-        com.debughelper.tools.r8.graph.ClassKind.PROGRAM, new com.debughelper.tools.r8.graph.DexItemFactory(), new DefaultDiagnosticsHandler());
-    return dexParser.dexSections;
+  /** Returns the sections of the dex file, reading only its header and map list. */
+  public static DexSection[] parseMapFrom(DexReader dexReader) {
+    dexReader.setByteOrder();
+    return parseMap(dexReader);
   }
 
   public void close() {
@@ -132,7 +130,7 @@ public class DexParser {
     this.dexReader = dexReader;
     this.dexItemFactory = dexItemFactory;
     dexReader.setByteOrder();
-    dexSections = parseMap();
+    dexSections = parseMap(dexReader);
     parseStringIDs();
     this.classKind = classKind;
     this.reporter = reporter;
@@ -733,7 +731,7 @@ public class DexParser {
     return new DexSection(type, 0, 0, 0);
   }
 
-  private DexSection[] parseMap() {
+  private static DexSection[] parseMap(DexReader dexReader) {
     // Read the dexSections information from the MAP.
     int mapOffset = dexReader.getUint(Constants.MAP_OFF_OFFSET);
     dexReader.position(mapOffset);
@@ -750,7 +748,7 @@ public class DexParser {
       for (int i = 0; i < result.length; i++) {
         DexSection dexSection = result[i];
         int nextOffset = i < result.length - 1 ? result[i + 1].offset : dexSection.offset;
-        Log.debug(this.getClass(), "Read section 0x%04x @ 0x%08x #items %08d size 0x%08x.",
+        Log.debug(DexParser.class, "Read section 0x%04x @ 0x%08x #items %08d size 0x%08x.",
             dexSection.type, dexSection.offset, dexSection.length, nextOffset - dexSection.offset);
       }
     }
@@ -849,7 +847,8 @@ public class DexParser {
     populateCallSites(); // Depends on MethodHandles
   }
 
-  private void populateStrings() {
+  /** Read the strings of the dex file into the item factory, for example to find the marker. */
+  public void populateStrings() {
     indexedItems.initializeStrings(stringIDs.length);
     for (int i = 0; i < stringIDs.length; i++) {
       indexedItems.setString(i, stringAt(i));
@@ -15,6 +15,10 @@ import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * {@link BinaryReader} for Dex content.
@@ -38,6 +42,25 @@ public class DexReader extends BinaryReader {
     version = parseMagic(buffer);
   }
 
+  /**
+   * Returns a reader of the dex content of the buffer, without copying it. The buffer must start
+   * with the dex header, like the buffers of {@link VDexParser#getDexFileBuffers()}.
+   */
+  public DexReader(Origin origin, ByteBuffer buffer) {
+    super(origin, buffer);
+    version = parseMagic(buffer);
+  }
+
+  /** Returns a reader of the dex file mapped into memory. */
+  public static DexReader map(Origin origin, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new com.debughelper.tools.r8.errors.CompilationError("Dex file is too large", origin);
+      }
+      return new DexReader(origin, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
   // Parse the magic header and determine the dex file version.
   private int parseMagic(ByteBuffer buffer) {
     try {
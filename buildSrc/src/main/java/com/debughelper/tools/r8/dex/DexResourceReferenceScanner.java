@@ -0,0 +1,528 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.dex;
+
+import static com.debughelper.tools.r8.dex.Constants.NO_INDEX;
+
+import com.debughelper.tools.r8.code.Const;
+import com.debughelper.tools.r8.code.Const16;
+import com.debughelper.tools.r8.code.Const4;
+import com.debughelper.tools.r8.code.ConstHigh16;
+import com.debughelper.tools.r8.code.ConstString;
+import com.debughelper.tools.r8.code.ConstStringJumbo;
+import com.debughelper.tools.r8.code.ConstWide16;
+import com.debughelper.tools.r8.code.ConstWide32;
+import com.debughelper.tools.r8.code.FillArrayData;
+import com.debughelper.tools.r8.code.InvokeInterface;
+import com.debughelper.tools.r8.code.InvokeInterfaceRange;
+import com.debughelper.tools.r8.code.InvokeVirtual;
+import com.debughelper.tools.r8.code.InvokeVirtualRange;
+import com.debughelper.tools.r8.code.NewArray;
+import com.debughelper.tools.r8.code.Sget;
+import com.debughelper.tools.r8.code.SgetShort;
+import com.debughelper.tools.r8.errors.CompilationError;
+import com.debughelper.tools.r8.graph.DexString;
+import com.debughelper.tools.r8.graph.DexValue;
+import com.debughelper.tools.r8.utils.DescriptorUtils;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Single pass over a dex file that reports the constants and references relevant for resource
+ * shrinking to a {@link com.debughelper.tools.r8.ResourceShrinker.ReferenceChecker}.
+ *
+ * <p>The scanner reads the class definitions, code items, static values and annotations directly
+ * from the dex file. No {@link com.debughelper.tools.r8.graph.DexApplication} is built: strings,
+ * types and member references are only decoded when they are reported, and instructions are only
+ * decoded as far as needed to find the next one.
+ *
+ * <p>The checker is notified of the same values as when visiting the classes read by {@link
+ * ApplicationReader}, but not necessarily in the same order.
+ */
+// The checker is the callback of the deprecated ResourceShrinker, which is the only user.
+@SuppressWarnings("deprecation")
+public final class DexResourceReferenceScanner {
+
+  private static final String INT_DESCRIPTOR = "I";
+  private static final String INT_ARRAY_DESCRIPTOR = "[I";
+
+  // Class annotations that the reader turns into inner-class and enclosing-method attributes.
+  private static final String[] ATTRIBUTE_ANNOTATIONS = {
+    "Ldalvik/annotation/EnclosingClass;",
+    "Ldalvik/annotation/EnclosingMethod;",
+    "Ldalvik/annotation/InnerClass;",
+    "Ldalvik/annotation/MemberClasses;"
+  };
+
+  // Size in code units of each instruction by opcode. Payload pseudo-instructions share the nop
+  // opcode and are sized separately.
+  private static final int[] INSTRUCTION_SIZES = new int[256];
+
+  static {
+    Arrays.fill(INSTRUCTION_SIZES, 1);
+    setSize(2, 0x02, 0x05, 0x08, 0x13, 0x15, 0x16, 0x19, 0x1a, 0x1c, 0x1f, 0x20, 0x22, 0x23, 0x29,
+        0xfe, 0xff);
+    setSizes(2, 0x2d, 0x3d);
+    setSizes(2, 0x44, 0x6d);
+    setSizes(2, 0x90, 0xaf);
+    setSizes(2, 0xd0, 0xe2);
+    setSize(3, 0x03, 0x06, 0x09, 0x14, 0x17, 0x1b, 0x24, 0x25, 0x26, 0x2a, 0x2b, 0x2c, 0xfc, 0xfd);
+    setSizes(3, 0x6e, 0x72);
+    setSizes(3, 0x74, 0x78);
+    setSize(4, 0xfa, 0xfb);
+    setSize(5, 0x18);
+  }
+
+  private static void setSize(int size, int... opcodes) {
+    for (int opcode : opcodes) {
+      INSTRUCTION_SIZES[opcode] = size;
+    }
+  }
+
+  private static void setSizes(int size, int firstOpcode, int lastOpcode) {
+    for (int opcode = firstOpcode; opcode <= lastOpcode; opcode++) {
+      INSTRUCTION_SIZES[opcode] = size;
+    }
+  }
+
+  private static final int PACKED_SWITCH_PAYLOAD = 0x0100;
+  private static final int SPARSE_SWITCH_PAYLOAD = 0x0200;
+  private static final int FILL_ARRAY_DATA_PAYLOAD = 0x0300;
+
+  private final DexReader reader;
+  private final ByteBuffer buffer;
+  private final com.debughelper.tools.r8.ResourceShrinker.ReferenceChecker callback;
+
+  private final int stringIdsOffset;
+  private final int typeIdsOffset;
+  private final int protoIdsOffset;
+  private final int fieldIdsOffset;
+  private final int methodIdsOffset;
+
+  // Decoded on first use.
+  private final String[] strings;
+  private final String[] protoDescriptors;
+
+  public DexResourceReferenceScanner(
+      DexReader reader, com.debughelper.tools.r8.ResourceShrinker.ReferenceChecker callback) {
+    this.reader = reader;
+    this.callback = callback;
+    reader.setByteOrder();
+    buffer = reader.buffer;
+    stringIdsOffset = buffer.getInt(Constants.STRING_IDS_OFF_OFFSET);
+    typeIdsOffset = buffer.getInt(Constants.TYPE_IDS_OFF_OFFSET);
+    protoIdsOffset = buffer.getInt(Constants.PROTO_IDS_OFF_OFFSET);
+    fieldIdsOffset = buffer.getInt(Constants.FIELD_IDS_OFF_OFFSET);
+    methodIdsOffset = buffer.getInt(Constants.METHOD_IDS_OFF_OFFSET);
+    strings = new String[buffer.getInt(Constants.STRING_IDS_SIZE_OFFSET)];
+    protoDescriptors = new String[buffer.getInt(Constants.PROTO_IDS_SIZE_OFFSET)];
+  }
+
+  public void scan() {
+    int classDefsSize = buffer.getInt(Constants.CLASS_DEFS_SIZE_OFFSET);
+    int classDefsOffset = buffer.getInt(Constants.CLASS_DEFS_OFF_OFFSET);
+    for (int i = 0; i < classDefsSize; i++) {
+      int classDef = classDefsOffset + i * Constants.TYPE_CLASS_DEF_ITEM_SIZE;
+      int classIndex = buffer.getInt(classDef);
+      if (!callback.shouldProcess(internalName(classIndex))) {
+        continue;
+      }
+      int annotationsOffset = buffer.getInt(classDef + 20);
+      int classDataOffset = buffer.getInt(classDef + 24);
+      int staticValuesOffset = buffer.getInt(classDef + 28);
+      if (classDataOffset != 0) {
+        scanClassData(classDataOffset, staticValuesOffset);
+      }
+      if (annotationsOffset != 0) {
+        scanAnnotationsDirectory(annotationsOffset);
+      }
+    }
+  }
+
+  private void scanClassData(int classDataOffset, int staticValuesOffset) {
+    reader.position(classDataOffset);
+    int staticFieldsSize = reader.getUleb128();
+    int instanceFieldsSize = reader.getUleb128();
+    int directMethodsSize = reader.getUleb128();
+    int virtualMethodsSize = reader.getUleb128();
+    int[] staticFields = new int[staticFieldsSize];
+    int fieldIndex = 0;
+    for (int i = 0; i < staticFieldsSize; i++) {
+      fieldIndex += reader.getUleb128();
+      reader.getUleb128(); // access flags
+      staticFields[i] = fieldIndex;
+    }
+    for (int i = 0; i < instanceFieldsSize; i++) {
+      reader.getUleb128(); // field index difference
+      reader.getUleb128(); // access flags
+    }
+    int methodsSize = directMethodsSize + virtualMethodsSize;
+    IntList codeOffsets = new IntArrayList(methodsSize);
+    for (int i = 0; i < methodsSize; i++) {
+      reader.getUleb128(); // method index difference
+      reader.getUleb128(); // access flags
+      int codeOffset = reader.getUleb128();
+      if (codeOffset != 0) {
+        codeOffsets.add(codeOffset);
+      }
+    }
+    scanStaticValues(staticFields, staticValuesOffset);
+    for (int i = 0; i < codeOffsets.size(); i++) {
+      scanCode(codeOffsets.getInt(i));
+    }
+  }
+
+  private void scanStaticValues(int[] staticFields, int staticValuesOffset) {
+    int valuesSize = 0;
+    if (staticValuesOffset != 0) {
+      reader.position(staticValuesOffset);
+      valuesSize = reader.getUleb128();
+      for (int i = 0; i < valuesSize; i++) {
+        scanFieldValue();
+      }
+    }
+    // Static fields without an explicit value hold the default value of their type.
+    for (int i = valuesSize; i < staticFields.length; i++) {
+      int fieldId = fieldIdsOffset + staticFields[i] * Constants.TYPE_FIELD_ID_ITEM_SIZE;
+      if (typeDescriptor(Short.toUnsignedInt(buffer.getShort(fieldId + 2)))
+          .equals(INT_DESCRIPTOR)) {
+        callback.referencedInt(0);
+      }
+    }
+  }
+
+  private void scanFieldValue() {
+    int header = reader.getUbyte();
+    int valueType = header & 0x1f;
+    int valueArg = header >> 5;
+    switch (valueType) {
+      case DexValue.VALUE_INT:
+        callback.referencedInt(readInt(valueArg + 1));
+        break;
+      case DexValue.VALUE_STRING:
+        callback.referencedString(string(readIndex(valueArg + 1)));
+        break;
+      case DexValue.VALUE_ARRAY:
+        int size = reader.getUleb128();
+        for (int i = 0; i < size; i++) {
+          int elementHeader = reader.getUbyte();
+          if ((elementHeader & 0x1f) == DexValue.VALUE_INT) {
+            callback.referencedInt(readInt((elementHeader >> 5) + 1));
+          } else {
+            skipValue(elementHeader);
+          }
+        }
+        break;
+      default:
+        skipValue(header);
+    }
+  }
+
+  private void scanAnnotationValue() {
+    int header = reader.getUbyte();
+    int valueType = header & 0x1f;
+    int valueArg = header >> 5;
+    switch (valueType) {
+      case DexValue.VALUE_INT:
+        callback.referencedInt(readInt(valueArg + 1));
+        break;
+      case DexValue.VALUE_STRING:
+        callback.referencedString(string(readIndex(valueArg + 1)));
+        break;
+      case DexValue.VALUE_ARRAY:
+        int size = reader.getUleb128();
+        for (int i = 0; i < size; i++) {
+          scanAnnotationValue();
+        }
+        break;
+      case DexValue.VALUE_ANNOTATION:
+        scanEncodedAnnotationElements();
+        break;
+      default:
+        skipValue(header);
+    }
+  }
+
+  private void scanEncodedAnnotationElements() {
+    reader.getUleb128(); // type index
+    int size = reader.getUleb128();
+    for (int i = 0; i < size; i++) {
+      reader.getUleb128(); // name index
+      scanAnnotationValue();
+    }
+  }
+
+  private void skipValue(int header) {
+    int valueType = header & 0x1f;
+    switch (valueType) {
+      case DexValue.VALUE_ARRAY:
+        int size = reader.getUleb128();
+        for (int i = 0; i < size; i++) {
+          skipValue(reader.getUbyte());
+        }
+        break;
+      case DexValue.VALUE_ANNOTATION:
+        reader.getUleb128(); // type index
+        int elements = reader.getUleb128();
+        for (int i = 0; i < elements; i++) {
+          reader.getUleb128(); // name index
+          skipValue(reader.getUbyte());
+        }
+        break;
+      case DexValue.VALUE_NULL:
+      case DexValue.VALUE_BOOLEAN:
+        break;
+      default:
+        reader.position(reader.position() + (header >> 5) + 1);
+    }
+  }
+
+  private int readInt(int size) {
+    long value = 0;
+    for (int i = 0; i < size; i++) {
+      value |= (long) reader.getUbyte() << (8 * i);
+    }
+    int shift = 64 - 8 * size;
+    return (int) ((value << shift) >> shift);
+  }
+
+  private int readIndex(int size) {
+    int value = 0;
+    for (int i = 0; i < size; i++) {
+      value |= reader.getUbyte() << (8 * i);
+    }
+    return value;
+  }
+
+  private void scanAnnotationsDirectory(int annotationsOffset) {
+    int classAnnotationsOffset = buffer.getInt(annotationsOffset);
+    int fieldsSize = buffer.getInt(annotationsOffset + 4);
+    int methodsSize = buffer.getInt(annotationsOffset + 8);
+    int entries = annotationsOffset + 16;
+    // Field and method annotations are laid out as (member index, annotation set offset) pairs.
+    for (int i = 0; i < fieldsSize + methodsSize; i++) {
+      scanAnnotationSet(buffer.getInt(entries + 8 * i + 4), false);
+    }
+    if (classAnnotationsOffset != 0) {
+      scanAnnotationSet(classAnnotationsOffset, true);
+    }
+  }
+
+  private void scanAnnotationSet(int setOffset, boolean isClassAnnotationSet) {
+    int size = buffer.getInt(setOffset);
+    for (int i = 0; i < size; i++) {
+      int annotationOffset = buffer.getInt(setOffset + 4 + 4 * i);
+      reader.position(annotationOffset + 1); // Skip visibility.
+      if (isClassAnnotationSet && isAttributeAnnotation()) {
+        continue;
+      }
+      scanEncodedAnnotationElements();
+    }
+  }
+
+  private boolean isAttributeAnnotation() {
+    int position = reader.position();
+    String type = typeDescriptor(reader.getUleb128());
+    reader.position(position);
+    for (String attributeAnnotation : ATTRIBUTE_ANNOTATIONS) {
+      if (type.equals(attributeAnnotation)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void scanCode(int codeOffset) {
+    int insnsSize = buffer.getInt(codeOffset + 12);
+    int insns = codeOffset + 16;
+    // Payloads may precede the fill-array-data instructions referring to them, so the offsets of
+    // the payloads of integer arrays are collected first.
+    IntSet intArrayPayloadOffsets = null;
+    IntList payloadOffsets = null;
+    int previousOpcode = -1;
+    int previousOffset = -1;
+    int offset = 0;
+    while (offset < insnsSize) {
+      int unit = unit(insns, offset);
+      int opcode = unit & 0xff;
+      int size;
+      switch (opcode) {
+        case Const4.OPCODE:
+          callback.referencedInt(((short) unit) >> 12);
+          break;
+        case Const16.OPCODE:
+        case ConstWide16.OPCODE:
+          callback.referencedInt((short) unit(insns, offset + 1));
+          break;
+        case Const.OPCODE:
+        case ConstWide32.OPCODE:
+          callback.referencedInt(int32(insns, offset + 1));
+          break;
+        case ConstHigh16.OPCODE:
+          callback.referencedInt(unit(insns, offset + 1) << 16);
+          break;
+        case ConstString.OPCODE:
+          callback.referencedString(string(unit(insns, offset + 1)));
+          break;
+        case ConstStringJumbo.OPCODE:
+          callback.referencedString(string(int32(insns, offset + 1)));
+          break;
+        case FillArrayData.OPCODE:
+          if (previousOpcode != NewArray.OPCODE
+              || typeDescriptor(unit(insns, previousOffset + 1)).equals(INT_ARRAY_DESCRIPTOR)) {
+            // Typically, new-array is right before fill-array-data. If not, assume referenced
+            // array is of integers. This can be improved later, but for now we make sure no ints
+            // are missed.
+            if (intArrayPayloadOffsets == null) {
+              intArrayPayloadOffsets = new IntOpenHashSet();
+            }
+            intArrayPayloadOffsets.add(offset + int32(insns, offset + 1));
+          }
+          break;
+        default:
+          if (opcode >= Sget.OPCODE && opcode <= SgetShort.OPCODE) {
+            referencedStaticField(unit(insns, offset + 1));
+          } else if ((opcode >= InvokeVirtual.OPCODE && opcode <= InvokeInterface.OPCODE)
+              || (opcode >= InvokeVirtualRange.OPCODE && opcode <= InvokeInterfaceRange.OPCODE)) {
+            referencedMethod(unit(insns, offset + 1));
+          } else if (unit == FILL_ARRAY_DATA_PAYLOAD) {
+            if (payloadOffsets == null) {
+              payloadOffsets = new IntArrayList();
+            }
+            payloadOffsets.add(offset);
+          }
+      }
+      switch (unit) {
+        case PACKED_SWITCH_PAYLOAD:
+          size = 4 + unit(insns, offset + 1) * 2;
+          break;
+        case SPARSE_SWITCH_PAYLOAD:
+          size = 2 + unit(insns, offset + 1) * 4;
+          break;
+        case FILL_ARRAY_DATA_PAYLOAD:
+          size = 4 + fillArrayDataUnits(insns, offset);
+          break;
+        default:
+          size = INSTRUCTION_SIZES[opcode];
+      }
+      previousOpcode = opcode;
+      previousOffset = offset;
+      offset += size;
+    }
+    if (payloadOffsets == null || intArrayPayloadOffsets == null) {
+      return;
+    }
+    for (int i = 0; i < payloadOffsets.size(); i++) {
+      int payloadOffset = payloadOffsets.getInt(i);
+      if (intArrayPayloadOffsets.contains(payloadOffset)) {
+        int data = payloadOffset + 4;
+        int units = fillArrayDataUnits(insns, payloadOffset);
+        for (int j = 0; j < units / 2; j++) {
+          // Same combination of the signed 16-bit units as when visiting the decoded payload.
+          short low = (short) unit(insns, data + 2 * j);
+          short high = (short) unit(insns, data + 2 * j + 1);
+          callback.referencedInt(high << 16 | low);
+        }
+      }
+    }
+  }
+
+  private int fillArrayDataUnits(int insns, int payloadOffset) {
+    long elementWidth = unit(insns, payloadOffset + 1);
+    long size = Integer.toUnsignedLong(int32(insns, payloadOffset + 2));
+    return (int) (size * elementWidth + 1) / 2;
+  }
+
+  private int unit(int insns, int offset) {
+    return Short.toUnsignedInt(buffer.getShort(insns + 2 * offset));
+  }
+
+  private int int32(int insns, int offset) {
+    return unit(insns, offset) | unit(insns, offset + 1) << 16;
+  }
+
+  private void referencedStaticField(int fieldIndex) {
+    int fieldId = fieldIdsOffset + fieldIndex * Constants.TYPE_FIELD_ID_ITEM_SIZE;
+    callback.referencedStaticField(
+        internalName(Short.toUnsignedInt(buffer.getShort(fieldId))),
+        string(buffer.getInt(fieldId + 4)));
+  }
+
+  private void referencedMethod(int methodIndex) {
+    int methodId = methodIdsOffset + methodIndex * Constants.TYPE_METHOD_ID_ITEM_SIZE;
+    callback.referencedMethod(
+        internalName(Short.toUnsignedInt(buffer.getShort(methodId))),
+        string(buffer.getInt(methodId + 4)),
+        protoDescriptor(Short.toUnsignedInt(buffer.getShort(methodId + 2))));
+  }
+
+  private String protoDescriptor(int protoIndex) {
+    String descriptor = protoDescriptors[protoIndex];
+    if (descriptor == null) {
+      int protoId = protoIdsOffset + protoIndex * Constants.TYPE_PROTO_ID_ITEM_SIZE;
+      int parametersOffset = buffer.getInt(protoId + 8);
+      StringBuilder builder = new StringBuilder("(");
+      if (parametersOffset != 0) {
+        int size = buffer.getInt(parametersOffset);
+        for (int i = 0; i < size; i++) {
+          builder.append(
+              typeDescriptor(Short.toUnsignedInt(buffer.getShort(parametersOffset + 4 + 2 * i))));
+        }
+      }
+      builder.append(')').append(typeDescriptor(buffer.getInt(protoId + 4)));
+      descriptor = builder.toString();
+      protoDescriptors[protoIndex] = descriptor;
+    }
+    return descriptor;
+  }
+
+  private String internalName(int typeIndex) {
+    return DescriptorUtils.descriptorToInternalName(typeDescriptor(typeIndex));
+  }
+
+  private String typeDescriptor(int typeIndex) {
+    return string(buffer.getInt(typeIdsOffset + typeIndex * Constants.TYPE_TYPE_ID_ITEM_SIZE));
+  }
+
+  private String string(int stringIndex) {
+    assert stringIndex != NO_INDEX;
+    String result = strings[stringIndex];
+    if (result == null) {
+      int position = reader.position();
+      reader.position(
+          buffer.getInt(stringIdsOffset + stringIndex * Constants.TYPE_STRING_ID_ITEM_SIZE));
+      int size = reader.getUleb128();
+      try {
+        result = decodeString(reader.position(), size);
+      } catch (UTFDataFormatException e) {
+        throw new CompilationError("Bad string format", e, reader.getOrigin());
+      }
+      reader.position(position);
+      strings[stringIndex] = result;
+    }
+    return result;
+  }
+
+  private String decodeString(int offset, int size) throws UTFDataFormatException {
+    if (buffer.hasArray()) {
+      return DexString.decode(buffer.array(), buffer.arrayOffset() + offset, size);
+    }
+    // Buffers without an accessible array, such as file mappings, are copied from up to and
+    // including the terminating zero byte.
+    int end = offset;
+    while (buffer.get(end) != 0) {
+      end++;
+    }
+    byte[] bytes = new byte[end - offset + 1];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(offset + i);
+    }
+    return DexString.decode(bytes, 0, size);
+  }
+}
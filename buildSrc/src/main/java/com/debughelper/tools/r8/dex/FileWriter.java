@@ -599,8 +599,9 @@ public class FileWriter {
     writeEncodedFields(clazz.instanceFields());
 
     boolean isSharedSynthetic = clazz.getSynthesizedFrom().size() > 1;
-    writeEncodedMethods(clazz.directMethods(), !isSharedSynthetic);
-    writeEncodedMethods(clazz.virtualMethods(), !isSharedSynthetic);
+    boolean clearBodies = options.releaseCodeAfterWriting && !isSharedSynthetic;
+    writeEncodedMethods(clazz.directMethods(), clearBodies);
+    writeEncodedMethods(clazz.virtualMethods(), clearBodies);
   }
 
   private void addStaticFieldValues(com.debughelper.tools.r8.graph.DexProgramClass clazz) {
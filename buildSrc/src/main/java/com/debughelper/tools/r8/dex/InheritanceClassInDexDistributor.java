@@ -14,7 +14,10 @@ import com.debughelper.tools.r8.graph.DexType;
 import com.debughelper.tools.r8.naming.NamingLens;
 import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.google.common.collect.Maps;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
@@ -22,7 +25,6 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,6 +49,8 @@ public class InheritanceClassInDexDistributor {
       Comparator.comparing(clazz -> clazz.type.descriptor);
 
   private static final int DEX_FULL_ENOUGH_THRESHOLD = com.debughelper.tools.r8.dex.VirtualFile.MAX_ENTRIES - 100;
+  // Number of classes resolved by one task when collecting inheritance groups.
+  private static final int RESOLUTION_CHUNK_SIZE = 1024;
   private final ExecutorService executorService;
 
   /**
@@ -58,6 +62,10 @@ public class InheritanceClassInDexDistributor {
     public int numberOfFieldIds = -1;
     public int numberOfMethodIds = -1;
     public boolean dependsOnMainDexClasses = false;
+    // Member with the smallest descriptor, to order groups that are otherwise equal.
+    private com.debughelper.tools.r8.graph.DexProgramClass firstMember;
+    // Items of the members, kept until the group is assigned if it can fit in one dex.
+    private VirtualFile.CollectedItems items;
 
     public ClassGroup() {
       members = new HashSet<>();
@@ -69,14 +77,15 @@ public class InheritanceClassInDexDistributor {
     }
 
     public void updateNumbersOfIds() {
-      // Use a temporary VirtualFile to evaluate the number of ids in the group.
-      com.debughelper.tools.r8.dex.VirtualFile virtualFile = new com.debughelper.tools.r8.dex.VirtualFile(0, namingLens);
+      // Collect the items of the group once, they give the number of ids in the group and allow to
+      // assign the whole group to a dex without walking the members again.
       // Note: sort not needed.
-      for (com.debughelper.tools.r8.graph.DexProgramClass clazz : members) {
-        virtualFile.addClass(clazz);
-      }
-      numberOfFieldIds = virtualFile.getNumberOfFields();
-      numberOfMethodIds = virtualFile.getNumberOfMethods();
+      VirtualFile.CollectedItems collected = VirtualFile.collectItems(namingLens, members);
+      numberOfFieldIds = collected.getNumberOfFields();
+      numberOfMethodIds = collected.getNumberOfMethods();
+      items = canFitInOneDex() ? collected : null;
+      firstMember =
+          members.isEmpty() ? null : Collections.min(members, DEX_PROGRAM_CLASS_COMPARATOR);
     }
 
     public boolean canFitInOneDex() {
@@ -105,9 +114,7 @@ public class InheritanceClassInDexDistributor {
       }
       // We can end up here frequently with one element groups, but it seems very unlikely if the
       // groups grow significantly bigger.
-      int result = DEX_PROGRAM_CLASS_COMPARATOR.compare(
-          getSortedCopy(members).iterator().next(),
-          getSortedCopy(other.members).iterator().next());
+      int result = DEX_PROGRAM_CLASS_COMPARATOR.compare(firstMember, other.firstMember);
       assert result != 0;
       return result;
     }
@@ -325,7 +332,7 @@ public class InheritanceClassInDexDistributor {
         // Try to assign the whole group to the main dex
         if (group.canFitInOneDex()
             && !isDexFull(mainDex)
-            && assignAll(mainDex, group.members)) {
+            && assignAll(mainDex, group)) {
           // It fitted, so work done
           continue;
         }
@@ -378,7 +385,7 @@ public class InheritanceClassInDexDistributor {
       com.debughelper.tools.r8.dex.VirtualFile currentDex;
       while (true) {
         currentDex = cycler.nextOrCreate(dex -> !dexBlackList.contains(dex) && !isDexFull(dex));
-        if (assignAll(currentDex, group.members)) {
+        if (assignAll(currentDex, group)) {
           break;
         }
       }
@@ -517,17 +524,58 @@ public class InheritanceClassInDexDistributor {
   private List<ClassGroup> collectInheritanceGroups() {
     // Considering classes are the nodes of a graph which edges are the inheritance relation between
     // classes. We just want to isolate every connected sub-graphs.
-    // To do that we just pick one node, walk through the connected sub-graph, then repeat until we
-    // have collected all nodes.
+    // To do that the direct super types of all classes are resolved in parallel, then the connected
+    // sub-graphs are merged with a union-find over the resolved edges. The order of the groups does
+    // not matter since they are sorted before being assigned.
+    List<com.debughelper.tools.r8.graph.DexProgramClass> classList = new ArrayList<>(classes);
+    int classCount = classList.size();
+    Reference2IntMap<com.debughelper.tools.r8.graph.DexProgramClass> indices =
+        new Reference2IntOpenHashMap<>(classCount);
+    indices.defaultReturnValue(-1);
+    for (int i = 0; i < classCount; i++) {
+      indices.put(classList.get(i), i);
+    }
+
+    int[][] superIndices = new int[classCount][];
+    boolean[] dependsOnMainDexClasses = new boolean[classCount];
+    Collection<Future<?>> resolutionTasks = new ArrayList<>();
+    for (int start = 0; start < classCount; start += RESOLUTION_CHUNK_SIZE) {
+      int chunkStart = start;
+      int chunkEnd = Math.min(start + RESOLUTION_CHUNK_SIZE, classCount);
+      resolutionTasks.add(executorService.submit(() -> {
+        for (int i = chunkStart; i < chunkEnd; i++) {
+          superIndices[i] = resolveSuperTypes(classList.get(i), indices, dependsOnMainDexClasses, i);
+        }
+      }));
+    }
+    awaitTasks(resolutionTasks);
 
-    Collection<com.debughelper.tools.r8.graph.DexProgramClass> remainingClasses = new HashSet<>(classes);
-    List<ClassGroup> groups = new LinkedList<>();
-    while (!remainingClasses.isEmpty()) {
-      com.debughelper.tools.r8.graph.DexProgramClass clazz = remainingClasses.iterator().next();
-      ClassGroup group = new ClassGroup();
-      groups.add(group);
-      collectGroup(remainingClasses, group, clazz);
-      assert !group.members.isEmpty();
+    int[] parents = new int[classCount];
+    for (int i = 0; i < classCount; i++) {
+      parents[i] = i;
+    }
+    for (int i = 0; i < classCount; i++) {
+      for (int superIndex : superIndices[i]) {
+        int root = findRoot(parents, i);
+        int superRoot = findRoot(parents, superIndex);
+        if (root != superRoot) {
+          parents[Math.max(root, superRoot)] = Math.min(root, superRoot);
+        }
+      }
+    }
+
+    List<ClassGroup> groups = new ArrayList<>();
+    ClassGroup[] groupOfRoot = new ClassGroup[classCount];
+    for (int i = 0; i < classCount; i++) {
+      int root = findRoot(parents, i);
+      ClassGroup group = groupOfRoot[root];
+      if (group == null) {
+        group = new ClassGroup();
+        groupOfRoot[root] = group;
+        groups.add(group);
+      }
+      group.members.add(classList.get(i));
+      group.dependsOnMainDexClasses |= dependsOnMainDexClasses[i];
     }
 
     updateGroupsNumberOfIds(groups);
@@ -535,13 +583,52 @@ public class InheritanceClassInDexDistributor {
     return groups;
   }
 
+  /**
+   * Return the indices of the direct super types of {@code clazz} that are part of the classes to
+   * distribute, and record whether one of its direct super types is in the main dex.
+   */
+  private int[] resolveSuperTypes(com.debughelper.tools.r8.graph.DexProgramClass clazz,
+      Reference2IntMap<com.debughelper.tools.r8.graph.DexProgramClass> indices,
+      boolean[] dependsOnMainDexClasses, int index) {
+    com.debughelper.tools.r8.graph.DexType[] interfaces = clazz.interfaces.values;
+    int[] result = new int[interfaces.length + 1];
+    int count = 0;
+    for (int i = -1; i < interfaces.length; i++) {
+      com.debughelper.tools.r8.graph.DexProgramClass zuper =
+          app.programDefinitionFor(i < 0 ? clazz.superType : interfaces[i]);
+      if (zuper == null) {
+        continue;
+      }
+      int superIndex = indices.getInt(zuper);
+      if (superIndex >= 0) {
+        result[count++] = superIndex;
+      } else if (mainDex.classes().contains(zuper)) {
+        dependsOnMainDexClasses[index] = true;
+      }
+    }
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+
+  private static int findRoot(int[] parents, int index) {
+    while (parents[index] != index) {
+      // Path halving.
+      parents[index] = parents[parents[index]];
+      index = parents[index];
+    }
+    return index;
+  }
+
   private void updateGroupsNumberOfIds(List<ClassGroup> groups) {
     Collection<Future<?>> updateIdsTasks = new ArrayList<>(groups.size());
     for (ClassGroup group : groups) {
       updateIdsTasks.add(executorService.submit(() -> group.updateNumbersOfIds()));
     }
+    awaitTasks(updateIdsTasks);
+  }
+
+  private static void awaitTasks(Collection<Future<?>> tasks) {
     try {
-      ThreadUtils.awaitFutures(updateIdsTasks);
+      ThreadUtils.awaitFutures(tasks);
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
       if (cause instanceof RuntimeException) {
@@ -555,58 +642,26 @@ public class InheritanceClassInDexDistributor {
     }
   }
 
-  private void collectGroup(Collection<com.debughelper.tools.r8.graph.DexProgramClass> classes, ClassGroup group,
-                            com.debughelper.tools.r8.graph.DexProgramClass clazz) {
-    if (clazz == null) {
-      return;
-    }
-    if (!classes.remove(clazz)) {
-      if (!group.dependsOnMainDexClasses) {
-        group.dependsOnMainDexClasses = mainDex.classes().contains(clazz);
-      }
-      // If the class is not in the classes list it's either that it's a non program class, part of
-      // the main dex or it was already added to this group: so either we're not interested in the
-      // class or it's dependencies and dependants are already being taken care of.
-      return;
-    }
-
-    group.members.add(clazz);
-
-    // Check dependencies are added to the group.
-    collectGroup(classes, group, app.programDefinitionFor(clazz.superType));
-    for (com.debughelper.tools.r8.graph.DexType interfaze : clazz.interfaces.values) {
-      collectGroup(classes, group, app.programDefinitionFor(interfaze));
-    }
-
-    // Check that dependants are added to the group.
-    for (com.debughelper.tools.r8.graph.DexProgramClass directSubClass : directSubClasses.getDirectSubClasses(clazz)) {
-      collectGroup(classes, group, directSubClass);
-    }
-  }
-
   /**
-   * Assign all given classes or none.
+   * Assign all the members of a group that can fit in one dex or none. The items of the group were
+   * collected when counting its ids, so retrying with another dex does not walk the members again.
    * @return true if it managed to assign all the classes, false otherwise.
    */
-  private boolean assignAll(com.debughelper.tools.r8.dex.VirtualFile dex, Collection<com.debughelper.tools.r8.graph.DexProgramClass> classes) {
-    int totalClasses = classes.size();
-    int assignedClasses = 0;
+  private boolean assignAll(com.debughelper.tools.r8.dex.VirtualFile dex, ClassGroup group) {
+    assert group.items != null;
     int dexInitialSize = dex.classes().size();
-    for (com.debughelper.tools.r8.graph.DexProgramClass clazz : classes) {
-      dex.addClass(clazz);
-      assignedClasses++;
-      if (dex.isFull()) {
-        dex.abortTransaction();
-        if (dex.isFull(DEX_FULL_ENOUGH_THRESHOLD)) {
-          markDexFull(dex);
-        }
-        assert dexInitialSize == dex.classes().size();
-        return false;
+    dex.addItems(group.items);
+    if (dex.isFull()) {
+      dex.abortTransaction();
+      if (dex.isFull(DEX_FULL_ENOUGH_THRESHOLD)) {
+        markDexFull(dex);
       }
+      assert dexInitialSize == dex.classes().size();
+      return false;
     }
     dex.commitTransaction();
-    assert totalClasses == assignedClasses
-      && dexInitialSize + assignedClasses == dex.classes().size();
+    group.items = null;
+    assert dexInitialSize + group.members.size() == dex.classes().size();
     return true;
   }
 
@@ -7,17 +7,26 @@ import static com.debughelper.tools.r8.dex.Constants.VDEX_NUMBER_OF_DEX_FILES_OF
 
 import com.debughelper.tools.r8.dex.VDexReader;
 import com.debughelper.tools.r8.errors.CompilationError;
+import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
 
 /**
  * Parse a VDEX and isolate the different dex files it contains.
+ *
+ * <p>The dex files are slices of the buffer of the {@link VDexReader}, nothing is copied unless
+ * {@link #getDexFiles()} is used.
  */
 public class VDexParser {
 
   private com.debughelper.tools.r8.dex.VDexReader vDexReader;
-  private List<byte[]> dexFiles = new ArrayList<>();
+  private List<ByteBuffer> dexFiles = new ArrayList<>();
 
   public void close() {
     vDexReader = null;
@@ -30,8 +39,54 @@ public class VDexParser {
     parseDexFiles();
   }
 
+  /** Returns a copy of the content of each dex file. */
   public List<byte[]> getDexFiles() {
-    return dexFiles;
+    List<byte[]> result = new ArrayList<>(dexFiles.size());
+    for (ByteBuffer dexFile : dexFiles) {
+      byte[] bytes = new byte[dexFile.remaining()];
+      dexFile.duplicate().get(bytes);
+      result.add(bytes);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the content of each dex file in place, see {@link
+   * DexReader#DexReader(com.debughelper.tools.r8.origin.Origin, ByteBuffer)}. Each buffer has its
+   * own position, but they all share the content of the vdex.
+   */
+  public List<ByteBuffer> getDexFileBuffers() {
+    List<ByteBuffer> result = new ArrayList<>(dexFiles.size());
+    for (ByteBuffer dexFile : dexFiles) {
+      result.add(dexFile.duplicate().order(dexFile.order()));
+    }
+    return result;
+  }
+
+  /**
+   * Check the Adler32 checksum in the header of each dex file, in parallel. Dex files quickened in
+   * place by older versions of ART fail this check, which is why parsing does not do it.
+   */
+  public void verifyChecksums(ExecutorService executorService) throws ExecutionException {
+    List<Future<?>> futures = new ArrayList<>(dexFiles.size());
+    for (int i = 0; i < dexFiles.size(); i++) {
+      ByteBuffer dexFile = dexFiles.get(i).duplicate().order(dexFiles.get(i).order());
+      int index = i;
+      futures.add(executorService.submit(() -> verifyChecksum(dexFile, index)));
+    }
+    ThreadUtils.awaitFutures(futures);
+  }
+
+  private void verifyChecksum(ByteBuffer dexFile, int index) {
+    int expected = dexFile.getInt(Constants.CHECKSUM_OFFSET);
+    Adler32 adler32 = new Adler32();
+    dexFile.position(Constants.SIGNATURE_OFFSET);
+    adler32.update(dexFile);
+    if ((int) adler32.getValue() != expected) {
+      throw new CompilationError(
+          "Invalid vdex file. Checksum mismatch for dex file " + index,
+          vDexReader.getOrigin());
+    }
   }
 
   private void parseDexFiles() {
@@ -45,8 +100,11 @@ public class VDexParser {
     int totalDexSize = 0;
     for (int i = 0; i < numberOfDexFiles; i++) {
       int size = vDexReader.getUint(offset + Constants.FILE_SIZE_OFFSET);
-      vDexReader.position(offset);
-      dexFiles.add(vDexReader.getByteArray(size));
+      if (size > vDexReader.end() - offset) {
+        throw new CompilationError(
+            "Invalid vdex file. Truncated dex file " + i, vDexReader.getOrigin());
+      }
+      dexFiles.add(vDexReader.slice(offset, size));
       totalDexSize += size;
       offset += size;
     }
@@ -16,6 +16,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * See runtime/vdex_file.h and runtime/vdex_file.cc in the Art code for the vdex file format.
@@ -25,13 +29,31 @@ public class VDexReader extends BinaryReader {
   private final int version;
 
   public VDexReader(Origin origin, InputStream stream) throws IOException {
-    super(origin, ByteStreams.toByteArray(stream));
+    this(origin, ByteBuffer.wrap(ByteStreams.toByteArray(stream)));
+  }
+
+  /**
+   * Read the vdex content of the buffer in place. The dex files found by {@link VDexParser} are
+   * slices of the buffer.
+   */
+  public VDexReader(Origin origin, ByteBuffer buffer) {
+    super(origin, buffer);
     version = parseMagic(buffer);
     if (!supportedVersion(version)) {
       throw new com.debughelper.tools.r8.errors.CompilationError("Unsupported vdex file version " + version, origin);
     }
   }
 
+  /** Returns a reader of the memory mapped file, the file is not read into the heap. */
+  public static VDexReader map(Origin origin, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new com.debughelper.tools.r8.errors.CompilationError("VDex file is too large", origin);
+      }
+      return new VDexReader(origin, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
   private static boolean supportedVersion(int versionNumber) {
     return Constants.MIN_VDEX_VERSION <= versionNumber && versionNumber <= Constants.MAX_VDEX_VERSION;
   }
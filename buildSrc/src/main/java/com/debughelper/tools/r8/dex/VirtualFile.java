@@ -26,11 +26,13 @@ import com.debughelper.tools.r8.utils.FileUtils;
 import com.debughelper.tools.r8.utils.InternalOptions;
 import com.debughelper.tools.r8.utils.Reporter;
 import com.debughelper.tools.r8.utils.StringDiagnostic;
+import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -43,6 +45,7 @@ import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -169,6 +172,26 @@ public class VirtualFile {
     transaction.addClassAndDependencies(clazz);
   }
 
+  /**
+   * Collect the indexed items of the given classes once, so that the classes can be added to any
+   * file with {@link #addItems} without walking them again.
+   */
+  static CollectedItems collectItems(
+      com.debughelper.tools.r8.naming.NamingLens namingLens,
+      Collection<com.debughelper.tools.r8.graph.DexProgramClass> classes) {
+    IndexedItemTransaction transaction =
+        new IndexedItemTransaction(new VirtualFileIndexedItemCollection(namingLens), namingLens);
+    for (com.debughelper.tools.r8.graph.DexProgramClass clazz : classes) {
+      transaction.addClassAndDependencies(clazz);
+    }
+    return new CollectedItems(transaction);
+  }
+
+  /** Same as adding each of the collected classes with {@link #addClass}. */
+  void addItems(CollectedItems items) {
+    transaction.addItems(items);
+  }
+
   public boolean isFull(int maxEntries) {
     return (transaction.getNumberOfMethods() > maxEntries)
         || (transaction.getNumberOfFields() > maxEntries);
@@ -252,6 +275,11 @@ public class VirtualFile {
         if (clazz.getSynthesizedFrom().isEmpty()) {
           VirtualFile file = new VirtualFile(virtualFiles.size(), writer.namingLens, clazz);
           virtualFiles.add(file);
+          if (writer.options.markerInDexFilePerClassFile && writer.markerStrings != null) {
+            for (com.debughelper.tools.r8.graph.DexString markerString : writer.markerStrings) {
+              file.transaction.addString(markerString);
+            }
+          }
           file.addClass(clazz);
           files.put(clazz, file);
           // Commit this early, so that we do not keep the transaction state around longer than
@@ -364,7 +392,7 @@ public class VirtualFile {
     }
 
     @Override
-    public Collection<VirtualFile> run() throws IOException {
+    public Collection<VirtualFile> run() throws ExecutionException, IOException {
       int totalClassNumber = classes.size();
       // First fill required classes into the main dex file.
       fillForMainDexList(classes);
@@ -389,6 +417,11 @@ public class VirtualFile {
         new InheritanceClassInDexDistributor(mainDexFile, filesForDistribution, classes,
             originalNames, fileIndexOffset, writer.namingLens, writer.application, executorService)
             .distribute();
+      } else if (options.packDexFiles) {
+        classes = sortClassesByPackage(classes, originalNames);
+        new PackingPopulator(filesForDistribution, classes, originalNames, fileIndexOffset,
+            writer.namingLens, executorService)
+            .run();
       } else {
         // Sort the remaining classes based on the original names.
         // This with make classes from the same package be adjacent.
@@ -508,6 +541,64 @@ public class VirtualFile {
     }
   }
 
+  /** Indexed items of a set of classes, see {@link #collectItems}. */
+  static class CollectedItems {
+
+    private final com.debughelper.tools.r8.graph.DexProgramClass[] classes;
+    private final com.debughelper.tools.r8.graph.DexField[] fields;
+    private final com.debughelper.tools.r8.graph.DexMethod[] methods;
+    private final com.debughelper.tools.r8.graph.DexType[] types;
+    private final com.debughelper.tools.r8.graph.DexProto[] protos;
+    private final com.debughelper.tools.r8.graph.DexString[] strings;
+    private final com.debughelper.tools.r8.graph.DexCallSite[] callSites;
+    private final com.debughelper.tools.r8.graph.DexMethodHandle[] methodHandles;
+
+    private CollectedItems(IndexedItemTransaction transaction) {
+      assert transaction.base.classes.isEmpty();
+      classes = transaction.classes.toArray(new com.debughelper.tools.r8.graph.DexProgramClass[0]);
+      fields = transaction.fields.toArray(new com.debughelper.tools.r8.graph.DexField[0]);
+      methods = transaction.methods.toArray(new com.debughelper.tools.r8.graph.DexMethod[0]);
+      types = transaction.types.toArray(new com.debughelper.tools.r8.graph.DexType[0]);
+      protos = transaction.protos.toArray(new com.debughelper.tools.r8.graph.DexProto[0]);
+      strings = transaction.strings.toArray(new com.debughelper.tools.r8.graph.DexString[0]);
+      callSites = transaction.callSites.toArray(new DexCallSite[0]);
+      methodHandles = transaction.methodHandles.toArray(new DexMethodHandle[0]);
+    }
+
+    int getNumberOfMethods() {
+      return methods.length;
+    }
+
+    int getNumberOfFields() {
+      return fields.length;
+    }
+
+    /**
+     * Number of string, type and proto ids already committed to {@code file}, or -1 if adding the
+     * items would make the file exceed {@code maxEntries} method or field ids.
+     */
+    int countSharedIds(VirtualFile file, int maxEntries) {
+      assert file.transaction.isEmpty();
+      VirtualFileIndexedItemCollection base = file.indexedItems;
+      if (base.getNumberOfMethods() + methods.length - countIn(methods, base.methods) > maxEntries
+          || base.getNumberOfFields() + fields.length - countIn(fields, base.fields) > maxEntries) {
+        return -1;
+      }
+      return countIn(strings, base.strings) + countIn(types, base.types)
+          + countIn(protos, base.protos);
+    }
+
+    private static <T> int countIn(T[] items, Set<T> set) {
+      int count = 0;
+      for (T item : items) {
+        if (set.contains(item)) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
   private static class IndexedItemTransaction implements IndexedItemCollection {
 
     private final VirtualFileIndexedItemCollection base;
@@ -540,6 +631,24 @@ public class VirtualFile {
       clazz.collectIndexedItems(this);
     }
 
+    void addItems(CollectedItems items) {
+      maybeInsertAll(items.classes, classes, base.classes);
+      maybeInsertAll(items.fields, fields, base.fields);
+      maybeInsertAll(items.methods, methods, base.methods);
+      maybeInsertAll(items.types, types, base.types);
+      maybeInsertAll(items.protos, protos, base.protos);
+      maybeInsertAll(items.strings, strings, base.strings);
+      maybeInsertAll(items.callSites, callSites, base.callSites);
+      maybeInsertAll(items.methodHandles, methodHandles, base.methodHandles);
+    }
+
+    private <T extends com.debughelper.tools.r8.graph.DexItem> void maybeInsertAll(
+        T[] items, Set<T> set, Set<T> baseSet) {
+      for (T item : items) {
+        maybeInsert(item, set, baseSet);
+      }
+    }
+
     @Override
     public boolean addClass(com.debughelper.tools.r8.graph.DexProgramClass dexProgramClass) {
       return maybeInsert(dexProgramClass, classes, base.classes);
@@ -630,6 +739,8 @@ public class VirtualFile {
       protos.clear();
       types.clear();
       strings.clear();
+      callSites.clear();
+      methodHandles.clear();
     }
 
     public boolean isEmpty() {
@@ -923,4 +1034,140 @@ public class VirtualFile {
     }
   }
 
+  /**
+   * Distributes the given classes over as few files as possible.
+   *
+   * <p>Classes are grouped by package, and packages bigger than 1/MAX_UNIT_FACTOR of a file are
+   * split into chunks of adjacent classes. The indexed items of each of these units are collected in
+   * parallel. Units are then placed in package order, each into the file that can hold it and
+   * already contains most of its string, type and proto ids, so that fewer ids are duplicated across
+   * files. A file is only added when none of the files can hold the unit, and as units are small
+   * compared to a file, all files but the last end up almost full.
+   *
+   * <p>The placement only depends on the order of the classes, so the result is deterministic.
+   */
+  private static class PackingPopulator {
+
+    private static final int MAX_UNIT_FACTOR = 5;
+
+    private static class Unit {
+
+      private final List<com.debughelper.tools.r8.graph.DexProgramClass> classes;
+      private final CollectedItems items;
+
+      Unit(List<com.debughelper.tools.r8.graph.DexProgramClass> classes, CollectedItems items) {
+        this.classes = classes;
+        this.items = items;
+      }
+    }
+
+    private final List<VirtualFile> files;
+    private final List<com.debughelper.tools.r8.graph.DexProgramClass> classes;
+    private final Map<com.debughelper.tools.r8.graph.DexProgramClass, String> originalNames;
+    private final com.debughelper.tools.r8.naming.NamingLens namingLens;
+    private final ExecutorService executorService;
+    private final VirtualFileCycler cycler;
+
+    PackingPopulator(
+        List<VirtualFile> files,
+        Set<com.debughelper.tools.r8.graph.DexProgramClass> classes,
+        Map<com.debughelper.tools.r8.graph.DexProgramClass, String> originalNames,
+        int fileIndexOffset,
+        com.debughelper.tools.r8.naming.NamingLens namingLens,
+        ExecutorService executorService) {
+      this.files = files;
+      this.classes = new ArrayList<>(classes);
+      this.originalNames = originalNames;
+      this.namingLens = namingLens;
+      this.executorService = executorService;
+      this.cycler = new VirtualFileCycler(files, namingLens, fileIndexOffset);
+    }
+
+    void run() throws ExecutionException {
+      List<Unit> units = collectUnits();
+      for (Unit unit : units) {
+        VirtualFile target = null;
+        int targetSharedIds = -1;
+        for (VirtualFile file : files) {
+          int sharedIds = unit.items.countSharedIds(file, MAX_ENTRIES);
+          if (sharedIds > targetSharedIds) {
+            target = file;
+            targetSharedIds = sharedIds;
+          }
+        }
+        if (target == null) {
+          target = cycler.addFile();
+        }
+        target.addItems(unit.items);
+        if (target.isFull()) {
+          // Only a unit of a single class can be too big for an empty file.
+          throw new InternalCompilerError(
+              "Class " + unit.classes.get(0).toString() + " does not fit into a single dex file.");
+        }
+        target.commitTransaction();
+      }
+    }
+
+    private String getPackageName(com.debughelper.tools.r8.graph.DexProgramClass clazz) {
+      String originalName = originalNames.get(clazz);
+      int index = originalName.lastIndexOf('.');
+      return index == -1 ? "" : originalName.substring(0, index);
+    }
+
+    private List<Unit> collectUnits() throws ExecutionException {
+      // The classes are sorted by package, so each package is a range of the list.
+      List<Future<List<Unit>>> futures = new ArrayList<>();
+      int start = 0;
+      while (start < classes.size()) {
+        String packageName = getPackageName(classes.get(start));
+        int end = start + 1;
+        while (end < classes.size() && getPackageName(classes.get(end)).equals(packageName)) {
+          end++;
+        }
+        List<com.debughelper.tools.r8.graph.DexProgramClass> packageClasses =
+            classes.subList(start, end);
+        futures.add(executorService.submit(() -> collectUnits(packageClasses)));
+        start = end;
+      }
+      ThreadUtils.awaitFutures(futures);
+      List<Unit> units = new ArrayList<>();
+      for (Future<List<Unit>> future : futures) {
+        try {
+          units.addAll(future.get());
+        } catch (InterruptedException e) {
+          throw new RuntimeException("Interrupted while waiting for future.", e);
+        }
+      }
+      return units;
+    }
+
+    private List<Unit> collectUnits(
+        List<com.debughelper.tools.r8.graph.DexProgramClass> packageClasses) {
+      int maxUnitEntries = MAX_ENTRIES / MAX_UNIT_FACTOR;
+      CollectedItems items = collectItems(namingLens, packageClasses);
+      if (items.getNumberOfMethods() <= maxUnitEntries
+          && items.getNumberOfFields() <= maxUnitEntries) {
+        return Collections.singletonList(new Unit(packageClasses, items));
+      }
+      // Split the package in chunks of adjacent classes.
+      List<Unit> units = new ArrayList<>();
+      VirtualFile chunk = new VirtualFile(0, namingLens);
+      int chunkStart = 0;
+      for (int i = 0; i < packageClasses.size(); i++) {
+        chunk.addClass(packageClasses.get(i));
+        if (chunk.isFull(maxUnitEntries) && i > chunkStart) {
+          units.add(createUnit(packageClasses.subList(chunkStart, i)));
+          chunk = new VirtualFile(0, namingLens);
+          chunk.addClass(packageClasses.get(i));
+          chunkStart = i;
+        }
+      }
+      units.add(createUnit(packageClasses.subList(chunkStart, packageClasses.size())));
+      return units;
+    }
+
+    private Unit createUnit(List<com.debughelper.tools.r8.graph.DexProgramClass> chunkClasses) {
+      return new Unit(chunkClasses, collectItems(namingLens, chunkClasses));
+    }
+  }
 }
@@ -58,7 +58,7 @@ public class DexAnnotationSet extends CachedHashValueDexItem {
     return annotations.length == 0;
   }
 
-  public void sort() {
+  public synchronized void sort() {
     if (sorted != UNSORTED) {
       assert sorted == sortedHashCode();
       return;
@@ -56,7 +56,7 @@ public class DexEncodedAnnotation extends DexItem {
     return false;
   }
 
-  public void sort() {
+  public synchronized void sort() {
     if (sorted != UNSORTED) {
       assert sorted == sortedHashCode();
       return;
@@ -72,10 +72,19 @@ public class DexString extends IndexedDexItem implements PresortedComparable<Dex
     return result;
   }
 
-  // Inspired from /dex/src/main/java/com/debughelper/dex/Mutf8.java
   private String decode() throws UTFDataFormatException {
+    return decode(content, 0, size);
+  }
+
+  /**
+   * Decode the zero-terminated MUTF-8 encoded string starting at {@code offset} in {@code content}
+   * with the given size in UTF-16 code units.
+   */
+  // Inspired from /dex/src/main/java/com/debughelper/dex/Mutf8.java
+  public static String decode(byte[] content, int offset, int size)
+      throws UTFDataFormatException {
     int s = 0;
-    int p = 0;
+    int p = offset;
     char[] out = new char[size];
     while (true) {
       char a = (char) (content[p++] & 0xff);
@@ -13,6 +13,7 @@ import com.debughelper.tools.r8.ir.analysis.type.TypeAnalysis;
 import com.debughelper.tools.r8.ir.analysis.type.TypeEnvironment;
 import com.debughelper.tools.r8.ir.conversion.CallSiteInformation;
 import com.debughelper.tools.r8.ir.conversion.LensCodeRewriter;
+import com.debughelper.tools.r8.ir.conversion.MethodProfiler.Pass;
 import com.debughelper.tools.r8.ir.conversion.OptimizationFeedback;
 import com.debughelper.tools.r8.ir.conversion.OptimizationFeedbackDirect;
 import com.debughelper.tools.r8.ir.conversion.OptimizationFeedbackIgnore;
@@ -68,6 +69,8 @@ import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.debughelper.tools.r8.utils.Timing;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -75,6 +78,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -98,6 +102,7 @@ public class IRConverter {
   private final ClassInliner classInliner;
   private final com.debughelper.tools.r8.utils.InternalOptions options;
   private final com.debughelper.tools.r8.utils.CfgPrinter printer;
+  private final MethodProfiler methodProfiler;
   private final com.debughelper.tools.r8.graph.GraphLense graphLense;
   private final CodeRewriter codeRewriter;
   private final MemberValuePropagation memberValuePropagation;
@@ -128,6 +133,7 @@ public class IRConverter {
     this.graphLense = graphLense != null ? graphLense : com.debughelper.tools.r8.graph.GraphLense.getIdentityLense();
     this.options = options;
     this.printer = printer;
+    this.methodProfiler = MethodProfiler.create(options);
     this.codeRewriter = new CodeRewriter(appInfo, libraryMethodsReturningReceiver(), options);
     this.stringConcatRewriter = new StringConcatRewriter(options.itemFactory);
     this.lambdaRewriter = options.enableDesugaring ? new LambdaRewriter(this) : null;
@@ -288,6 +294,14 @@ public class IRConverter {
     return builder.build();
   }
 
+  /**
+   * Report the per-method timings collected by this converter, if enabled by
+   * {@link InternalOptions#printMethodTimes}.
+   */
+  public void reportMethodTimes() throws IOException {
+    methodProfiler.report();
+  }
+
   private void handleSynthesizedClassMapping(com.debughelper.tools.r8.graph.DexApplication.Builder<?> builder) {
     if (options.intermediate) {
       updateSynthesizedClassMapping(builder);
@@ -454,16 +468,26 @@ public class IRConverter {
     if (outliner != null) {
       timing.begin("IR conversion phase 2");
       if (outliner.selectMethodsForOutlining()) {
+        // The IR of some of the selected methods is kept from identifying the outline sites to
+        // applying the outlines, as it would otherwise be built again from the same code.
+        Set<com.debughelper.tools.r8.graph.DexEncodedMethod> retainIR = selectOutliningMethodsToRetainIR();
+        Map<com.debughelper.tools.r8.graph.DexEncodedMethod, com.debughelper.tools.r8.ir.code.IRCode> retainedIR =
+            new ConcurrentHashMap<>();
         forEachSelectedOutliningMethod(
             executorService,
+            retainedIR,
             (code, method) -> {
               printMethod(code, "IR before outlining (SSA)");
               outliner.identifyOutlineSites(code, method);
+              if (retainIR.contains(method)) {
+                retainedIR.put(method, code);
+              }
             });
         com.debughelper.tools.r8.graph.DexProgramClass outlineClass = outliner.buildOutlinerClass(computeOutlineClassType());
         optimizeSynthesizedClass(outlineClass);
         forEachSelectedOutliningMethod(
             executorService,
+            retainedIR,
             (code, method) -> {
               outliner.applyOutliningCandidate(code, method);
               printMethod(code, "IR after outlining (SSA)");
@@ -484,8 +508,31 @@ public class IRConverter {
     return builder.build();
   }
 
+  /**
+   * Select the methods selected for outlining to keep the IR of between identifying the outline
+   * sites and applying the outlines, within {@link OutlineOptions#retainedIRSize}.
+   */
+  private Set<com.debughelper.tools.r8.graph.DexEncodedMethod> selectOutliningMethodsToRetainIR() {
+    Set<com.debughelper.tools.r8.graph.DexEncodedMethod> result = Sets.newIdentityHashSet();
+    int size = 0;
+    for (com.debughelper.tools.r8.graph.DexEncodedMethod method : outliner.getMethodsSelectedForOutlining()) {
+      int methodSize = method.getCode().estimatedSizeForInlining();
+      if (size + methodSize <= options.outline.retainedIRSize) {
+        result.add(method);
+        size += methodSize;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Pass the IR of each method selected for outlining to the consumer. The IR is taken from
+   * {@code retainedIR} if present there, and otherwise built from the code of the method.
+   */
   private void forEachSelectedOutliningMethod(
-      ExecutorService executorService, BiConsumer<com.debughelper.tools.r8.ir.code.IRCode, com.debughelper.tools.r8.graph.DexEncodedMethod> consumer)
+      ExecutorService executorService,
+      Map<com.debughelper.tools.r8.graph.DexEncodedMethod, com.debughelper.tools.r8.ir.code.IRCode> retainedIR,
+      BiConsumer<com.debughelper.tools.r8.ir.code.IRCode, com.debughelper.tools.r8.graph.DexEncodedMethod> consumer)
       throws ExecutionException {
     assert !options.skipIR;
     Set<com.debughelper.tools.r8.graph.DexEncodedMethod> methods = outliner.getMethodsSelectedForOutlining();
@@ -494,16 +541,18 @@ public class IRConverter {
       futures.add(
           executorService.submit(
               () -> {
-                com.debughelper.tools.r8.ir.code.IRCode code =
-                    method.buildIR(appInfo, options, appInfo.originFor(method.method.holder));
-                assert code != null;
-                assert !method.getCode().isOutlineCode();
-                // Instead of repeating all the optimizations of rewriteCode(), only run the
-                // optimizations needed for outlining: rewriteMoveResult() to remove out-values on
-                // StringBuilder/StringBuffer method invocations, and removeDeadCode() to remove
-                // unused out-values.
-                codeRewriter.rewriteMoveResult(code);
-                DeadCodeRemover.removeDeadCode(code, codeRewriter, graphLense, options);
+                com.debughelper.tools.r8.ir.code.IRCode code = retainedIR.remove(method);
+                if (code == null) {
+                  code = method.buildIR(appInfo, options, appInfo.originFor(method.method.holder));
+                  assert code != null;
+                  assert !method.getCode().isOutlineCode();
+                  // Instead of repeating all the optimizations of rewriteCode(), only run the
+                  // optimizations needed for outlining: rewriteMoveResult() to remove out-values on
+                  // StringBuilder/StringBuffer method invocations, and removeDeadCode() to remove
+                  // unused out-values.
+                  codeRewriter.rewriteMoveResult(code);
+                  DeadCodeRemover.removeDeadCode(code, codeRewriter, graphLense, options);
+                }
                 consumer.accept(code, method);
                 return null;
               }));
@@ -625,6 +674,21 @@ public class IRConverter {
       Predicate<com.debughelper.tools.r8.graph.DexEncodedMethod> isProcessedConcurrently,
       CallSiteInformation callSiteInformation,
       BiConsumer<com.debughelper.tools.r8.ir.code.IRCode, com.debughelper.tools.r8.graph.DexEncodedMethod> outlineHandler) {
+    methodProfiler.begin(method);
+    try {
+      rewriteCodeInternal(
+          method, feedback, isProcessedConcurrently, callSiteInformation, outlineHandler);
+    } finally {
+      methodProfiler.finish();
+    }
+  }
+
+  private void rewriteCodeInternal(
+      DexEncodedMethod method,
+      OptimizationFeedback feedback,
+      Predicate<DexEncodedMethod> isProcessedConcurrently,
+      CallSiteInformation callSiteInformation,
+      BiConsumer<IRCode, DexEncodedMethod> outlineHandler) {
     if (options.verbose) {
       options.reporter.info(
           new StringDiagnostic("Processing: " + method.toSourceString()));
@@ -637,11 +701,14 @@ public class IRConverter {
       feedback.markProcessed(method, Constraint.NEVER);
       return;
     }
+    long start = methodProfiler.start();
     com.debughelper.tools.r8.ir.code.IRCode code = method.buildIR(appInfo, options, appInfo.originFor(method.method.holder));
+    methodProfiler.end(Pass.BUILD_IR, start);
     if (code == null) {
       feedback.markProcessed(method, Constraint.NEVER);
       return;
     }
+    methodProfiler.recordSize(code);
     if (com.debughelper.tools.r8.logging.Log.ENABLED) {
       com.debughelper.tools.r8.logging.Log.debug(getClass(), "Initial (SSA) flow graph for %s:\n%s", method.toSourceString(), code);
     }
@@ -688,15 +755,18 @@ public class IRConverter {
     }
     TypeEnvironment typeEnvironment = TypeAnalysis.getDefaultTypeEnvironment();
     if (options.enableInlining && inliner != null) {
+      start = methodProfiler.start();
       typeEnvironment = new TypeAnalysis(appInfo, method, code);
       // TODO(zerny): Should we support inlining in debug mode? b/62937285
       assert !options.debug;
       inliner.performInlining(
           method, code, typeEnvironment, isProcessedConcurrently, callSiteInformation);
+      methodProfiler.end(Pass.INLINER, start);
     }
     if (devirtualizer != null) {
       devirtualizer.devirtualizeInvokeInterface(code, typeEnvironment, method.method.getHolder());
     }
+    start = methodProfiler.start();
     codeRewriter.removeCasts(code, typeEnvironment);
     codeRewriter.rewriteLongCompareAndRequireNonNull(code, options);
     codeRewriter.commonSubexpressionElimination(code);
@@ -707,6 +777,7 @@ public class IRConverter {
     codeRewriter.rewriteSwitch(code);
     codeRewriter.processMethodsNeverReturningNormally(code);
     codeRewriter.simplifyIf(code, typeEnvironment);
+    methodProfiler.end(Pass.CODE_REWRITER, start);
 
     if (options.testing.invertConditionals) {
       invertConditionalsForTesting(code);
@@ -729,6 +800,7 @@ public class IRConverter {
     DeadCodeRemover.removeDeadCode(code, codeRewriter, graphLense, options);
     assert code.isConsistentSSA();
 
+    start = methodProfiler.start();
     if (options.enableDesugaring && enableTryWithResourcesDesugaring()) {
       codeRewriter.rewriteThrowableAddAndGetSuppressed(code);
     }
@@ -744,6 +816,7 @@ public class IRConverter {
       interfaceMethodRewriter.rewriteMethodReferences(method, code);
       assert code.isConsistentSSA();
     }
+    methodProfiler.end(Pass.DESUGARING, start);
     if (lambdaMerger != null) {
       lambdaMerger.processMethodCode(method, code);
       assert code.isConsistentSSA();
@@ -751,15 +824,19 @@ public class IRConverter {
 
     if (classInliner != null) {
       assert options.enableInlining && inliner != null;
+      start = methodProfiler.start();
       classInliner.processMethodCode(
           appInfo.withSubtyping(), method, code, isProcessedConcurrently,
           methodsToInline -> inliner.performForcedInlining(method, code, methodsToInline)
       );
+      methodProfiler.end(Pass.INLINER, start);
       assert code.isConsistentSSA();
     }
 
     if (options.outline.enabled) {
+      start = methodProfiler.start();
       outlineHandler.accept(code, method);
+      methodProfiler.end(Pass.OUTLINER, start);
       assert code.isConsistentSSA();
     }
 
@@ -848,8 +925,11 @@ public class IRConverter {
     DeadCodeRemover.removeDeadCode(code, codeRewriter, graphLense, options);
     materializeInstructionBeforeLongOperationsWorkaround(code);
     workaroundForwardingInitializerBug(code);
+    long start = methodProfiler.start();
     com.debughelper.tools.r8.ir.regalloc.LinearScanRegisterAllocator registerAllocator = new LinearScanRegisterAllocator(code, options);
     registerAllocator.allocateRegisters(options.debug);
+    methodProfiler.end(Pass.REGISTER_ALLOCATION, start);
+    methodProfiler.recordRegisters(registerAllocator.registersUsed());
     if (options.canHaveExceptionTargetingLoopHeaderBug()) {
       codeRewriter.workaroundExceptionTargetingLoopHeaderBug(code);
     }
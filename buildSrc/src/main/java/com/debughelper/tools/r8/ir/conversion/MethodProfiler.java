@@ -0,0 +1,259 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.ir.conversion;
+
+import com.debughelper.tools.r8.graph.DexEncodedMethod;
+import com.debughelper.tools.r8.graph.DexMethod;
+import com.debughelper.tools.r8.ir.code.BasicBlock;
+import com.debughelper.tools.r8.ir.code.IRCode;
+import com.debughelper.tools.r8.utils.InternalOptions;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Opt-in per-method profiling of the IR processing done by {@link IRConverter}.
+ *
+ * <p>Each processing thread appends records to its own buffer, so recording does not synchronize
+ * between threads. The buffers are only merged when the report is produced, which must happen
+ * after all processing has finished.
+ *
+ * <p>Usage from the converter:
+ *
+ * <pre>
+ *   profiler.begin(method);
+ *   try {
+ *     long start = profiler.start();
+ *     ...
+ *     profiler.end(Pass.INLINER, start);
+ *   } finally {
+ *     profiler.finish();
+ *   }
+ * </pre>
+ */
+public class MethodProfiler {
+
+  public enum Pass {
+    BUILD_IR("build IR"),
+    CODE_REWRITER("code rewriter"),
+    INLINER("inliner"),
+    DESUGARING("desugaring"),
+    OUTLINER("outliner"),
+    REGISTER_ALLOCATION("register allocation");
+
+    private final String title;
+
+    Pass(String title) {
+      this.title = title;
+    }
+  }
+
+  private static final Pass[] PASSES = Pass.values();
+
+  private static final MethodProfiler DISABLED = new MethodProfiler(false, null, 0);
+
+  static class Record {
+    final DexEncodedMethod method;
+    final long startTime;
+    final long[] passTimes = new long[PASSES.length];
+    long duration = -1;
+    int blocks = -1;
+    int instructions = -1;
+    int registers = -1;
+
+    Record(DexEncodedMethod method) {
+      this.method = method;
+      this.startTime = System.nanoTime();
+    }
+  }
+
+  private static class Buffer {
+    final List<Record> records = new ArrayList<>();
+    // Processing a method can trigger processing of synthesized methods on the same thread.
+    final ArrayDeque<Record> active = new ArrayDeque<>();
+  }
+
+  private final boolean enabled;
+  private final String outputFile;
+  private final int reportLimit;
+  private final Queue<Buffer> buffers = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<Buffer> buffer = ThreadLocal.withInitial(this::createBuffer);
+
+  private MethodProfiler(boolean enabled, String outputFile, int reportLimit) {
+    this.enabled = enabled;
+    this.outputFile = outputFile;
+    this.reportLimit = reportLimit;
+  }
+
+  public static MethodProfiler create(InternalOptions options) {
+    if (!options.printMethodTimes) {
+      return DISABLED;
+    }
+    return new MethodProfiler(
+        true, options.printMethodTimesFile, options.printMethodTimesLimit);
+  }
+
+  private Buffer createBuffer() {
+    Buffer result = new Buffer();
+    buffers.add(result);
+    return result;
+  }
+
+  public void begin(DexEncodedMethod method) {
+    if (enabled) {
+      buffer.get().active.push(new Record(method));
+    }
+  }
+
+  public void finish() {
+    if (enabled) {
+      Buffer current = buffer.get();
+      Record record = current.active.pop();
+      record.duration = System.nanoTime() - record.startTime;
+      current.records.add(record);
+    }
+  }
+
+  public long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  public void end(Pass pass, long start) {
+    if (enabled) {
+      Record record = buffer.get().active.peek();
+      if (record != null) {
+        record.passTimes[pass.ordinal()] += System.nanoTime() - start;
+      }
+    }
+  }
+
+  public void recordSize(IRCode code) {
+    if (enabled) {
+      Record record = buffer.get().active.peek();
+      if (record != null) {
+        int instructions = 0;
+        for (BasicBlock block : code.blocks) {
+          instructions += block.getInstructions().size();
+        }
+        record.blocks = code.blocks.size();
+        record.instructions = instructions;
+      }
+    }
+  }
+
+  public void recordRegisters(int registers) {
+    if (enabled) {
+      Record record = buffer.get().active.peek();
+      if (record != null) {
+        record.registers = registers;
+      }
+    }
+  }
+
+  private List<Record> collectRecords() {
+    List<Record> records = new ArrayList<>();
+    for (Buffer buffer : buffers) {
+      assert buffer.active.isEmpty();
+      records.addAll(buffer.records);
+    }
+    records.sort(
+        Comparator.comparingLong((Record record) -> record.duration)
+            .reversed()
+            .thenComparing(record -> record.method.method, DexMethod::slowCompareTo));
+    return records;
+  }
+
+  /**
+   * Print the slowest methods to stdout, or write all records as JSON if an output file is set.
+   */
+  public void report() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    List<Record> records = collectRecords();
+    if (outputFile == null || outputFile.isEmpty()) {
+      printReport(records);
+    } else {
+      try (Writer writer =
+          new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8)) {
+        new GsonBuilder().setPrettyPrinting().create().toJson(toJson(records), writer);
+      }
+    }
+  }
+
+  private void printReport(List<Record> records) {
+    long total = 0;
+    long[] passTotals = new long[PASSES.length];
+    for (Record record : records) {
+      total += record.duration;
+      for (int i = 0; i < PASSES.length; i++) {
+        passTotals[i] += record.passTimes[i];
+      }
+    }
+    System.out.println();
+    System.out.println(
+        "Recorded method timings for " + records.size() + " methods: " + toMillis(total) + "ms.");
+    for (Pass pass : PASSES) {
+      System.out.println("  - " + pass.title + ": " + toMillis(passTotals[pass.ordinal()]) + "ms.");
+    }
+    int limit = Math.min(reportLimit, records.size());
+    System.out.println("Slowest " + limit + " methods:");
+    for (int i = 0; i < limit; i++) {
+      Record record = records.get(i);
+      StringBuilder builder = new StringBuilder("  - ");
+      builder
+          .append(record.method.toSourceString())
+          .append(": ")
+          .append(toMillis(record.duration))
+          .append("ms, blocks: ")
+          .append(record.blocks)
+          .append(", instructions: ")
+          .append(record.instructions)
+          .append(", registers: ")
+          .append(record.registers);
+      for (Pass pass : PASSES) {
+        long time = record.passTimes[pass.ordinal()];
+        if (time > 0) {
+          builder.append(", ").append(pass.title).append(": ").append(toMillis(time)).append("ms");
+        }
+      }
+      System.out.println(builder);
+    }
+  }
+
+  private static JsonArray toJson(List<Record> records) {
+    JsonArray result = new JsonArray();
+    for (Record record : records) {
+      JsonObject object = new JsonObject();
+      object.addProperty("method", record.method.toSourceString());
+      object.addProperty("nanos", record.duration);
+      object.addProperty("blocks", record.blocks);
+      object.addProperty("instructions", record.instructions);
+      object.addProperty("registers", record.registers);
+      JsonObject passes = new JsonObject();
+      for (Pass pass : PASSES) {
+        passes.addProperty(pass.name().toLowerCase(Locale.ROOT), record.passTimes[pass.ordinal()]);
+      }
+      object.add("passes", passes);
+      result.add(object);
+    }
+    return result;
+  }
+
+  private static long toMillis(long nanos) {
+    return nanos / 1000000;
+  }
+}
@@ -0,0 +1,364 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.ir.desugar;
+
+import com.debughelper.tools.r8.ClassFileResourceProvider;
+import com.debughelper.tools.r8.DataResourceProvider;
+import com.debughelper.tools.r8.DexFilePerClassFileConsumer;
+import com.debughelper.tools.r8.DiagnosticsHandler;
+import com.debughelper.tools.r8.ProgramResource;
+import com.debughelper.tools.r8.ProgramResource.Kind;
+import com.debughelper.tools.r8.ProgramResourceProvider;
+import com.debughelper.tools.r8.ResourceException;
+import com.debughelper.tools.r8.Version;
+import com.debughelper.tools.r8.dex.Marker;
+import com.debughelper.tools.r8.origin.Origin;
+import com.debughelper.tools.r8.utils.AndroidApp;
+import com.debughelper.tools.r8.utils.DescriptorUtils;
+import com.debughelper.tools.r8.utils.ExceptionDiagnostic;
+import com.debughelper.tools.r8.utils.InternalOptions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Cache of the dex output of D8 for single class-file inputs, including the lambda classes and
+ * interface companion classes synthesized for them.
+ *
+ * <p>The cache only applies when D8 produces one dex file per class-file input. The output for a
+ * class is stored under a key that covers the compiler version and the options that affect
+ * desugaring, the bytes of the class, and the bytes of every type the class references together
+ * with the supertypes of those types. That is everything the output of the class is computed from,
+ * so an entry is only reused when a fresh compilation would produce the same bytes. Classes with
+ * an entry are removed from the input and their cached output is passed to the consumer directly.
+ */
+public class DesugaredOutputCache {
+
+  private static final String EXTENSION = ".dexcache";
+
+  private final Path directory;
+  private final AndroidApp app;
+  private final InternalOptions options;
+  private final String optionsKey;
+
+  // Class bytes by descriptor for the class-file program inputs.
+  private final Map<String, byte[]> programClasses = new HashMap<>();
+  // Hash of the bytes of a single type, memoized while computing the keys.
+  private final Map<String, String> typeHashes = new HashMap<>();
+  private final Map<String, List<String>> superTypes = new HashMap<>();
+  // Keys of the classes compiled in this run, by descriptor.
+  private final Map<String, String> pendingKeys = new ConcurrentHashMap<>();
+  private final Set<String> cachedClasses = new HashSet<>();
+
+  private DesugaredOutputCache(
+      Path directory, AndroidApp app, InternalOptions options, Marker marker) {
+    this.directory = directory;
+    this.app = app;
+    this.options = options;
+    this.optionsKey =
+        String.join(
+            ",",
+            Version.LABEL,
+            String.valueOf(marker),
+            Integer.toString(options.minApiLevel),
+            Boolean.toString(options.debug),
+            Boolean.toString(options.intermediate),
+            Boolean.toString(options.enableDesugaring),
+            options.interfaceMethodDesugaring.name(),
+            options.tryWithResourcesDesugaring.name());
+  }
+
+  /**
+   * Returns the cache configured for the compilation, or null if the cache is disabled or does not
+   * apply to the compilation.
+   */
+  public static DesugaredOutputCache create(
+      AndroidApp app, InternalOptions options, Marker marker) {
+    if (options.desugaredOutputCacheDirectory == null
+        || !options.isGeneratingDexFilePerClassFile()
+        || options.hasMethodsFilter()) {
+      return null;
+    }
+    return new DesugaredOutputCache(
+        Paths.get(options.desugaredOutputCacheDirectory), app, options, marker);
+  }
+
+  /**
+   * Passes the cached output of unchanged classes to the program consumer and returns the app
+   * with the remaining classes to compile. The program consumer of the options is replaced with
+   * one that also stores the output of the compiled classes in the cache.
+   */
+  public AndroidApp apply() throws IOException, ResourceException {
+    for (ProgramResource resource : app.computeAllProgramResources()) {
+      Set<String> descriptors = resource.getClassDescriptors();
+      if (resource.getKind() != Kind.CF || descriptors == null || descriptors.size() != 1) {
+        // Dex inputs, or inputs without a known class, are not cached.
+        return app;
+      }
+      try (InputStream stream = resource.getByteStream()) {
+        programClasses.put(descriptors.iterator().next(), ByteStreams.toByteArray(stream));
+      }
+    }
+    DexFilePerClassFileConsumer consumer = options.getDexFilePerClassFileConsumer();
+    for (Map.Entry<String, byte[]> entry : new TreeMap<>(programClasses).entrySet()) {
+      String descriptor = entry.getKey();
+      String key = computeKey(descriptor, entry.getValue());
+      Path file = directory.resolve(key + EXTENSION);
+      if (Files.exists(file) && emitCachedOutput(descriptor, file, consumer)) {
+        cachedClasses.add(descriptor);
+      } else {
+        pendingKeys.put(descriptor, key);
+      }
+    }
+    options.programConsumer = new CachingConsumer(consumer);
+    if (cachedClasses.isEmpty()) {
+      return app;
+    }
+    AndroidApp.Builder builder = AndroidApp.builder();
+    for (ProgramResourceProvider provider : app.getProgramResourceProviders()) {
+      builder.addProgramResourceProvider(new FilteredProvider(provider, cachedClasses));
+    }
+    app.getClasspathResourceProviders().forEach(builder::addClasspathResourceProvider);
+    app.getLibraryResourceProviders().forEach(builder::addLibraryResourceProvider);
+    return builder.build();
+  }
+
+  private boolean emitCachedOutput(
+      String descriptor, Path file, DexFilePerClassFileConsumer consumer) {
+    Set<String> descriptors = new HashSet<>();
+    byte[] data;
+    try (DataInputStream input = new DataInputStream(Files.newInputStream(file))) {
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        descriptors.add(input.readUTF());
+      }
+      data = new byte[input.readInt()];
+      input.readFully(data);
+    } catch (IOException e) {
+      // A broken entry is recomputed and overwritten.
+      return false;
+    }
+    consumer.accept(descriptor, data, descriptors, options.reporter);
+    return true;
+  }
+
+  private String computeKey(String descriptor, byte[] bytes) {
+    // Every type referenced by the class, and every supertype of those, in a stable order.
+    Set<String> dependencies = new TreeSet<>();
+    Deque<String> worklist = new ArrayDeque<>(referencedTypes(bytes));
+    worklist.add(descriptor);
+    while (!worklist.isEmpty()) {
+      String type = worklist.removeFirst();
+      if (dependencies.add(type)) {
+        typeHash(type);
+        worklist.addAll(superTypes.getOrDefault(type, Collections.emptyList()));
+      }
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(optionsKey, StandardCharsets.UTF_8);
+    // Classes referencing each other have the same dependencies, the class itself tells them apart.
+    hasher.putString(descriptor, StandardCharsets.UTF_8);
+    for (String dependency : dependencies) {
+      hasher.putString(dependency, StandardCharsets.UTF_8);
+      hasher.putString(typeHash(dependency), StandardCharsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  private String typeHash(String descriptor) {
+    String hash = typeHashes.get(descriptor);
+    if (hash != null) {
+      return hash;
+    }
+    // The kind is part of the hash as desugaring treats program, classpath and library types
+    // differently.
+    String kind = "P";
+    byte[] bytes = programClasses.get(descriptor);
+    if (bytes == null) {
+      kind = "C";
+      bytes = lookup(app.getClasspathResourceProviders(), descriptor);
+    }
+    if (bytes == null) {
+      kind = "L";
+      bytes = lookup(app.getLibraryResourceProviders(), descriptor);
+    }
+    if (bytes == null) {
+      hash = "missing";
+      superTypes.put(descriptor, Collections.emptyList());
+    } else {
+      hash = kind + Hashing.sha256().hashBytes(bytes).toString();
+      superTypes.put(descriptor, superTypes(bytes));
+    }
+    typeHashes.put(descriptor, hash);
+    return hash;
+  }
+
+  private static byte[] lookup(List<ClassFileResourceProvider> providers, String descriptor) {
+    for (ClassFileResourceProvider provider : providers) {
+      ProgramResource resource = provider.getProgramResource(descriptor);
+      if (resource != null) {
+        try (InputStream stream = resource.getByteStream()) {
+          return ByteStreams.toByteArray(stream);
+        } catch (IOException | ResourceException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static List<String> superTypes(byte[] bytes) {
+    ClassReader reader = new ClassReader(bytes);
+    List<String> result = new ArrayList<>();
+    if (reader.getSuperName() != null) {
+      result.add(DescriptorUtils.getDescriptorFromClassBinaryName(reader.getSuperName()));
+    }
+    for (String iface : reader.getInterfaces()) {
+      result.add(DescriptorUtils.getDescriptorFromClassBinaryName(iface));
+    }
+    return result;
+  }
+
+  /** Collect the descriptors of the class constants and of the types in all descriptors. */
+  private static Set<String> referencedTypes(byte[] bytes) {
+    ClassReader reader = new ClassReader(bytes);
+    Set<String> result = new HashSet<>();
+    for (int i = 1; i < reader.getItemCount(); i++) {
+      int offset = reader.getItem(i);
+      if (offset == 0) {
+        // Second slot of a long or double constant.
+        continue;
+      }
+      int tag = bytes[offset - 1];
+      if (tag == 7) {
+        // CONSTANT_Class
+        String name = utf8(reader, bytes, reader.readUnsignedShort(offset));
+        if (name.startsWith("[")) {
+          addDescriptorTypes(name, result);
+        } else {
+          result.add(DescriptorUtils.getDescriptorFromClassBinaryName(name));
+        }
+      } else if (tag == 1) {
+        // CONSTANT_Utf8, any descriptor or signature.
+        addDescriptorTypes(
+            new String(
+                bytes, offset + 2, reader.readUnsignedShort(offset), StandardCharsets.UTF_8),
+            result);
+      }
+    }
+    return result;
+  }
+
+  private static String utf8(ClassReader reader, byte[] bytes, int index) {
+    int offset = reader.getItem(index);
+    return new String(bytes, offset + 2, reader.readUnsignedShort(offset), StandardCharsets.UTF_8);
+  }
+
+  private static void addDescriptorTypes(String value, Set<String> result) {
+    int start = value.indexOf('L');
+    while (start >= 0) {
+      int end = value.indexOf(';', start);
+      if (end < 0) {
+        return;
+      }
+      String candidate = value.substring(start, end + 1);
+      if (candidate.indexOf('<') < 0
+          && candidate.indexOf(' ') < 0
+          && candidate.indexOf('(') < 0
+          && candidate.indexOf(')') < 0) {
+        result.add(candidate);
+      }
+      start = value.indexOf('L', start + 1);
+    }
+  }
+
+  private void store(String key, byte[] data, Set<String> descriptors) throws IOException {
+    Files.createDirectories(directory);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 256);
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeInt(descriptors.size());
+      for (String descriptor : new TreeSet<>(descriptors)) {
+        output.writeUTF(descriptor);
+      }
+      output.writeInt(data.length);
+      output.write(data);
+    }
+    Path temp = Files.createTempFile(directory, key, ".tmp");
+    Files.write(temp, bytes.toByteArray());
+    Files.move(temp, directory.resolve(key + EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private class CachingConsumer extends DexFilePerClassFileConsumer.ForwardingConsumer {
+
+    CachingConsumer(DexFilePerClassFileConsumer consumer) {
+      super(consumer);
+    }
+
+    @Override
+    public void accept(
+        String primaryClassDescriptor,
+        byte[] data,
+        Set<String> descriptors,
+        DiagnosticsHandler handler) {
+      String key = pendingKeys.remove(primaryClassDescriptor);
+      if (key != null) {
+        try {
+          store(key, data, descriptors);
+        } catch (IOException e) {
+          // The cache is an optimization, a failure to write it should not fail the compilation.
+          handler.warning(new ExceptionDiagnostic(e, Origin.unknown()));
+        }
+      }
+      super.accept(primaryClassDescriptor, data, descriptors, handler);
+    }
+  }
+
+  private static class FilteredProvider implements ProgramResourceProvider {
+
+    private final ProgramResourceProvider provider;
+    private final Set<String> excluded;
+
+    FilteredProvider(ProgramResourceProvider provider, Set<String> excluded) {
+      this.provider = provider;
+      this.excluded = excluded;
+    }
+
+    @Override
+    public Collection<ProgramResource> getProgramResources() throws ResourceException {
+      return provider.getProgramResources().stream()
+          .filter(resource -> Collections.disjoint(resource.getClassDescriptors(), excluded))
+          .collect(Collectors.toList());
+    }
+
+    @Override
+    public DataResourceProvider getDataResourceProvider() {
+      return provider.getDataResourceProvider();
+    }
+  }
+}
@@ -54,7 +54,10 @@ import com.debughelper.tools.r8.naming.ClassNameMapper;
 import com.debughelper.tools.r8.origin.Origin;
 import com.debughelper.tools.r8.origin.SynthesizedOrigin;
 import com.debughelper.tools.r8.shaking.Enqueuer;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
+import it.unimi.dsi.fastutil.longs.Long2ReferenceMap;
+import it.unimi.dsi.fastutil.longs.Long2ReferenceOpenHashMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -63,6 +66,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.BiConsumer;
 import org.objectweb.asm.Opcodes;
@@ -84,10 +88,12 @@ import org.objectweb.asm.Opcodes;
  *       returned by {@link Outliner#getMethodsSelectedForOutlining}. Each selected method is then
  *       converted back to IR and passed to {@link Outliner#identifyOutlineSites(com.debughelper.tools.r8.ir.code.IRCode,
  *       com.debughelper.tools.r8.graph.DexEncodedMethod)}, which then stores concrete outlining candidates in {@link
- *       Outliner#outlineSites}.
+ *       Outliner#outlineSites}. This does not change the IR, which is kept for the third step for
+ *       as many methods as {@link com.debughelper.tools.r8.utils.InternalOptions.OutlineOptions#retainedIRSize} allows.
  *   <li>Third, {@link Outliner#buildOutlinerClass(com.debughelper.tools.r8.graph.DexType)} is called to construct the <em>outline
  *       support class</em> containing a static helper method for each outline candidate that occurs
- *       frequently enough. Each selected method is then converted to IR, passed to {@link
+ *       frequently enough. Each selected method is then converted to IR, unless it was kept from the
+ *       second step, passed to {@link
  *       Outliner#applyOutliningCandidate(com.debughelper.tools.r8.ir.code.IRCode, com.debughelper.tools.r8.graph.DexEncodedMethod)} to perform the outlining, and
  *       converted back to the output format (DEX or CF).
  * </ul>
@@ -658,14 +664,19 @@ public class Outliner {
         return;
       }
 
-      Outline outline = new Outline(
-          instructions, arguments, argumentTypes, argumentsMap, returnType, start, end);
-      handle(start, end, outline);
+      handleCandidate(instructions, start, end);
 
       // Start a new candidate search from the next instruction after this outline.
       reset(index);
     }
 
+    // Handle the candidate over the instructions [start, end[.
+    protected void handleCandidate(List<com.debughelper.tools.r8.ir.code.Instruction> instructions, int start, int end) {
+      Outline outline = new Outline(
+          instructions, arguments, argumentTypes, argumentsMap, returnType, start, end);
+      handle(start, end, outline);
+    }
+
     // Restart the collection of outline candidate to the given instruction start index.
     private void reset(int startIndex) {
       start = startIndex;
@@ -684,29 +695,192 @@ public class Outliner {
 
   // Collect outlining candidates with the methods that can use them.
   // TODO(sgjesse): This does not take several usages in the same method into account.
+  //
+  // Candidates are looked up by a fingerprint of the parts of the candidate that are compared by
+  // Outline.equals, and only compared with the candidates already found with the same fingerprint.
+  // An OutlineCandidate is only created for the first occurrence of a candidate, and no Outline is
+  // created at all.
   private class OutlineMethodIdentifier extends OutlineSpotter {
 
-    private final Map<Outline, List<com.debughelper.tools.r8.graph.DexEncodedMethod>> candidateMap;
+    private final Long2ReferenceMap<OutlineCandidate> candidateMap;
 
     OutlineMethodIdentifier(
         com.debughelper.tools.r8.graph.DexEncodedMethod method,
         com.debughelper.tools.r8.ir.code.BasicBlock block,
-        Map<Outline, List<com.debughelper.tools.r8.graph.DexEncodedMethod>> candidateMap) {
+        Long2ReferenceMap<OutlineCandidate> candidateMap) {
       super(method, block);
       this.candidateMap = candidateMap;
     }
 
     @Override
-    protected void handle(int start, int end, Outline outline) {
+    protected void handleCandidate(List<com.debughelper.tools.r8.ir.code.Instruction> instructions, int start, int end) {
+      long fingerprint = OutlineCandidate.fingerprint(instructions, start, end, argumentsMap, returnType);
       synchronized (candidateMap) {
-        candidateMap.computeIfAbsent(outline, this::addOutlineMethodList).add(method);
+        OutlineCandidate first = candidateMap.get(fingerprint);
+        OutlineCandidate candidate = first;
+        while (candidate != null
+            && !candidate.matches(instructions, start, end, argumentsMap, returnType)) {
+          candidate = candidate.next;
+        }
+        if (candidate == null) {
+          candidate =
+              new OutlineCandidate(instructions, start, end, argumentsMap, returnType, first);
+          candidateMap.put(fingerprint, candidate);
+          candidateMethodLists.add(candidate.methods);
+        }
+        candidate.methods.add(method);
       }
     }
 
-    private List<com.debughelper.tools.r8.graph.DexEncodedMethod> addOutlineMethodList(Outline outline) {
-      List<com.debughelper.tools.r8.graph.DexEncodedMethod> result = new ArrayList<>();
-      candidateMethodLists.add(result);
-      return result;
+    @Override
+    protected void handle(int start, int end, Outline outline) {
+      throw new Unreachable();
+    }
+  }
+
+  // The parts of an outline that are compared by Outline.equals, without references to the IR the
+  // outline was found in, and the methods containing the outline.
+  private static class OutlineCandidate {
+
+    // For each template instruction, a code for the kind of instruction and whether it has an
+    // out-value, and the invoked method, proto of a polymorphic invoke or instantiated type.
+    private final int[] kinds;
+    private final Object[] items;
+    private final int[] argumentMap;
+    private final com.debughelper.tools.r8.graph.DexType returnType;
+    final List<com.debughelper.tools.r8.graph.DexEncodedMethod> methods = new ArrayList<>();
+    // Next candidate with the same fingerprint.
+    final OutlineCandidate next;
+
+    OutlineCandidate(
+        List<com.debughelper.tools.r8.ir.code.Instruction> instructions,
+        int start,
+        int end,
+        List<Integer> argumentMap,
+        com.debughelper.tools.r8.graph.DexType returnType,
+        OutlineCandidate next) {
+      int count = 0;
+      for (int i = start; i < end; i++) {
+        if (!instructions.get(i).isConstInstruction()) {
+          count++;
+        }
+      }
+      kinds = new int[count];
+      items = new Object[count * 2];
+      int index = 0;
+      for (int i = start; i < end; i++) {
+        com.debughelper.tools.r8.ir.code.Instruction instruction = instructions.get(i);
+        if (!instruction.isConstInstruction()) {
+          kinds[index] = kind(instruction);
+          items[index * 2] = item(instruction);
+          items[index * 2 + 1] = proto(instruction);
+          index++;
+        }
+      }
+      this.argumentMap = new int[argumentMap.size()];
+      for (int i = 0; i < argumentMap.size(); i++) {
+        this.argumentMap[i] = argumentMap.get(i);
+      }
+      this.returnType = returnType;
+      this.next = next;
+    }
+
+    static long fingerprint(
+        List<com.debughelper.tools.r8.ir.code.Instruction> instructions,
+        int start,
+        int end,
+        List<Integer> argumentMap,
+        com.debughelper.tools.r8.graph.DexType returnType) {
+      long hash = returnType.hashCode();
+      for (int i = start; i < end; i++) {
+        com.debughelper.tools.r8.ir.code.Instruction instruction = instructions.get(i);
+        if (!instruction.isConstInstruction()) {
+          Object item = item(instruction);
+          hash = mix(hash, kind(instruction));
+          hash = mix(hash, item == null ? 0 : item.hashCode());
+        }
+      }
+      for (int i = 0; i < argumentMap.size(); i++) {
+        hash = mix(hash, argumentMap.get(i));
+      }
+      return hash;
+    }
+
+    private static long mix(long hash, int value) {
+      return (hash ^ value) * 0x9E3779B97F4A7C15L;
+    }
+
+    boolean matches(
+        List<com.debughelper.tools.r8.ir.code.Instruction> instructions,
+        int start,
+        int end,
+        List<Integer> argumentMap,
+        com.debughelper.tools.r8.graph.DexType returnType) {
+      if (this.returnType != returnType || this.argumentMap.length != argumentMap.size()) {
+        return false;
+      }
+      for (int i = 0; i < this.argumentMap.length; i++) {
+        if (this.argumentMap[i] != argumentMap.get(i)) {
+          return false;
+        }
+      }
+      int index = 0;
+      for (int i = start; i < end; i++) {
+        com.debughelper.tools.r8.ir.code.Instruction instruction = instructions.get(i);
+        if (instruction.isConstInstruction()) {
+          continue;
+        }
+        if (index == kinds.length
+            || kinds[index] != kind(instruction)
+            || items[index * 2] != item(instruction)
+            || !Objects.equals(items[index * 2 + 1], proto(instruction))) {
+          return false;
+        }
+        index++;
+      }
+      return index == kinds.length;
+    }
+
+    // Distinguishes the template instructions that identicalNonValueNonPositionParts can find
+    // identical, and whether they have an out-value.
+    private static int kind(com.debughelper.tools.r8.ir.code.Instruction instruction) {
+      int kind;
+      if (instruction.isInvokeMethod()) {
+        kind = instruction.asInvokeMethod().getType().ordinal();
+      } else if (instruction.isNewInstance()) {
+        kind = 16;
+      } else {
+        assert instruction.isArithmeticBinop();
+        int operation;
+        if (instruction.isAdd()) {
+          operation = 0;
+        } else if (instruction.isSub()) {
+          operation = 1;
+        } else if (instruction.isMul()) {
+          operation = 2;
+        } else if (instruction.isDiv()) {
+          operation = 3;
+        } else {
+          assert instruction.isRem();
+          operation = 4;
+        }
+        kind = 32 + operation * 8 + instruction.asBinop().getNumericType().ordinal();
+      }
+      return kind << 1 | (instruction.outValue() != null ? 1 : 0);
+    }
+
+    private static Object item(com.debughelper.tools.r8.ir.code.Instruction instruction) {
+      if (instruction.isInvokeMethod()) {
+        return instruction.asInvokeMethod().getInvokedMethod();
+      }
+      if (instruction.isNewInstance()) {
+        return instruction.asNewInstance().clazz;
+      }
+      return null;
+    }
+
+    private static com.debughelper.tools.r8.graph.DexProto proto(com.debughelper.tools.r8.ir.code.Instruction instruction) {
+      return instruction.isInvokePolymorphic() ? instruction.asInvokePolymorphic().getProto() : null;
     }
   }
 
@@ -716,6 +890,19 @@ public class Outliner {
       super(method, block);
     }
 
+    // The IR may be kept for applying the outlines, so leave the instructions unchanged and
+    // reorder a copy of the in-values instead.
+    @Override
+    protected List<com.debughelper.tools.r8.ir.code.Value> orderedInValues(com.debughelper.tools.r8.ir.code.Instruction instruction, com.debughelper.tools.r8.ir.code.Value returnValue) {
+      List<com.debughelper.tools.r8.ir.code.Value> inValues = instruction.inValues();
+      if (instruction.isBinop() && instruction.asBinop().isCommutative()) {
+        if (inValues.get(1) == returnValue) {
+          return ImmutableList.of(inValues.get(1), inValues.get(0));
+        }
+      }
+      return inValues;
+    }
+
     @Override
     protected void handle(int start, int end, Outline outline) {
       synchronized (outlineSites) {
@@ -826,8 +1013,8 @@ public class Outliner {
     // Since optimizations may change the map identity of Outline objects (e.g. by setting the
     // out-value of invokes to null), this map must not be used except for identifying methods
     // potentially relevant to outlining. OutlineMethodIdentifier will add method lists to
-    // candidateMethodLists whenever it adds an entry to candidateMap.
-    Map<Outline, List<com.debughelper.tools.r8.graph.DexEncodedMethod>> candidateMap = new HashMap<>();
+    // candidateMethodLists whenever it adds a candidate to candidateMap.
+    Long2ReferenceMap<OutlineCandidate> candidateMap = new Long2ReferenceOpenHashMap<>();
     assert candidateMethodLists.isEmpty();
     return (code, method) -> {
       assert !(method.getCode() instanceof OutlineCode);
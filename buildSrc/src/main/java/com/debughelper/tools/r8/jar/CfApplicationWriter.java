@@ -39,13 +39,22 @@ import com.debughelper.tools.r8.naming.NamingLens;
 import com.debughelper.tools.r8.naming.ProguardMapSupplier;
 import com.debughelper.tools.r8.utils.ExceptionUtils;
 import com.debughelper.tools.r8.utils.InternalOptions;
+import com.debughelper.tools.r8.utils.Reporter;
+import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
@@ -62,6 +71,12 @@ public class CfApplicationWriter {
   private static final boolean RUN_VERIFIER = false;
   private static final boolean PRINT_CF = false;
 
+  // Number of classes written by one task.
+  private static final int CLASSES_PER_TASK = 16;
+  // Number of tasks submitted but not yet finished, per available processor. Bounds the classes
+  // held back by the ordered consumer while an earlier class is still being written.
+  private static final int TASKS_IN_FLIGHT_PER_PROCESSOR = 4;
+
   private final com.debughelper.tools.r8.graph.DexApplication application;
   private final com.debughelper.tools.r8.naming.NamingLens namingLens;
   private final com.debughelper.tools.r8.utils.InternalOptions options;
@@ -85,7 +100,8 @@ public class CfApplicationWriter {
     this.proguardSeedsData = proguardSeedsData;
   }
 
-  public void write(com.debughelper.tools.r8.ClassFileConsumer consumer, ExecutorService executor) throws IOException {
+  public void write(com.debughelper.tools.r8.ClassFileConsumer consumer, ExecutorService executor)
+      throws IOException, ExecutionException {
     application.timing.begin("CfApplicationWriter.write");
     try {
       writeApplication(consumer, executor);
@@ -95,19 +111,49 @@ public class CfApplicationWriter {
   }
 
   private void writeApplication(com.debughelper.tools.r8.ClassFileConsumer consumer, ExecutorService executor)
-      throws IOException {
-    for (com.debughelper.tools.r8.graph.DexProgramClass clazz : application.classes()) {
-      if (clazz.getSynthesizedFrom().isEmpty()) {
-        writeClass(clazz, consumer);
-      } else {
+      throws IOException, ExecutionException {
+    // The classes are sorted, as their order in the application is not deterministic.
+    List<com.debughelper.tools.r8.graph.DexProgramClass> classes =
+        new ArrayList<>(application.classes());
+    classes.sort(Comparator.comparing(DexProgramClass::getType, DexType::slowCompareTo));
+    for (com.debughelper.tools.r8.graph.DexProgramClass clazz : classes) {
+      if (!clazz.getSynthesizedFrom().isEmpty()) {
         throw new Unimplemented("No support for synthetics in the Java bytecode backend.");
       }
     }
+    // Classes are written in parallel, and passed to the consumer in sorted order so that the
+    // output is deterministic.
+    OrderedClassConsumer orderedConsumer =
+        new OrderedClassConsumer(consumer, options.reporter, classes.size());
+    int maxTasksInFlight =
+        TASKS_IN_FLIGHT_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+    Deque<Future<?>> futures = new ArrayDeque<>();
+    for (int start = 0; start < classes.size(); start += CLASSES_PER_TASK) {
+      if (futures.size() == maxTasksInFlight) {
+        // Wait for the oldest task, so that no task runs too far ahead of the classes that are
+        // passed on to the consumer.
+        ThreadUtils.awaitFutures(Collections.singletonList(futures.removeFirst()));
+      }
+      int chunkStart = start;
+      int chunkEnd = Math.min(start + CLASSES_PER_TASK, classes.size());
+      futures.addLast(
+          executor.submit(
+              () -> {
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                  writeClass(classes.get(i), i, orderedConsumer);
+                }
+              }));
+    }
+    ThreadUtils.awaitFutures(futures);
+    assert orderedConsumer.isDone();
     ApplicationWriter.supplyAdditionalConsumers(
         application, namingLens, options, deadCode, proguardMapSupplier, proguardSeedsData);
   }
 
-  private void writeClass(com.debughelper.tools.r8.graph.DexProgramClass clazz, ClassFileConsumer consumer) throws IOException {
+  private void writeClass(
+      com.debughelper.tools.r8.graph.DexProgramClass clazz,
+      int index,
+      OrderedClassConsumer consumer) {
     ClassWriter writer = new ClassWriter(0);
     writer.visitSource(clazz.sourceFile != null ? clazz.sourceFile.toString() : null, null);
     int version = getClassFileVersion(clazz);
@@ -159,8 +205,75 @@ public class CfApplicationWriter {
       // so don't assert that verifyCf() returns true.
       verifyCf(result);
     }
-    ExceptionUtils.withConsumeResourceHandler(
-        options.reporter, handler -> consumer.accept(result, desc, handler));
+    consumer.accept(index, result, desc);
+  }
+
+  /**
+   * Passes the classes to the consumer in the order of their indices, whatever the order in which
+   * they are written. The thread that writes the next class in order also passes on the classes
+   * after it that are ready, while the other threads continue writing.
+   */
+  private static class OrderedClassConsumer {
+
+    private final ClassFileConsumer consumer;
+    private final Reporter reporter;
+    private final byte[][] classData;
+    private final String[] descriptors;
+    private int next = 0;
+    private boolean draining = false;
+
+    OrderedClassConsumer(ClassFileConsumer consumer, Reporter reporter, int classCount) {
+      this.consumer = consumer;
+      this.reporter = reporter;
+      this.classData = new byte[classCount][];
+      this.descriptors = new String[classCount];
+    }
+
+    void accept(int index, byte[] data, String descriptor) {
+      synchronized (this) {
+        assert index >= next && classData[index] == null;
+        classData[index] = data;
+        descriptors[index] = descriptor;
+        if (draining) {
+          return;
+        }
+        draining = true;
+      }
+      boolean drained = false;
+      try {
+        while (true) {
+          byte[] nextData;
+          String nextDescriptor;
+          synchronized (this) {
+            if (next == classData.length || classData[next] == null) {
+              // Reset in the same critical section that found nothing to pass on, so a class
+              // stored after this is drained by the thread storing it.
+              draining = false;
+              drained = true;
+              return;
+            }
+            nextData = classData[next];
+            nextDescriptor = descriptors[next];
+            classData[next] = null;
+            descriptors[next] = null;
+            next++;
+          }
+          ExceptionUtils.withConsumeResourceHandler(
+              reporter, handler -> consumer.accept(nextData, nextDescriptor, handler));
+        }
+      } finally {
+        if (!drained) {
+          // The consumer failed. Let the threads storing later classes pass them on.
+          synchronized (this) {
+            draining = false;
+          }
+        }
+      }
+    }
+
+    synchronized boolean isDone() {
+      return next == classData.length && !draining;
+    }
   }
 
   private int getClassFileVersion(DexProgramClass clazz) {
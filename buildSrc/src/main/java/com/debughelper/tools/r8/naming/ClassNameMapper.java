@@ -48,10 +48,19 @@ public class ClassNameMapper implements com.debughelper.tools.r8.naming.Proguard
         String renamedName, String originalName) {
       com.debughelper.tools.r8.naming.ClassNamingForNameMapper.Builder classNamingBuilder =
           com.debughelper.tools.r8.naming.ClassNamingForNameMapper.builder(renamedName, originalName);
-      mapBuilder.put(renamedName, classNamingBuilder);
+      addClassNamingBuilder(classNamingBuilder);
       return classNamingBuilder;
     }
 
+    /**
+     * Add a builder created with {@link ClassNamingForNameMapper#builder}. This allows to fill in
+     * class namings on several threads, and still add them in a deterministic order.
+     */
+    public void addClassNamingBuilder(
+        com.debughelper.tools.r8.naming.ClassNamingForNameMapper.Builder classNamingBuilder) {
+      mapBuilder.put(classNamingBuilder.getRenamedName(), classNamingBuilder);
+    }
+
     @Override
     public ClassNameMapper build() {
       return new ClassNameMapper(mapBuilder.build());
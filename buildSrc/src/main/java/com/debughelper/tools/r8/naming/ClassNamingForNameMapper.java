@@ -40,6 +40,10 @@ public class ClassNamingForNameMapper implements com.debughelper.tools.r8.naming
       this.renamedName = renamedName;
     }
 
+    String getRenamedName() {
+      return renamedName;
+    }
+
     @Override
     public ClassNaming.Builder addMemberEntry(com.debughelper.tools.r8.naming.MemberNaming entry) {
       if (entry.isMethodNaming()) {
@@ -158,7 +162,7 @@ public class ClassNamingForNameMapper implements com.debughelper.tools.r8.naming
     }
   }
 
-  static Builder builder(String renamedName, String originalName) {
+  public static Builder builder(String renamedName, String originalName) {
     return new Builder(renamedName, originalName);
   }
 
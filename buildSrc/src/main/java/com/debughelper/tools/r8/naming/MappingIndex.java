@@ -0,0 +1,443 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.naming;
+
+import static com.debughelper.tools.r8.utils.DescriptorUtils.descriptorToJavaType;
+import static com.debughelper.tools.r8.utils.DescriptorUtils.javaTypeToDescriptor;
+
+import com.debughelper.tools.r8.errors.CompilationError;
+import com.debughelper.tools.r8.errors.Unreachable;
+import com.debughelper.tools.r8.graph.DexType;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact, memory-mapped index of a Proguard mapping file.
+ *
+ * <p>The index is produced once from a mapping file with {@link #build(Path, Path)}. It contains a
+ * sorted table of all class names, a table of classes sorted by obfuscated name, the order of the
+ * classes by original name, and for each class the member lines of the mapping file. Looking up a
+ * class is a binary search in the mapped file, and only the member lines of classes that are
+ * actually looked up are parsed, using the same {@link ProguardMapReader} as for the text format.
+ *
+ * <p>The layout of the index file is (all numbers big-endian):
+ *
+ * <pre>
+ *   int   MAGIC
+ *   int   VERSION
+ *   int   string count (S)
+ *   int   class count (C)
+ *   int[] S + 1 offsets of strings relative to the start of the string data
+ *   byte[] string data, sorted UTF-8 class names
+ *   C * { int obfuscated name, int original name, long member offset, int member length }
+ *         classes sorted by obfuscated name, member offset relative to the start of member data
+ *   int[] C indices into the class table, sorted by original name
+ *   byte[] member data, the UTF-8 member lines of each class
+ * </pre>
+ */
+public class MappingIndex {
+
+  private static final int MAGIC = 0x52384d49; // "R8MI"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 * 4;
+  private static final int CLASS_ENTRY_SIZE = 4 + 4 + 8 + 4;
+
+  private final ByteBuffer buffer;
+  private final int stringCount;
+  private final int classCount;
+  private final int stringOffsetsStart;
+  private final int stringDataStart;
+  private final int classesStart;
+  private final int originalOrderStart;
+  private final long memberDataStart;
+
+  private final Map<String, ClassNamingForNameMapper> namingsByObfuscatedName =
+      new ConcurrentHashMap<>();
+  private final Map<String, ClassNamingForMapApplier> namingsByOriginalName =
+      new ConcurrentHashMap<>();
+
+  private MappingIndex(ByteBuffer buffer) {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MAGIC) {
+      throw new CompilationError("Not a mapping index");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new CompilationError("Unsupported mapping index version " + buffer.getInt(4));
+    }
+    stringCount = buffer.getInt(8);
+    classCount = buffer.getInt(12);
+    stringOffsetsStart = HEADER_SIZE;
+    stringDataStart = stringOffsetsStart + (stringCount + 1) * 4;
+    classesStart = stringDataStart + buffer.getInt(stringOffsetsStart + stringCount * 4);
+    originalOrderStart = classesStart + classCount * CLASS_ENTRY_SIZE;
+    memberDataStart = originalOrderStart + classCount * 4;
+  }
+
+  /** Memory map an index previously produced by {@link #build(Path, Path)}. */
+  public static MappingIndex open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new CompilationError("Mapping index too large: " + path);
+      }
+      return new MappingIndex(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Returns true if the file at {@code path} starts like a mapping index. */
+  public static boolean isMappingIndex(Path path) throws IOException {
+    if (Files.size(path) < HEADER_SIZE) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      return in.readInt() == MAGIC;
+    }
+  }
+
+  public int size() {
+    return classCount;
+  }
+
+  public boolean hasObfuscatedName(String obfuscatedName) {
+    return findByObfuscatedName(obfuscatedName) >= 0;
+  }
+
+  public boolean hasOriginalName(String originalName) {
+    return findByOriginalName(originalName) >= 0;
+  }
+
+  /**
+   * Deobfuscate a class name.
+   *
+   * <p>Returns the deobfuscated name if a mapping was found. Otherwise it returns the passed in
+   * name.
+   */
+  public String deobfuscateClassName(String obfuscatedName) {
+    int index = findByObfuscatedName(obfuscatedName);
+    if (index < 0) {
+      return obfuscatedName;
+    }
+    return getString(buffer.getInt(classEntry(index) + 4));
+  }
+
+  /** Returns the naming of the class with the given obfuscated java name, or null if none. */
+  public ClassNamingForNameMapper getClassNaming(String obfuscatedName) {
+    ClassNamingForNameMapper naming = namingsByObfuscatedName.get(obfuscatedName);
+    if (naming == null) {
+      int index = findByObfuscatedName(obfuscatedName);
+      if (index < 0) {
+        return null;
+      }
+      naming =
+          (ClassNamingForNameMapper) parseClass(index, ClassNamingForNameMapper::builder).build();
+      namingsByObfuscatedName.putIfAbsent(obfuscatedName, naming);
+    }
+    return naming;
+  }
+
+  public ClassNamingForNameMapper getClassNaming(DexType type) {
+    return getClassNaming(descriptorToJavaType(type.descriptor.toString()));
+  }
+
+  /**
+   * Returns the naming of the class with the given original java name keyed on original member
+   * signatures, or null if none.
+   */
+  public ClassNamingForMapApplier getClassNamingForOriginalName(String originalName) {
+    ClassNamingForMapApplier naming = namingsByOriginalName.get(originalName);
+    if (naming == null) {
+      int index = findByOriginalName(originalName);
+      if (index < 0) {
+        return null;
+      }
+      naming =
+          (ClassNamingForMapApplier)
+              parseClass(
+                      index,
+                      (renamedName, name) ->
+                          ClassNamingForMapApplier.builder(
+                              javaTypeToDescriptor(renamedName), javaTypeToDescriptor(name)))
+                  .build();
+      namingsByOriginalName.putIfAbsent(originalName, naming);
+    }
+    return naming;
+  }
+
+  private interface ClassNamingBuilderFactory {
+    ClassNaming.Builder create(String renamedName, String originalName);
+  }
+
+  private ClassNaming.Builder parseClass(int index, ClassNamingBuilderFactory factory) {
+    int entry = classEntry(index);
+    String obfuscatedName = getString(buffer.getInt(entry));
+    String originalName = getString(buffer.getInt(entry + 4));
+    long memberOffset = buffer.getLong(entry + 8);
+    int memberLength = buffer.getInt(entry + 16);
+    StringBuilder builder = new StringBuilder();
+    builder.append(originalName).append(" -> ").append(obfuscatedName).append(":\n");
+    builder.append(readUtf8(memberDataStart + memberOffset, memberLength));
+    ClassNaming.Builder[] result = new ClassNaming.Builder[1];
+    try (ProguardMapReader reader =
+        new ProguardMapReader(new BufferedReader(new StringReader(builder.toString())))) {
+      reader.parse(
+          new ProguardMap.Builder() {
+            @Override
+            ClassNaming.Builder classNamingBuilder(String renamedName, String originalName) {
+              assert result[0] == null;
+              result[0] = factory.create(renamedName, originalName);
+              return result[0];
+            }
+
+            @Override
+            ProguardMap build() {
+              // Only the class naming builder of the parsed class is used.
+              throw new Unreachable();
+            }
+          });
+    } catch (IOException e) {
+      // Reading from a string does not fail.
+      throw new AssertionError(e);
+    }
+    assert result[0] != null;
+    return result[0];
+  }
+
+  private int classEntry(int index) {
+    return classesStart + index * CLASS_ENTRY_SIZE;
+  }
+
+  private int findByObfuscatedName(String obfuscatedName) {
+    int low = 0;
+    int high = classCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int compare = getString(buffer.getInt(classEntry(mid))).compareTo(obfuscatedName);
+      if (compare < 0) {
+        low = mid + 1;
+      } else if (compare > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int findByOriginalName(String originalName) {
+    int low = 0;
+    int high = classCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int index = buffer.getInt(originalOrderStart + mid * 4);
+      int compare = getString(buffer.getInt(classEntry(index) + 4)).compareTo(originalName);
+      if (compare < 0) {
+        low = mid + 1;
+      } else if (compare > 0) {
+        high = mid - 1;
+      } else {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  private String getString(int index) {
+    assert 0 <= index && index < stringCount;
+    int start = buffer.getInt(stringOffsetsStart + index * 4);
+    int end = buffer.getInt(stringOffsetsStart + (index + 1) * 4);
+    return readUtf8(stringDataStart + start, end - start);
+  }
+
+  private String readUtf8(long offset, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer slice = buffer.duplicate();
+    slice.position((int) offset);
+    slice.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static class ClassEntry {
+    final String obfuscatedName;
+    final String originalName;
+    final long memberOffset;
+    final int memberLength;
+
+    ClassEntry(String obfuscatedName, String originalName, long memberOffset, int memberLength) {
+      this.obfuscatedName = obfuscatedName;
+      this.originalName = originalName;
+      this.memberOffset = memberOffset;
+      this.memberLength = memberLength;
+    }
+  }
+
+  /**
+   * Produce an index for the mapping file {@code mappingFile} in {@code indexFile}.
+   *
+   * <p>The mapping file is streamed; only the class names are kept in memory while the member
+   * lines are copied to a temporary file next to the index.
+   */
+  public static void build(Path mappingFile, Path indexFile) throws IOException {
+    Path memberDataFile = Files.createTempFile(
+        indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), ".tmp");
+    try {
+      List<ClassEntry> classes = new ArrayList<>();
+      TreeSet<String> strings = new TreeSet<>();
+      try (BufferedReader reader = Files.newBufferedReader(mappingFile, StandardCharsets.UTF_8);
+          OutputStream memberData = new BufferedOutputStream(Files.newOutputStream(memberDataFile))) {
+        long memberOffset = 0;
+        String obfuscatedName = null;
+        String originalName = null;
+        long classMemberOffset = 0;
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+          lineNo++;
+          if (isEmptyOrCommentLine(line)) {
+            continue;
+          }
+          if (!Character.isWhitespace(line.codePointAt(0))) {
+            if (obfuscatedName != null) {
+              classes.add(new ClassEntry(obfuscatedName, originalName, classMemberOffset,
+                  (int) (memberOffset - classMemberOffset)));
+            }
+            classMemberOffset = memberOffset;
+            int arrow = line.indexOf("->");
+            int colon = line.lastIndexOf(':');
+            if (arrow < 0 || colon < arrow) {
+              throw new CompilationError(
+                  "Parse error [" + lineNo + "] Expected class mapping in " + mappingFile);
+            }
+            originalName = line.substring(0, arrow).trim();
+            // Workaround for proguard map files that contain entries for package-info.java files.
+            if (originalName.endsWith("package-info")) {
+              obfuscatedName = null;
+              continue;
+            }
+            obfuscatedName = line.substring(arrow + 2, colon).trim();
+            strings.add(originalName);
+            strings.add(obfuscatedName);
+          } else if (obfuscatedName != null) {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            memberData.write(bytes);
+            memberOffset += bytes.length;
+            if (memberOffset - classMemberOffset > Integer.MAX_VALUE) {
+              throw new CompilationError("Mapping of class " + originalName + " too large");
+            }
+          }
+        }
+        if (obfuscatedName != null) {
+          classes.add(new ClassEntry(obfuscatedName, originalName, classMemberOffset,
+              (int) (memberOffset - classMemberOffset)));
+        }
+      }
+      writeIndex(indexFile, classes, strings, memberDataFile);
+    } finally {
+      Files.deleteIfExists(memberDataFile);
+    }
+  }
+
+  private static boolean isEmptyOrCommentLine(String line) {
+    for (int i = 0; i < line.length(); ++i) {
+      char c = line.charAt(i);
+      if (c == '#') {
+        return true;
+      } else if (!Character.isWhitespace(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeIndex(
+      Path indexFile, List<ClassEntry> classes, TreeSet<String> strings, Path memberDataFile)
+      throws IOException {
+    Map<String, Integer> stringIndices = new HashMap<>(strings.size());
+    List<byte[]> stringBytes = new ArrayList<>(strings.size());
+    for (String string : strings) {
+      stringIndices.put(string, stringBytes.size());
+      stringBytes.add(string.getBytes(StandardCharsets.UTF_8));
+    }
+    classes.sort((a, b) -> a.obfuscatedName.compareTo(b.obfuscatedName));
+    for (int i = 1; i < classes.size(); i++) {
+      if (classes.get(i - 1).obfuscatedName.equals(classes.get(i).obfuscatedName)) {
+        throw new CompilationError(
+            "Duplicate mapping for obfuscated class " + classes.get(i).obfuscatedName);
+      }
+    }
+    Integer[] originalOrder = new Integer[classes.size()];
+    for (int i = 0; i < originalOrder.length; i++) {
+      originalOrder[i] = i;
+    }
+    Arrays.sort(
+        originalOrder, (a, b) -> classes.get(a).originalName.compareTo(classes.get(b).originalName));
+    // Like the map of SeedMapper, the index has at most one mapping per original class.
+    for (int i = 1; i < originalOrder.length; i++) {
+      String originalName = classes.get(originalOrder[i]).originalName;
+      if (classes.get(originalOrder[i - 1]).originalName.equals(originalName)) {
+        throw new CompilationError("Duplicate mapping for original class " + originalName);
+      }
+    }
+
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(stringBytes.size());
+      out.writeInt(classes.size());
+      int offset = 0;
+      for (byte[] bytes : stringBytes) {
+        out.writeInt(offset);
+        offset += bytes.length;
+      }
+      out.writeInt(offset);
+      for (byte[] bytes : stringBytes) {
+        out.write(bytes);
+      }
+      for (ClassEntry entry : classes) {
+        out.writeInt(stringIndices.get(entry.obfuscatedName));
+        out.writeInt(stringIndices.get(entry.originalName));
+        out.writeLong(entry.memberOffset);
+        out.writeInt(entry.memberLength);
+      }
+      for (Integer index : originalOrder) {
+        out.writeInt(index);
+      }
+      try (InputStream memberData = Files.newInputStream(memberDataFile)) {
+        byte[] buffer = new byte[1 << 16];
+        int read;
+        while ((read = memberData.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: MappingIndex <mapping.txt> <output-index>");
+      System.exit(1);
+    }
+    build(Paths.get(args[0]), Paths.get(args[1]));
+  }
+}
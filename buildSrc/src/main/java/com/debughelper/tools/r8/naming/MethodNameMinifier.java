@@ -17,6 +17,7 @@ import com.debughelper.tools.r8.shaking.RootSetBuilder.RootSet;
 import com.debughelper.tools.r8.utils.InternalOptions;
 import com.debughelper.tools.r8.utils.MethodSignatureEquivalence;
 import com.debughelper.tools.r8.utils.MethodSignatureRelaxedEquivalence;
+import com.debughelper.tools.r8.utils.ThreadUtils;
 import com.debughelper.tools.r8.utils.Timing;
 import com.debughelper.tools.r8.shaking.RootSetBuilder;
 import com.google.common.base.Equivalence;
@@ -31,6 +32,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 
 /**
@@ -127,7 +131,8 @@ class MethodNameMinifier extends com.debughelper.tools.r8.naming.MemberNameMinif
     }
   }
 
-  MethodRenaming computeRenaming(Timing timing) {
+  MethodRenaming computeRenaming(ExecutorService executorService, Timing timing)
+      throws ExecutionException {
     // Phase 1: Reserve all the names that need to be kept and allocate linked state in the
     //          library part.
     timing.begin("Phase 1");
@@ -149,32 +154,76 @@ class MethodNameMinifier extends com.debughelper.tools.r8.naming.MemberNameMinif
     timing.end();
     // Phase 4: Assign names top-down by traversing the subtype hierarchy.
     timing.begin("Phase 4");
-    assignNamesToClassesMethods(appInfo.dexItemFactory.objectType, false);
+    assignNamesToClassesMethods(executorService, false);
     timing.end();
     // Phase 4: Do the same for private methods.
     timing.begin("Phase 5");
-    assignNamesToClassesMethods(appInfo.dexItemFactory.objectType, true);
+    assignNamesToClassesMethods(executorService, true);
     timing.end();
 
     return new MethodRenaming(renaming, callSiteRenaming);
   }
 
+  private void assignNamesToClassesMethods(ExecutorService executorService, boolean doPrivates)
+      throws ExecutionException {
+    if (useUniqueMemberNames || !dictionary.isEmpty()) {
+      // All states share the global state or the dictionary iterator, so names depend on the order
+      // in which the classes are visited.
+      assignNamesToClassesMethods(appInfo.dexItemFactory.objectType, doPrivates);
+      return;
+    }
+    // The names of the methods of a class only depend on the states of the class and its
+    // superclasses. Once all classes above a level of the hierarchy are named, the classes of the
+    // level are independent and are named concurrently, giving the same names as the traversal.
+    List<DexType> level = Collections.singletonList(appInfo.dexItemFactory.objectType);
+    while (!level.isEmpty()) {
+      List<DexType> nextLevel = new ArrayList<>();
+      List<Map<DexMethod, DexString>> renamings = new ArrayList<>();
+      List<Future<?>> futures = new ArrayList<>();
+      for (DexType type : level) {
+        type.forAllExtendsSubtypes(nextLevel::add);
+        DexClass holder = appInfo.definitionFor(type);
+        if (holder != null && !holder.isLibraryClass()) {
+          com.debughelper.tools.r8.naming.NamingState<DexProto, ?> state =
+              computeStateIfAbsent(type, k -> getState(holder.superType).createChild());
+          Map<DexMethod, DexString> renamingAtThisLevel = new IdentityHashMap<>();
+          renamings.add(renamingAtThisLevel);
+          futures.add(
+              executorService.submit(
+                  () -> assignNamesToClassMethods(holder, state, renamingAtThisLevel, doPrivates)));
+        }
+      }
+      ThreadUtils.awaitFutures(futures);
+      renamings.forEach(renaming::putAll);
+      level = nextLevel;
+    }
+  }
+
   private void assignNamesToClassesMethods(DexType type, boolean doPrivates) {
     DexClass holder = appInfo.definitionFor(type);
     if (holder != null && !holder.isLibraryClass()) {
       Map<DexMethod, DexString> renamingAtThisLevel = new IdentityHashMap<>();
       com.debughelper.tools.r8.naming.NamingState<DexProto, ?> state =
           computeStateIfAbsent(type, k -> getState(holder.superType).createChild());
-      holder.forEachMethod(method ->
-          assignNameToMethod(method, state, renamingAtThisLevel, doPrivates));
-      if (!doPrivates && !useUniqueMemberNames) {
-        renamingAtThisLevel.forEach((method, candidate) ->
-            state.addRenaming(method.name, method.proto, candidate));
-      }
+      assignNamesToClassMethods(holder, state, renamingAtThisLevel, doPrivates);
+      renaming.putAll(renamingAtThisLevel);
     }
     type.forAllExtendsSubtypes(subtype -> assignNamesToClassesMethods(subtype, doPrivates));
   }
 
+  private void assignNamesToClassMethods(
+      DexClass holder,
+      com.debughelper.tools.r8.naming.NamingState<DexProto, ?> state,
+      Map<DexMethod, DexString> renamingAtThisLevel,
+      boolean doPrivates) {
+    holder.forEachMethod(method ->
+        assignNameToMethod(method, state, renamingAtThisLevel, doPrivates));
+    if (!doPrivates && !useUniqueMemberNames) {
+      renamingAtThisLevel.forEach((method, candidate) ->
+          state.addRenaming(method.name, method.proto, candidate));
+    }
+  }
+
   private void assignNameToMethod(
       DexEncodedMethod encodedMethod,
       com.debughelper.tools.r8.naming.NamingState<DexProto, ?> state,
@@ -188,7 +237,6 @@ class MethodNameMinifier extends com.debughelper.tools.r8.naming.MemberNameMinif
         && !encodedMethod.accessFlags.isConstructor()) {
       DexString renamedName =
           state.assignNewNameFor(method.name, method.proto, useUniqueMemberNames);
-      renaming.put(method, renamedName);
       renamingAtThisLevel.put(method, renamedName);
     }
   }
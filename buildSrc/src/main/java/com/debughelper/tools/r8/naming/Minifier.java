@@ -27,6 +27,8 @@ import com.debughelper.tools.r8.shaking.RootSetBuilder;
 import com.google.common.collect.ImmutableMap;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -45,7 +47,8 @@ public class Minifier {
     this.options = options;
   }
 
-  public com.debughelper.tools.r8.naming.NamingLens run(Timing timing) {
+  public com.debughelper.tools.r8.naming.NamingLens run(
+      ExecutorService executorService, Timing timing) throws ExecutionException {
     assert options.enableMinification;
     timing.begin("MinifyClasses");
     Map<DexType, DexString> classRenaming =
@@ -53,7 +56,8 @@ public class Minifier {
     timing.end();
     timing.begin("MinifyMethods");
     MethodRenaming methodRenaming =
-        new com.debughelper.tools.r8.naming.MethodNameMinifier(appInfo, rootSet, options).computeRenaming(timing);
+        new com.debughelper.tools.r8.naming.MethodNameMinifier(appInfo, rootSet, options)
+            .computeRenaming(executorService, timing);
     timing.end();
     timing.begin("MinifyFields");
     Map<DexField, DexString> fieldRenaming =
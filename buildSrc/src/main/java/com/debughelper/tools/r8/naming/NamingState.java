@@ -12,17 +12,24 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
+/**
+ * Names assigned and reserved in a class and, through the parent states, in its superclasses.
+ *
+ * <p>Naming states of sibling classes may be used concurrently once the states of their
+ * superclasses are no longer changed. Such uses only add internal states to the shared parent
+ * states, which happens through a concurrent map.
+ */
 class NamingState<ProtoType extends CachedHashValueDexItem, KeyType> {
 
   private final NamingState<ProtoType, KeyType> parent;
-  private final Map<KeyType, InternalState<ProtoType>> usedNames = new HashMap<>();
+  private final Map<KeyType, InternalState<ProtoType>> usedNames = new ConcurrentHashMap<>();
   private final DexItemFactory itemFactory;
   private final ImmutableList<String> dictionary;
   private final Function<ProtoType, KeyType> keyTransform;
@@ -67,13 +74,13 @@ class NamingState<ProtoType extends CachedHashValueDexItem, KeyType> {
     KeyType key = keyTransform.apply(proto);
     InternalState<ProtoType> result = usedNames.get(key);
     if (result == null) {
-      if (parent != null) {
-        InternalState<ProtoType> parentState = parent.getOrCreateInternalStateFor(proto);
-        result = parentState.createChild();
-      } else {
-        result = new InternalState<>(itemFactory, null, dictionary);
-      }
-      usedNames.put(key, result);
+      result =
+          usedNames.computeIfAbsent(
+              key,
+              k ->
+                  parent != null
+                      ? parent.getOrCreateInternalStateFor(proto).createChild()
+                      : new InternalState<>(itemFactory, null, dictionary));
     }
     return result;
   }
@@ -131,6 +138,8 @@ class NamingState<ProtoType extends CachedHashValueDexItem, KeyType> {
     private final InternalState<InternalProtoType> parentInternalState;
     private Set<DexString> reservedNames = null;
     private Table<DexString, InternalProtoType, DexString> renamings = null;
+    // The values of renamings, to check the availability of a name without a search of the table.
+    private Set<DexString> renamedNames = null;
     private int nameCount;
     private final Iterator<String> dictionaryIterator;
 
@@ -158,7 +167,7 @@ class NamingState<ProtoType extends CachedHashValueDexItem, KeyType> {
     }
 
     private boolean isAvailable(DexString name) {
-      return !(renamings != null && renamings.containsValue(name))
+      return !(renamedNames != null && renamedNames.contains(name))
           && !(reservedNames != null && reservedNames.contains(name))
           && (parentInternalState == null || parentInternalState.isAvailable(name));
     }
@@ -213,8 +222,13 @@ class NamingState<ProtoType extends CachedHashValueDexItem, KeyType> {
     void addRenaming(DexString original, InternalProtoType proto, DexString newName) {
       if (renamings == null) {
         renamings = HashBasedTable.create();
+        renamedNames = Sets.newIdentityHashSet();
+      }
+      DexString previous = renamings.put(original, proto, newName);
+      renamedNames.add(newName);
+      if (previous != null && previous != newName && !renamings.containsValue(previous)) {
+        renamedNames.remove(previous);
       }
-      renamings.put(original, proto, newName);
     }
 
     String nextSuggestedName() {
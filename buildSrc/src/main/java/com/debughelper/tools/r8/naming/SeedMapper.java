@@ -3,6 +3,7 @@
 // BSD-style license that can be found in the LICENSE file.
 package com.debughelper.tools.r8.naming;
 
+import static com.debughelper.tools.r8.utils.DescriptorUtils.descriptorToJavaType;
 import static com.debughelper.tools.r8.utils.DescriptorUtils.javaTypeToDescriptor;
 
 import com.debughelper.tools.r8.graph.DexType;
@@ -69,11 +70,20 @@ public class SeedMapper implements com.debughelper.tools.r8.naming.ProguardMap {
     }
   }
 
+  /**
+   * Read the mappings from either a Proguard map or a {@link MappingIndex} produced from one. When
+   * reading an index, only the classes that are looked up are parsed.
+   */
   public static SeedMapper seedMapperFromFile(Path path) throws IOException {
+    if (MappingIndex.isMappingIndex(path)) {
+      return new SeedMapper(MappingIndex.open(path));
+    }
     return seedMapperFromInputStream(Files.newInputStream(path));
   }
 
   private final ImmutableMap<String, com.debughelper.tools.r8.naming.ClassNamingForMapApplier> mappings;
+  // If non-null, the mappings are looked up on demand in the index instead.
+  private final MappingIndex index;
 
   private SeedMapper(Map<String, com.debughelper.tools.r8.naming.ClassNamingForMapApplier.Builder> mappings) {
     ImmutableMap.Builder<String, com.debughelper.tools.r8.naming.ClassNamingForMapApplier> builder = ImmutableMap.builder();
@@ -81,15 +91,28 @@ public class SeedMapper implements com.debughelper.tools.r8.naming.ProguardMap {
       builder.put(entry.getKey(), entry.getValue().build());
     }
     this.mappings = builder.build();
+    this.index = null;
+  }
+
+  private SeedMapper(MappingIndex index) {
+    this.mappings = ImmutableMap.of();
+    this.index = index;
   }
 
   @Override
   public boolean hasMapping(DexType type) {
+    if (index != null) {
+      return index.hasOriginalName(descriptorToJavaType(type.descriptor.toString()));
+    }
     return mappings.containsKey(type.descriptor.toString());
   }
 
   @Override
   public ClassNamingForMapApplier getClassNaming(DexType type) {
+    if (index != null) {
+      return index.getClassNamingForOriginalName(
+          descriptorToJavaType(type.descriptor.toString()));
+    }
     return mappings.get(type.descriptor.toString());
   }
 }
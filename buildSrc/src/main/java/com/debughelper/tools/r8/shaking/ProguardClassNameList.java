@@ -4,6 +4,7 @@
 package com.debughelper.tools.r8.shaking;
 
 import com.debughelper.tools.r8.graph.DexType;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import it.unimi.dsi.fastutil.objects.Object2BooleanArrayMap;
@@ -89,6 +90,14 @@ public abstract class ProguardClassNameList {
 
   public abstract void forEachTypeMatcher(Consumer<ProguardTypeMatcher> consumer);
 
+  /**
+   * Returns a string that the source name of every matched type starts with, or the empty string
+   * if there is no such prefix.
+   */
+  String getLiteralPrefix() {
+    return "";
+  }
+
   private static class EmptyClassNameList extends ProguardClassNameList {
 
     private EmptyClassNameList() {
@@ -161,6 +170,11 @@ public abstract class ProguardClassNameList {
     public void forEachTypeMatcher(Consumer<ProguardTypeMatcher> consumer) {
       consumer.accept(className);
     }
+
+    @Override
+    String getLiteralPrefix() {
+      return className.getLiteralPrefix();
+    }
   }
 
   private static class PositiveClassNameList extends ProguardClassNameList {
@@ -220,6 +234,16 @@ public abstract class ProguardClassNameList {
     public void forEachTypeMatcher(Consumer<ProguardTypeMatcher> consumer) {
       classNames.forEach(consumer);
     }
+
+    @Override
+    String getLiteralPrefix() {
+      String prefix = null;
+      for (ProguardTypeMatcher className : classNames) {
+        String classNamePrefix = className.getLiteralPrefix();
+        prefix = prefix == null ? classNamePrefix : Strings.commonPrefix(prefix, classNamePrefix);
+      }
+      return prefix == null ? "" : prefix;
+    }
   }
 
   private static class MixedClassNameList extends ProguardClassNameList {
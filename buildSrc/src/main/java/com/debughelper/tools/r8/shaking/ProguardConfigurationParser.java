@@ -50,7 +50,10 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -63,6 +66,10 @@ public class ProguardConfigurationParser {
   private final Reporter reporter;
   private final boolean failOnPartiallyImplementedOptions;
 
+  // Sources already parsed, keyed by contents and base directory. Aggregated library rules often
+  // contain the same file several times, and parsing it again only adds the same rules again.
+  private final Set<SourceKey> parsedSources = new HashSet<>();
+
   private static final List<String> IGNORED_SINGLE_ARG_OPTIONS = ImmutableList.of(
       "protomapping",
       "target");
@@ -200,6 +207,9 @@ public class ProguardConfigurationParser {
     }
 
     public void parse() throws com.debughelper.tools.r8.shaking.ProguardRuleParserException {
+      if (!parsedSources.add(new SourceKey(contents, baseDirectory))) {
+        return;
+      }
       do {
         skipWhitespace();
       } while (parseOption());
@@ -1543,6 +1553,30 @@ public class ProguardConfigurationParser {
     }
   }
 
+  private static class SourceKey {
+    private final String contents;
+    private final Path baseDirectory;
+
+    SourceKey(String contents, Path baseDirectory) {
+      this.contents = contents;
+      this.baseDirectory = baseDirectory;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SourceKey)) {
+        return false;
+      }
+      SourceKey other = (SourceKey) o;
+      return contents.equals(other.contents) && Objects.equals(baseDirectory, other.baseDirectory);
+    }
+
+    @Override
+    public int hashCode() {
+      return contents.hashCode() * 31 + Objects.hashCode(baseDirectory);
+    }
+  }
+
   static class IdentifierPatternWithWildcards {
     final String pattern;
     final List<ProguardWildcard> wildcards;
@@ -1559,5 +1593,29 @@ public class ProguardConfigurationParser {
     boolean isMatchAllNames() {
       return pattern.equals("*");
     }
+
+    private static boolean isWildcardChar(char c) {
+      return c == '*' || c == '?' || c == '<' || c == '>';
+    }
+
+    /** The literal part of the pattern before the first wildcard or back reference. */
+    String getLiteralPrefix() {
+      for (int i = 0; i < pattern.length(); i++) {
+        if (isWildcardChar(pattern.charAt(i))) {
+          return pattern.substring(0, i);
+        }
+      }
+      return pattern;
+    }
+
+    /** The literal part of the pattern after the last wildcard or back reference. */
+    String getLiteralSuffix() {
+      for (int i = pattern.length() - 1; i >= 0; i--) {
+        if (isWildcardChar(pattern.charAt(i))) {
+          return pattern.substring(i + 1);
+        }
+      }
+      return pattern;
+    }
   }
 }
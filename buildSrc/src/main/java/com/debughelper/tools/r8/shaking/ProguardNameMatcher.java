@@ -138,15 +138,24 @@ public abstract class ProguardNameMatcher {
 
     private final String pattern;
     private final List<ProguardWildcard> wildcards;
+    // Literal parts of the pattern that any matching name must start and end with.
+    private final String literalPrefix;
+    private final String literalSuffix;
 
     MatchNamePattern(ProguardConfigurationParser.IdentifierPatternWithWildcards identifierPatternWithWildcards) {
       this.pattern = identifierPatternWithWildcards.pattern;
       this.wildcards = identifierPatternWithWildcards.wildcards;
+      this.literalPrefix = identifierPatternWithWildcards.getLiteralPrefix();
+      this.literalSuffix = identifierPatternWithWildcards.getLiteralSuffix();
     }
 
     @Override
     public boolean matches(String name) {
-      boolean matched = matchFieldOrMethodNameImpl(pattern, 0, name, 0, wildcards, 0);
+      boolean matched =
+          name.startsWith(literalPrefix)
+              && name.endsWith(literalSuffix)
+              && matchFieldOrMethodNameImpl(
+                  pattern, literalPrefix.length(), name, literalPrefix.length(), wildcards, 0);
       if (!matched) {
         wildcards.forEach(ProguardWildcard::clearCaptured);
       }
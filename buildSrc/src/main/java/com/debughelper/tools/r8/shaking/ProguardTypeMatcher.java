@@ -97,6 +97,14 @@ public abstract class ProguardTypeMatcher {
     return null;
   }
 
+  /**
+   * Returns a string that the source name of every matched type starts with, or the empty string
+   * if the matcher has no such prefix.
+   */
+  String getLiteralPrefix() {
+    return "";
+  }
+
   private static class MatchAllTypes extends ProguardTypeMatcher {
 
     private static final ProguardTypeMatcher MATCH_ALL_TYPES = new MatchAllTypes();
@@ -312,6 +320,11 @@ public abstract class ProguardTypeMatcher {
     public DexType getSpecificType() {
       return type;
     }
+
+    @Override
+    String getLiteralPrefix() {
+      return type.toSourceString();
+    }
   }
 
   private static class MatchTypePattern extends ProguardTypeMatcher {
@@ -319,19 +332,30 @@ public abstract class ProguardTypeMatcher {
     private final String pattern;
     private final List<ProguardWildcard> wildcards;
     private final ClassOrType kind;
+    // Literal parts of the pattern that any matching name must start and end with. Checking them
+    // first rejects most names without running the backtracking matcher.
+    private final String literalPrefix;
+    private final String literalSuffix;
 
     private MatchTypePattern(
         IdentifierPatternWithWildcards identifierPatternWithWildcards, ClassOrType kind) {
       this.pattern = identifierPatternWithWildcards.pattern;
       this.wildcards = identifierPatternWithWildcards.wildcards;
       this.kind = kind;
+      this.literalPrefix = identifierPatternWithWildcards.getLiteralPrefix();
+      this.literalSuffix = identifierPatternWithWildcards.getLiteralSuffix();
     }
 
     @Override
     public boolean matches(DexType type) {
       // TODO(herhut): Translate pattern to work on descriptors instead.
       String typeName = type.toSourceString();
-      boolean matched = matchClassOrTypeNameImpl(pattern, 0, typeName, 0, wildcards, 0, kind);
+      boolean matched =
+          typeName.startsWith(literalPrefix)
+              && typeName.endsWith(literalSuffix)
+              && matchClassOrTypeNameImpl(
+                  pattern, literalPrefix.length(), typeName, literalPrefix.length(), wildcards, 0,
+                  kind);
       if (!matched) {
         wildcards.forEach(ProguardWildcard::clearCaptured);
       }
@@ -343,6 +367,11 @@ public abstract class ProguardTypeMatcher {
       return wildcards;
     }
 
+    @Override
+    String getLiteralPrefix() {
+      return literalPrefix;
+    }
+
     @Override
     protected MatchTypePattern materialize() {
       List<ProguardWildcard> materializedWildcards =
@@ -67,8 +67,7 @@ public class RootSetBuilder {
   private final Set<DexItem> noObfuscation = Sets.newIdentityHashSet();
   private final Set<DexItem> reasonAsked = Sets.newIdentityHashSet();
   private final Set<DexItem> keepPackageName = Sets.newIdentityHashSet();
-  private final Set<com.debughelper.tools.r8.shaking.ProguardConfigurationRule> rulesThatUseExtendsOrImplementsWrong =
-      Sets.newIdentityHashSet();
+  private final Set<com.debughelper.tools.r8.shaking.ProguardConfigurationRule> rulesThatUseExtendsOrImplementsWrong;
   private final Set<DexItem> checkDiscarded = Sets.newIdentityHashSet();
   private final Set<DexItem> alwaysInline = Sets.newIdentityHashSet();
   private final Map<DexItem, Map<DexItem, ProguardKeepRule>> dependentNoShrinking =
@@ -78,9 +77,12 @@ public class RootSetBuilder {
   private final Set<DexItem> identifierNameStrings = Sets.newIdentityHashSet();
   private final InternalOptions options;
 
-  private final com.debughelper.tools.r8.shaking.DexStringCache dexStringCache = new com.debughelper.tools.r8.shaking.DexStringCache();
+  private final com.debughelper.tools.r8.shaking.DexStringCache dexStringCache;
   private final Set<ProguardIfRule> ifRules = Sets.newIdentityHashSet();
 
+  // Number of classes matched against the wildcard rules by a single task.
+  private static final int CLASSES_PER_PARTITION = 256;
+
   public RootSetBuilder(
       AppInfo appInfo,
       DexApplication application,
@@ -90,6 +92,9 @@ public class RootSetBuilder {
     this.application = application.asDirect();
     this.rules = rules == null ? null : Collections.unmodifiableCollection(rules);
     this.options = options;
+    this.dexStringCache = new com.debughelper.tools.r8.shaking.DexStringCache();
+    this.rulesThatUseExtendsOrImplementsWrong =
+        Collections.synchronizedSet(Sets.newIdentityHashSet());
   }
 
   RootSetBuilder(
@@ -100,6 +105,22 @@ public class RootSetBuilder {
     this.application = appInfo.app.asDirect();
     this.rules = Collections.unmodifiableCollection(ifRules);
     this.options = options;
+    this.dexStringCache = new com.debughelper.tools.r8.shaking.DexStringCache();
+    this.rulesThatUseExtendsOrImplementsWrong =
+        Collections.synchronizedSet(Sets.newIdentityHashSet());
+  }
+
+  /**
+   * Creates a builder that collects the items matched by one partition of the work into its own
+   * sets, which are merged into the parent with {@link #addAll(RootSetBuilder)}.
+   */
+  private RootSetBuilder(RootSetBuilder parent) {
+    this.appInfo = parent.appInfo;
+    this.application = parent.application;
+    this.rules = null;
+    this.options = parent.options;
+    this.dexStringCache = parent.dexStringCache;
+    this.rulesThatUseExtendsOrImplementsWrong = parent.rulesThatUseExtendsOrImplementsWrong;
   }
 
   private boolean anySuperTypeMatches(
@@ -264,23 +285,31 @@ public class RootSetBuilder {
     }
   }
 
+  private boolean processSpecificTypes(
+      com.debughelper.tools.r8.shaking.ProguardConfigurationRule rule,
+      ProguardIfRule ifRule) {
+    List<DexType> specifics = rule.getClassNames().asSpecificDexTypes();
+    if (specifics == null) {
+      return false;
+    }
+    // This keep rule only lists specific type matches.
+    // This means there is no need to iterate over all classes.
+    for (DexType type : specifics) {
+      DexClass clazz = application.definitionFor(type);
+      // Ignore keep rule iff it does not reference a class in the app.
+      if (clazz != null) {
+        process(clazz, rule, ifRule);
+      }
+    }
+    return true;
+  }
+
   private void runPerRule(
       ExecutorService executorService,
       List<Future<?>> futures,
       com.debughelper.tools.r8.shaking.ProguardConfigurationRule rule,
       ProguardIfRule ifRule) {
-    List<DexType> specifics = rule.getClassNames().asSpecificDexTypes();
-    if (specifics != null) {
-      // This keep rule only lists specific type matches.
-      // This means there is no need to iterate over all classes.
-      for (DexType type : specifics) {
-        DexClass clazz = application.definitionFor(type);
-        // Ignore keep rule iff it does not reference a class in the app.
-        if (clazz != null) {
-          process(clazz, rule, ifRule);
-        }
-      }
-    } else {
+    if (!processSpecificTypes(rule, ifRule)) {
       futures.add(executorService.submit(() -> {
         for (DexProgramClass clazz : application.classes()) {
           process(clazz, rule, ifRule);
@@ -297,18 +326,19 @@ public class RootSetBuilder {
   public RootSet run(ExecutorService executorService) throws ExecutionException {
     application.timing.begin("Build root set...");
     try {
-      List<Future<?>> futures = new ArrayList<>();
       // Mark all the things explicitly listed in keep rules.
       if (rules != null) {
+        List<com.debughelper.tools.r8.shaking.ProguardConfigurationRule> wildcardRules =
+            new ArrayList<>();
         for (com.debughelper.tools.r8.shaking.ProguardConfigurationRule rule : rules) {
           if (rule instanceof ProguardIfRule) {
             ProguardIfRule ifRule = (ProguardIfRule) rule;
             ifRules.add(ifRule);
-          } else {
-            runPerRule(executorService, futures, rule, null);
+          } else if (!processSpecificTypes(rule, null)) {
+            wildcardRules.add(rule);
           }
         }
-        ThreadUtils.awaitFutures(futures);
+        runPartitioned(executorService, wildcardRules);
       }
     } finally {
       application.timing.end();
@@ -328,6 +358,115 @@ public class RootSetBuilder {
         ifRules);
   }
 
+  /**
+   * Match the wildcard rules against all classes, partitioning the work by class instead of by
+   * rule. Each partition collects its items separately and the partitions are merged in a fixed
+   * order, so the result does not depend on scheduling.
+   */
+  private void runPartitioned(
+      ExecutorService executorService,
+      List<com.debughelper.tools.r8.shaking.ProguardConfigurationRule> wildcardRules)
+      throws ExecutionException {
+    if (wildcardRules.isEmpty()) {
+      return;
+    }
+    List<RootSetBuilder> partitions = new ArrayList<>();
+    List<Future<?>> futures = new ArrayList<>();
+    submitPartitions(
+        executorService,
+        new RootSetClassIndex(application.classes()),
+        wildcardRules,
+        partitions,
+        futures);
+    List<com.debughelper.tools.r8.shaking.ProguardConfigurationRule> libraryRules =
+        wildcardRules.stream()
+            .filter(com.debughelper.tools.r8.shaking.ProguardConfigurationRule::applyToLibraryClasses)
+            .collect(Collectors.toList());
+    if (!libraryRules.isEmpty()) {
+      submitPartitions(
+          executorService,
+          new RootSetClassIndex(application.libraryClasses()),
+          libraryRules,
+          partitions,
+          futures);
+    }
+    ThreadUtils.awaitFutures(futures);
+    for (RootSetBuilder partition : partitions) {
+      addAll(partition);
+    }
+  }
+
+  private void submitPartitions(
+      ExecutorService executorService,
+      RootSetClassIndex index,
+      List<com.debughelper.tools.r8.shaking.ProguardConfigurationRule> wildcardRules,
+      List<RootSetBuilder> partitions,
+      List<Future<?>> futures) {
+    List<com.debughelper.tools.r8.shaking.ProguardConfigurationRule> partitionedRules =
+        new ArrayList<>();
+    List<RootSetClassIndex.Candidates> partitionedCandidates = new ArrayList<>();
+    for (com.debughelper.tools.r8.shaking.ProguardConfigurationRule rule : wildcardRules) {
+      RootSetClassIndex.Candidates candidates = index.getCandidates(rule);
+      if (candidates.size() == 0) {
+        continue;
+      }
+      if (usesBackReferences(rule)) {
+        // Matching captures the wildcards of the rule, so back references are only stable if
+        // the rule is not matched concurrently.
+        RootSetBuilder partition = new RootSetBuilder(this);
+        partitions.add(partition);
+        futures.add(executorService.submit(() -> {
+          candidates.forEach(clazz -> partition.process(clazz, rule, null));
+        }));
+      } else {
+        partitionedRules.add(rule);
+        partitionedCandidates.add(candidates);
+      }
+    }
+    if (partitionedRules.isEmpty()) {
+      return;
+    }
+    for (int start = 0; start < index.size(); start += CLASSES_PER_PARTITION) {
+      int end = Math.min(start + CLASSES_PER_PARTITION, index.size());
+      RootSetBuilder partition = new RootSetBuilder(this);
+      partitions.add(partition);
+      int partitionStart = start;
+      futures.add(executorService.submit(() -> {
+        for (int i = 0; i < partitionedRules.size(); i++) {
+          com.debughelper.tools.r8.shaking.ProguardConfigurationRule rule = partitionedRules.get(i);
+          partitionedCandidates.get(i).forEach(
+              partitionStart, end, clazz -> partition.process(clazz, rule, null));
+        }
+      }));
+    }
+  }
+
+  private static boolean usesBackReferences(
+      com.debughelper.tools.r8.shaking.ProguardConfigurationRule rule) {
+    for (ProguardWildcard wildcard : rule.getWildcards()) {
+      if (wildcard.isBackReference()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void addAll(RootSetBuilder partition) {
+    noShrinking.putAll(partition.noShrinking);
+    noOptimization.addAll(partition.noOptimization);
+    noObfuscation.addAll(partition.noObfuscation);
+    reasonAsked.addAll(partition.reasonAsked);
+    keepPackageName.addAll(partition.keepPackageName);
+    checkDiscarded.addAll(partition.checkDiscarded);
+    alwaysInline.addAll(partition.alwaysInline);
+    partition.dependentNoShrinking.forEach((item, dependents) ->
+        dependentNoShrinking.computeIfAbsent(item, x -> new IdentityHashMap<>())
+            .putAll(dependents));
+    noSideEffects.putAll(partition.noSideEffects);
+    assumedValues.putAll(partition.assumedValues);
+    identifierNameStrings.addAll(partition.identifierNameStrings);
+  }
+
   ConsequentRootSet runForIfRules(
       ExecutorService executorService,
       Set<DexType> liveTypes,
@@ -0,0 +1,149 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.shaking;
+
+import com.debughelper.tools.r8.graph.DexAnnotation;
+import com.debughelper.tools.r8.graph.DexClass;
+import com.debughelper.tools.r8.graph.DexType;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Index over the classes that keep rules are matched against when building the root set.
+ *
+ * <p>Classes are sorted by source name, so the classes whose name starts with a given literal
+ * prefix (e.g., the package of a rule like {@code -keep class com.example.**}) form a contiguous
+ * range. Classes are also indexed by the annotations they carry, so a rule with a specific class
+ * annotation only visits the classes annotated with it.
+ */
+class RootSetClassIndex {
+
+  /** The classes of the index that a rule may match, as a range or as sorted positions. */
+  static class Candidates {
+
+    private final RootSetClassIndex index;
+    private final int from;
+    private final int to;
+    private final IntList positions;
+
+    private Candidates(RootSetClassIndex index, int from, int to) {
+      this.index = index;
+      this.from = from;
+      this.to = to;
+      this.positions = null;
+    }
+
+    private Candidates(RootSetClassIndex index, IntList positions) {
+      this.index = index;
+      this.from = 0;
+      this.to = 0;
+      this.positions = positions;
+    }
+
+    int size() {
+      return positions == null ? to - from : positions.size();
+    }
+
+    /** Visit the candidates at positions in the index in the range [start, end). */
+    void forEach(int start, int end, Consumer<DexClass> consumer) {
+      if (positions == null) {
+        for (int i = Math.max(from, start); i < Math.min(to, end); i++) {
+          consumer.accept(index.classes[i]);
+        }
+        return;
+      }
+      int i = lowerBound(positions, start);
+      while (i < positions.size() && positions.getInt(i) < end) {
+        consumer.accept(index.classes[positions.getInt(i)]);
+        i++;
+      }
+    }
+
+    void forEach(Consumer<DexClass> consumer) {
+      forEach(0, index.size(), consumer);
+    }
+  }
+
+  private static final IntList NO_POSITIONS = new IntArrayList(0);
+
+  private final DexClass[] classes;
+  private final String[] names;
+  private final Map<DexType, IntList> annotated = new IdentityHashMap<>();
+
+  RootSetClassIndex(Collection<? extends DexClass> classes) {
+    this.classes = classes.toArray(new DexClass[classes.size()]);
+    this.names = new String[this.classes.length];
+    Arrays.sort(this.classes, Comparator.comparing(clazz -> clazz.type.toSourceString()));
+    for (int i = 0; i < this.classes.length; i++) {
+      DexClass clazz = this.classes[i];
+      names[i] = clazz.type.toSourceString();
+      for (DexAnnotation annotation : clazz.annotations.annotations) {
+        annotated.computeIfAbsent(annotation.annotation.type, k -> new IntArrayList()).add(i);
+      }
+    }
+  }
+
+  int size() {
+    return classes.length;
+  }
+
+  /** Returns a superset of the classes in this index that the given rule can match. */
+  Candidates getCandidates(ProguardConfigurationRule rule) {
+    Candidates result;
+    String prefix = rule.getClassNames().getLiteralPrefix();
+    if (prefix.isEmpty()) {
+      result = new Candidates(this, 0, classes.length);
+    } else {
+      int from = lowerBound(names, prefix);
+      int to = from;
+      while (to < names.length && names[to].startsWith(prefix)) {
+        to++;
+      }
+      result = new Candidates(this, from, to);
+    }
+    ProguardTypeMatcher annotation = rule.getClassAnnotation();
+    DexType annotationType = annotation == null ? null : annotation.getSpecificType();
+    if (annotationType != null) {
+      IntList positions = annotated.getOrDefault(annotationType, NO_POSITIONS);
+      if (positions.size() < result.size()) {
+        result = new Candidates(this, positions);
+      }
+    }
+    return result;
+  }
+
+  private static int lowerBound(String[] sorted, String key) {
+    int low = 0;
+    int high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid].compareTo(key) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static int lowerBound(IntList sorted, int key) {
+    int low = 0;
+    int high = sorted.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted.getInt(mid) < key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
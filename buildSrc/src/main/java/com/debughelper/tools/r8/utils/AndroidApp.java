@@ -370,14 +370,14 @@ public class AndroidApp {
     /** Add library file resources. */
     public Builder addLibraryFiles(Collection<Path> files) throws IOException {
       for (Path file : files) {
-        addClasspathOrLibraryProvider(file, libraryResourceProviders);
+        addLibraryProvider(file);
       }
       return this;
     }
 
     /** Add library file resource. */
     public Builder addLibraryFile(Path file) throws IOException {
-      addClasspathOrLibraryProvider(file, libraryResourceProviders);
+      addLibraryProvider(file);
       return this;
     }
 
@@ -591,6 +591,15 @@ public class AndroidApp {
       }
     }
 
+    private void addLibraryProvider(Path file) throws IOException {
+      if (LibraryArchiveSnapshot.isShared(file) && Files.exists(file)) {
+        // The platform library is shared between compilations in the same process.
+        libraryResourceProviders.add(LibraryArchiveSnapshot.get(file));
+      } else {
+        addClasspathOrLibraryProvider(file, libraryResourceProviders);
+      }
+    }
+
     public List<ProgramResourceProvider> getProgramResourceProviders() {
       return programResourceProviders;
     }
@@ -10,20 +10,16 @@ import com.debughelper.tools.r8.DiagnosticsHandler;
 import com.debughelper.tools.r8.ResourceException;
 import com.debughelper.tools.r8.origin.Origin;
 import com.debughelper.tools.r8.origin.PathOrigin;
-import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipOutputStream;
 
 public class ArchiveBuilder implements OutputBuilder {
   private final Path archive;
   private final com.debughelper.tools.r8.origin.Origin origin;
-  private ZipOutputStream stream = null;
+  private ConcurrentZipWriter writer = null;
   private boolean closed = false;
   private int openCount = 0;
 
@@ -45,32 +41,31 @@ public class ArchiveBuilder implements OutputBuilder {
     if (openCount == 0) {
       closed = true;
       try {
-        getStreamRaw().close();
-        stream = null;
+        getWriterRaw().close();
+        writer = null;
       } catch (IOException e) {
         handler.error(new ExceptionDiagnostic(e, origin));
       }
     }
   }
 
-  private ZipOutputStream getStreamRaw() throws IOException {
-    if (stream != null) {
-      return stream;
+  private ConcurrentZipWriter getWriterRaw() throws IOException {
+    if (writer != null) {
+      return writer;
     }
-    stream = new ZipOutputStream(Files.newOutputStream(
-        archive, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
-    return stream;
+    writer = new ConcurrentZipWriter(archive);
+    return writer;
   }
 
-  /** Get or open the zip output stream. */
-  private synchronized ZipOutputStream getStream(com.debughelper.tools.r8.DiagnosticsHandler handler) {
+  /** Get or open the zip writer. */
+  private synchronized ConcurrentZipWriter getWriter(DiagnosticsHandler handler) {
     assert !closed;
     try {
-      getStreamRaw();
+      getWriterRaw();
     } catch (IOException e) {
       handler.error(new ExceptionDiagnostic(e, origin));
     }
-    return stream;
+    return writer;
   }
 
   private void handleIOException(IOException e, com.debughelper.tools.r8.DiagnosticsHandler handler) {
@@ -88,22 +83,18 @@ public class ArchiveBuilder implements OutputBuilder {
     if (name.charAt(name.length() - 1) != com.debughelper.tools.r8.DataResource.SEPARATOR) {
       name += DataResource.SEPARATOR;
     }
-    ZipEntry entry = new ZipEntry(name);
-    ZipOutputStream zip = getStream(handler);
-    synchronized (this) {
-      try {
-        zip.putNextEntry(entry);
-        zip.closeEntry();
-      } catch (IOException e) {
-        handleIOException(e, handler);
-      }
+    try {
+      getWriter(handler).write(ConcurrentZipWriter.prepareDirectory(name, -1));
+    } catch (IOException e) {
+      handleIOException(e, handler);
     }
   }
 
   @Override
   public void addFile(String name, DataEntryResource content, com.debughelper.tools.r8.DiagnosticsHandler handler) {
+    // The content is read and its CRC computed without holding a lock.
     try (InputStream in = content.getByteStream()) {
-      addFile(name, ByteStreams.toByteArray(in), handler);
+      getWriter(handler).write(ConcurrentZipWriter.prepare(name, in, -1, ZipEntry.STORED));
     } catch (IOException e) {
       handleIOException(e, handler);
     } catch (ResourceException e) {
@@ -112,10 +103,11 @@ public class ArchiveBuilder implements OutputBuilder {
     }
   }
 
-   @Override
-   public synchronized void addFile(String name, byte[] content, DiagnosticsHandler handler) {
+  @Override
+  public void addFile(String name, byte[] content, DiagnosticsHandler handler) {
     try {
-      ZipUtils.writeToZipStream(getStream(handler), name, content, ZipEntry.STORED);
+      getWriter(handler)
+          .write(ConcurrentZipWriter.prepare(name, content, -1, ZipEntry.STORED));
     } catch (IOException e) {
       handleIOException(e, handler);
     }
@@ -0,0 +1,356 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Zip archive writer for entries produced concurrently.
+ *
+ * <p>The expensive part of adding an entry, computing the CRC and compressing the content, is done
+ * by {@link #prepare} on the calling thread and produces an independent {@link Chunk}. Writing a
+ * chunk only appends its header and data to the archive under a short lock. Chunks are appended in
+ * the order they are written, or, with {@link #write(int, Chunk)}, in the order of their sequence
+ * numbers regardless of the order in which they are produced. The central directory is written
+ * once by {@link #close()}.
+ *
+ * <p>Archives that would need zip64 extensions are not supported.
+ */
+public final class ConcurrentZipWriter implements Closeable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_HEADER_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int UTF8_FLAG = 0x800;
+  private static final int MAX_ENTRIES = 0xffff;
+  private static final long MAX_OFFSET = 0xffffffffL;
+
+  /** An entry ready to be appended to an archive. */
+  public static final class Chunk {
+    private final String name;
+    private final byte[] nameBytes;
+    private final int method;
+    private final int dosTime;
+    private final int crc;
+    private final int size;
+    private final byte[] data;
+    private final int dataLength;
+
+    private Chunk(
+        String name, int method, long time, int crc, int size, byte[] data, int dataLength) {
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      this.method = method;
+      this.dosTime = toDosTime(time);
+      this.crc = crc;
+      this.size = size;
+      this.data = data;
+      this.dataLength = dataLength;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    private int versionNeeded() {
+      return method == ZipEntry.STORED ? 10 : 20;
+    }
+  }
+
+  private final OutputStream out;
+  private final Object lock = new Object();
+  private final List<Chunk> written = new ArrayList<>();
+  private final List<Long> offsets = new ArrayList<>();
+  private final Set<String> names = new HashSet<>();
+  private final Map<Integer, Chunk> pending = new HashMap<>();
+  private int nextSequence = 0;
+  private long offset = 0;
+  private boolean closed = false;
+
+  public ConcurrentZipWriter(Path archive) throws IOException {
+    this(
+        new BufferedOutputStream(
+            Files.newOutputStream(
+                archive,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)));
+  }
+
+  public ConcurrentZipWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Prepare an entry with the given content. A time of -1 stands for the current time. Stored
+   * entries keep a reference to the content, which must not be changed afterwards.
+   *
+   * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+   */
+  public static Chunk prepare(String name, byte[] content, long time, int method) {
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    if (method == ZipEntry.STORED) {
+      return new Chunk(
+          name, method, time, (int) crc.getValue(), content.length, content, content.length);
+    }
+    assert method == ZipEntry.DEFLATED;
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      ExposedByteArrayOutputStream compressed =
+          new ExposedByteArrayOutputStream(Math.max(64, content.length / 2));
+      try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater)) {
+        stream.write(content);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      return new Chunk(
+          name,
+          method,
+          time,
+          (int) crc.getValue(),
+          content.length,
+          compressed.buffer(),
+          compressed.size());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Prepare an entry reading its content from the stream. Deflated content is compressed while it
+   * is read, so only the compressed content is kept.
+   */
+  public static Chunk prepare(String name, InputStream content, long time, int method)
+      throws IOException {
+    if (method == ZipEntry.STORED) {
+      ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream(8192);
+      copy(content, bytes, null);
+      CRC32 crc = new CRC32();
+      crc.update(bytes.buffer(), 0, bytes.size());
+      return new Chunk(
+          name, method, time, (int) crc.getValue(), bytes.size(), bytes.buffer(), bytes.size());
+    }
+    assert method == ZipEntry.DEFLATED;
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      CRC32 crc = new CRC32();
+      ExposedByteArrayOutputStream compressed = new ExposedByteArrayOutputStream(8192);
+      long size;
+      try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater)) {
+        size = copy(content, stream, crc);
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new ZipException("Entry too large: " + name);
+      }
+      return new Chunk(
+          name,
+          method,
+          time,
+          (int) crc.getValue(),
+          (int) size,
+          compressed.buffer(),
+          compressed.size());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Prepare a directory entry. */
+  public static Chunk prepareDirectory(String name, long time) {
+    assert name.endsWith("/");
+    return new Chunk(name, ZipEntry.STORED, time, 0, 0, new byte[0], 0);
+  }
+
+  private static long copy(InputStream in, OutputStream out, CRC32 crc) throws IOException {
+    byte[] buffer = new byte[8192];
+    long total = 0;
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      if (crc != null) {
+        crc.update(buffer, 0, read);
+      }
+      out.write(buffer, 0, read);
+      total += read;
+    }
+    return total;
+  }
+
+  /** Append the chunk after the chunks written before. */
+  public void write(Chunk chunk) throws IOException {
+    synchronized (lock) {
+      assert pending.isEmpty() && nextSequence == 0;
+      append(chunk);
+    }
+  }
+
+  /**
+   * Append the chunk after the chunks with lower sequence numbers. Sequence numbers start at zero
+   * and must all be written before the archive is closed. Chunks written ahead of their turn are
+   * held until the chunks before them are written, so callers bound the memory used by limiting
+   * how far ahead of the lowest unwritten sequence number they produce chunks.
+   */
+  public void write(int sequence, Chunk chunk) throws IOException {
+    synchronized (lock) {
+      assert sequence >= nextSequence && !pending.containsKey(sequence);
+      pending.put(sequence, chunk);
+      while ((chunk = pending.remove(nextSequence)) != null) {
+        nextSequence++;
+        append(chunk);
+      }
+    }
+  }
+
+  private void append(Chunk chunk) throws IOException {
+    if (closed) {
+      throw new ZipException("Archive is closed");
+    }
+    if (!names.add(chunk.name)) {
+      // Same message as ZipOutputStream, which callers may rely on.
+      throw new ZipException("duplicate entry: " + chunk.name);
+    }
+    if (written.size() == MAX_ENTRIES) {
+      throw new ZipException("Too many entries for an archive without zip64 extensions");
+    }
+    ByteBuffer header =
+        ByteBuffer.allocate(LOCAL_HEADER_SIZE + chunk.nameBytes.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort((short) chunk.versionNeeded());
+    header.putShort((short) UTF8_FLAG);
+    header.putShort((short) chunk.method);
+    header.putInt(chunk.dosTime);
+    header.putInt(chunk.crc);
+    header.putInt(chunk.dataLength);
+    header.putInt(chunk.size);
+    header.putShort((short) chunk.nameBytes.length);
+    header.putShort((short) 0);
+    header.put(chunk.nameBytes);
+    long end = offset + header.capacity() + chunk.dataLength;
+    if (end > MAX_OFFSET) {
+      throw new ZipException("Archive too large for an archive without zip64 extensions");
+    }
+    out.write(header.array());
+    out.write(chunk.data, 0, chunk.dataLength);
+    written.add(chunk);
+    offsets.add(offset);
+    offset = end;
+  }
+
+  /** Write the central directory and close the archive. */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (!pending.isEmpty()) {
+          throw new ZipException("Missing entry with sequence number " + nextSequence);
+        }
+        long directoryOffset = offset;
+        for (int i = 0; i < written.size(); i++) {
+          Chunk chunk = written.get(i);
+          ByteBuffer header =
+              ByteBuffer.allocate(CENTRAL_HEADER_SIZE + chunk.nameBytes.length)
+                  .order(ByteOrder.LITTLE_ENDIAN);
+          header.putInt(CENTRAL_HEADER_SIGNATURE);
+          header.putShort((short) chunk.versionNeeded());
+          header.putShort((short) chunk.versionNeeded());
+          header.putShort((short) UTF8_FLAG);
+          header.putShort((short) chunk.method);
+          header.putInt(chunk.dosTime);
+          header.putInt(chunk.crc);
+          header.putInt(chunk.dataLength);
+          header.putInt(chunk.size);
+          header.putShort((short) chunk.nameBytes.length);
+          header.putShort((short) 0); // extra field length
+          header.putShort((short) 0); // comment length
+          header.putShort((short) 0); // disk number
+          header.putShort((short) 0); // internal attributes
+          header.putInt(0); // external attributes
+          header.putInt((int) (long) offsets.get(i));
+          header.put(chunk.nameBytes);
+          out.write(header.array());
+          offset += header.capacity();
+        }
+        if (offset > MAX_OFFSET) {
+          throw new ZipException("Archive too large for an archive without zip64 extensions");
+        }
+        ByteBuffer end = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_HEADER_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) written.size());
+        end.putShort((short) written.size());
+        end.putInt((int) (offset - directoryOffset));
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0);
+        out.write(end.array());
+      } finally {
+        written.clear();
+        out.close();
+      }
+    }
+  }
+
+  /** Convert to MS-DOS date and time in the default time zone, as {@link ZipEntry} does. */
+  private static int toDosTime(long time) {
+    if (time == -1) {
+      time = System.currentTimeMillis();
+    }
+    LocalDateTime date =
+        LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+    int year = date.getYear();
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (year - 1980) << 25
+        | date.getMonthValue() << 21
+        | date.getDayOfMonth() << 16
+        | date.getHour() << 11
+        | date.getMinute() << 5
+        | date.getSecond() >> 1;
+  }
+
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    ExposedByteArrayOutputStream(int size) {
+      super(size);
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+}
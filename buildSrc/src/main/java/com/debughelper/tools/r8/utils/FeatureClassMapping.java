@@ -18,7 +18,6 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -51,7 +50,11 @@ public final class FeatureClassMapping {
   HashMap<String, String> parsedRules = new HashMap<>(); // Already parsed rules.
   boolean usesOnlyExactMappings = true;
 
-  HashSet<FeaturePredicate> mappings = new HashSet<>();
+  // Class rules by class name, and package rules as a trie of package name segments. A class
+  // rule is always more specific than the package rules matching the same class, and the most
+  // specific package rule is the deepest one on the path of the package of the class.
+  private final HashMap<String, String> classRules = new HashMap<>();
+  private final PackageNode packageRules = new PackageNode();
 
   Path mappingFile;
   String baseName = DEFAULT_BASE_NAME;
@@ -149,22 +152,11 @@ public final class FeatureClassMapping {
   }
 
   public String featureForClass(String clazz) {
-    if (usesOnlyExactMappings) {
-      return parsedRules.getOrDefault(clazz, baseName);
-    } else {
-      FeaturePredicate bestMatch = null;
-      for (FeaturePredicate mapping : mappings) {
-        if (mapping.match(clazz)) {
-          if (bestMatch == null || bestMatch.predicate.length() < mapping.predicate.length()) {
-            bestMatch = mapping;
-          }
-        }
-      }
-      if (bestMatch == null) {
-        return baseName;
-      }
-      return bestMatch.feature;
+    String feature = classRules.get(clazz);
+    if (feature == null && !usesOnlyExactMappings) {
+      feature = packageRules.featureForClass(clazz);
     }
+    return feature != null ? feature : baseName;
   }
 
   private void parseAndAdd(String line, int lineNumber) throws FeatureMappingException {
@@ -198,8 +190,12 @@ public final class FeatureClassMapping {
     }
     parsedRules.put(predicate, feature);
     FeaturePredicate featurePredicate = new FeaturePredicate(predicate, feature);
-    mappings.add(featurePredicate);
-    usesOnlyExactMappings &= featurePredicate.isExactmapping();
+    if (featurePredicate.isExactmapping()) {
+      classRules.put(featurePredicate.predicate, feature);
+    } else {
+      packageRules.add(featurePredicate.predicate, feature);
+      usesOnlyExactMappings = false;
+    }
   }
 
   private void error(String error, int line) throws FeatureMappingException {
@@ -244,18 +240,46 @@ public final class FeatureClassMapping {
       this.feature = feature;
     }
 
-    boolean match(String className) {
-      if (isCatchAll) {
-        return true;
-      } else if (isWildcard) {
-        return className.startsWith(predicate);
-      } else {
-        return className.equals(predicate);
+    boolean isExactmapping() {
+      return !isWildcard && !isCatchAll;
+    }
+  }
+
+  /** A node of the package trie, for the package named by the segments on the path to it. */
+  private static class PackageNode {
+    final HashMap<String, PackageNode> children = new HashMap<>();
+    // Feature of the package rule for this package, if any.
+    String feature;
+
+    // Add a rule for a package prefix, which is empty or ends with a dot.
+    void add(String prefix, String feature) {
+      PackageNode node = this;
+      int start = 0;
+      int end;
+      while ((end = prefix.indexOf('.', start)) >= 0) {
+        node = node.children.computeIfAbsent(prefix.substring(start, end), k -> new PackageNode());
+        start = end + 1;
       }
+      assert start == prefix.length();
+      node.feature = feature;
     }
 
-    boolean isExactmapping() {
-      return !isWildcard && !isCatchAll;
+    String featureForClass(String className) {
+      PackageNode node = this;
+      String feature = node.feature;
+      int start = 0;
+      int end;
+      while ((end = className.indexOf('.', start)) >= 0) {
+        node = node.children.get(className.substring(start, end));
+        if (node == null) {
+          break;
+        }
+        if (node.feature != null) {
+          feature = node.feature;
+        }
+        start = end + 1;
+      }
+      return feature;
     }
   }
 }
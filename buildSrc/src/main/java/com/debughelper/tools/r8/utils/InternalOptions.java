@@ -90,9 +90,23 @@ public class InternalOptions {
   }
 
   public boolean printTimes = System.getProperty("com.debughelper.tools.r8.printtimes") != null;
+  // Per-method timings of IR processing. The slowest methods are printed at the end of IR
+  // conversion, or all methods are written as JSON if a file is given.
+  public boolean printMethodTimes =
+      System.getProperty("com.debughelper.tools.r8.printmethodtimes") != null;
+  public String printMethodTimesFile =
+      System.getProperty("com.debughelper.tools.r8.printmethodtimesfile");
+  public int printMethodTimesLimit = 50;
+  // Directory for the per-class output cache of D8, used when generating a dex file per class
+  // file. See DesugaredOutputCache.
+  public String desugaredOutputCacheDirectory =
+      System.getProperty("com.debughelper.tools.r8.desugaredoutputcache");
 
   // Flag to toggle if DEX code objects should pass-through without IR processing.
   public boolean passthroughDexCode = false;
+  // Release the code of methods once written, to save memory. Disabled when the same classes are
+  // written again, as in bisection.
+  public boolean releaseCodeAfterWriting = true;
 
   // Optimization-related flags. These should conform to -dontoptimize.
   public boolean enableClassMerging = false;
@@ -178,6 +192,9 @@ public class InternalOptions {
   // Skipping min_api check and compiling an intermediate result intended for later merging.
   // Intermediate builds also emits or update synthesized classes mapping.
   public boolean intermediate = false;
+  // Place the marker in every dex file when generating a dex file per class file, as if each
+  // class had been compiled on its own.
+  public boolean markerInDexFilePerClassFile = false;
   public List<String> logArgumentsFilter = ImmutableList.of();
 
   // Flag to turn on/off lambda class merging in R8.
@@ -228,6 +245,11 @@ public class InternalOptions {
    * constraints.
    */
   public boolean enableInheritanceClassInDexDistributor = true;
+  /**
+   * Distribute classes that are not in the main dex by packing whole packages into as few dex files
+   * as possible, instead of filling the files in package order. See VirtualFile.PackingPopulator.
+   */
+  public boolean packDexFiles = System.getProperty("com.debughelper.tools.r8.packdexfiles") != null;
 
   public LineNumberOptimization lineNumberOptimization = LineNumberOptimization.ON;
 
@@ -435,6 +457,9 @@ public class InternalOptions {
     public int minSize = 3;
     public int maxSize = 99;
     public int threshold = 20;
+    // Total size, in instructions of the input code, of the methods for which the IR built for
+    // identifying outline sites is kept for applying the outlines instead of being built again.
+    public int retainedIRSize = 500000;
   }
 
   public static class TestingOptions {
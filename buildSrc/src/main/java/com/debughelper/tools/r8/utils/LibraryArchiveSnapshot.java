@@ -0,0 +1,248 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.utils;
+
+import static com.debughelper.tools.r8.utils.FileUtils.CLASS_EXTENSION;
+
+import com.debughelper.tools.r8.ClassFileResourceProvider;
+import com.debughelper.tools.r8.ProgramResource;
+import com.debughelper.tools.r8.ProgramResource.Kind;
+import com.debughelper.tools.r8.errors.CompilationError;
+import com.debughelper.tools.r8.origin.ArchiveEntryOrigin;
+import com.debughelper.tools.r8.origin.Origin;
+import com.debughelper.tools.r8.origin.PathOrigin;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Process-wide, immutable view of the class files in a library archive.
+ *
+ * <p>Library archives such as android.jar are large and rarely change, but each compilation used
+ * to open the archive, index all its entries and read the classes it needed again. A snapshot is
+ * shared by all compilations in the process that add the same archive as a library, as long as
+ * the size and modification time of the archive are unchanged. The bytes of a class are read once
+ * on first request and then shared, up to {@link #MAX_CACHED_BYTES} per archive.
+ *
+ * <p>Only android.jar and the archives listed in the {@code
+ * com.debughelper.tools.r8.sharedlibraries} property are shared, and at most {@link
+ * #MAX_SNAPSHOTS} snapshots are kept. Each compilation gets its own handle on a snapshot. The
+ * archive of a snapshot that was evicted, replaced or deleted is closed once the last handle on it
+ * is closed.
+ *
+ * <p>Only the class-file bytes are shared. The {@link
+ * com.debughelper.tools.r8.graph.DexLibraryClass} objects are created from them per compilation,
+ * as they are bound to the item factory of that compilation.
+ */
+final class LibraryArchiveSnapshot {
+
+  private static final boolean ENABLED =
+      System.getProperty("com.debughelper.tools.r8.nosharedlibraries") == null;
+
+  private static final String PLATFORM_ARCHIVE = "android.jar";
+
+  // Archives shared in addition to android.jar, separated by the path separator.
+  private static final Set<Path> SHARED_ARCHIVES =
+      parseArchives(System.getProperty("com.debughelper.tools.r8.sharedlibraries"));
+
+  private static final int MAX_SNAPSHOTS = 4;
+
+  private static final long MAX_CACHED_BYTES = 64 * 1024 * 1024;
+
+  // Snapshots in order of use, least recently used first. Also guards the reference counts.
+  private static final Map<Path, LibraryArchiveSnapshot> snapshots =
+      new LinkedHashMap<>(16, 0.75f, true);
+
+  private final Origin origin;
+  private final long size;
+  private final long lastModified;
+  private final ZipFile zipFile;
+  private final Set<String> descriptors;
+  private final ConcurrentMap<String, byte[]> classes = new ConcurrentHashMap<>();
+  private final AtomicLong cachedBytes = new AtomicLong();
+  // One reference for being in the snapshots map, and one for each open handle.
+  private int references = 1;
+
+  private LibraryArchiveSnapshot(Path archive, long size, long lastModified) throws IOException {
+    this.origin = new PathOrigin(archive);
+    this.size = size;
+    this.lastModified = lastModified;
+    this.zipFile = new ZipFile(archive.toFile(), StandardCharsets.UTF_8);
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    while (entries.hasMoreElements()) {
+      String name = entries.nextElement().getName();
+      if (ZipUtils.isClassFile(name)) {
+        builder.add(DescriptorUtils.guessTypeDescriptor(name));
+      }
+    }
+    this.descriptors = builder.build();
+  }
+
+  private static Set<Path> parseArchives(String archives) {
+    if (archives == null) {
+      return Collections.emptySet();
+    }
+    ImmutableSet.Builder<Path> builder = ImmutableSet.builder();
+    for (String archive : archives.split(File.pathSeparator)) {
+      if (!archive.isEmpty()) {
+        builder.add(Paths.get(archive).toAbsolutePath().normalize());
+      }
+    }
+    return builder.build();
+  }
+
+  /** Returns true if the library archive is shared between compilations. */
+  static boolean isShared(Path archive) {
+    if (!ENABLED || !FileUtils.isArchive(archive)) {
+      return false;
+    }
+    Path fileName = archive.getFileName();
+    return (fileName != null && fileName.toString().equals(PLATFORM_ARCHIVE))
+        || SHARED_ARCHIVES.contains(archive.toAbsolutePath().normalize());
+  }
+
+  /**
+   * Returns a handle on the snapshot for the archive, creating the snapshot if the archive is new
+   * or has changed.
+   */
+  static ClassFileResourceProvider get(Path archive) throws IOException {
+    Path key = archive.toRealPath();
+    BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    synchronized (snapshots) {
+      removeDeletedSnapshots();
+      LibraryArchiveSnapshot snapshot = snapshots.get(key);
+      if (snapshot != null && (snapshot.size != size || snapshot.lastModified != lastModified)) {
+        snapshots.remove(key);
+        snapshot.release();
+        snapshot = null;
+      }
+      if (snapshot == null) {
+        snapshot = new LibraryArchiveSnapshot(key, size, lastModified);
+        snapshots.put(key, snapshot);
+        Iterator<LibraryArchiveSnapshot> iterator = snapshots.values().iterator();
+        while (snapshots.size() > MAX_SNAPSHOTS) {
+          LibraryArchiveSnapshot eldest = iterator.next();
+          iterator.remove();
+          eldest.release();
+        }
+      }
+      snapshot.references++;
+      return new Handle(snapshot);
+    }
+  }
+
+  private static void removeDeletedSnapshots() {
+    assert Thread.holdsLock(snapshots);
+    Iterator<Map.Entry<Path, LibraryArchiveSnapshot>> iterator = snapshots.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Path, LibraryArchiveSnapshot> entry = iterator.next();
+      if (!Files.exists(entry.getKey())) {
+        iterator.remove();
+        entry.getValue().release();
+      }
+    }
+  }
+
+  private void release() {
+    assert Thread.holdsLock(snapshots);
+    assert references > 0;
+    if (--references == 0) {
+      try {
+        zipFile.close();
+      } catch (IOException e) {
+        // Nothing is read from the archive anymore.
+      }
+    }
+  }
+
+  private ProgramResource getProgramResource(String descriptor) {
+    if (!descriptors.contains(descriptor)) {
+      return null;
+    }
+    String name = descriptor.substring(1, descriptor.length() - 1) + CLASS_EXTENSION;
+    byte[] bytes = classes.get(descriptor);
+    if (bytes == null) {
+      bytes = read(name);
+      if (cachedBytes.addAndGet(bytes.length) <= MAX_CACHED_BYTES) {
+        byte[] previous = classes.putIfAbsent(descriptor, bytes);
+        if (previous != null) {
+          cachedBytes.addAndGet(-bytes.length);
+          bytes = previous;
+        }
+      } else {
+        cachedBytes.addAndGet(-bytes.length);
+      }
+    }
+    return ProgramResource.fromBytes(
+        new ArchiveEntryOrigin(name, origin), Kind.CF, bytes, Collections.singleton(descriptor));
+  }
+
+  private byte[] read(String name) {
+    ZipEntry entry = zipFile.getEntry(name);
+    try (InputStream inputStream = zipFile.getInputStream(entry)) {
+      return ByteStreams.toByteArray(inputStream);
+    } catch (IOException e) {
+      throw new CompilationError("Failed to read '" + name + "'", e, origin);
+    }
+  }
+
+  /** The view of one compilation on a snapshot, keeping the archive of the snapshot open. */
+  private static final class Handle implements ClassFileResourceProvider, Closeable {
+
+    private final LibraryArchiveSnapshot snapshot;
+    private boolean closed = false;
+
+    private Handle(LibraryArchiveSnapshot snapshot) {
+      this.snapshot = snapshot;
+    }
+
+    @Override
+    public Set<String> getClassDescriptors() {
+      return snapshot.descriptors;
+    }
+
+    @Override
+    public ProgramResource getProgramResource(String descriptor) {
+      return snapshot.getProgramResource(descriptor);
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+      close();
+      super.finalize();
+    }
+
+    @Override
+    public void close() {
+      synchronized (snapshots) {
+        if (!closed) {
+          closed = true;
+          snapshot.release();
+        }
+      }
+    }
+  }
+}
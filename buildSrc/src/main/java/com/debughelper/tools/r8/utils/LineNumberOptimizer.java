@@ -19,6 +19,7 @@ import com.debughelper.tools.r8.graph.DexProgramClass;
 import com.debughelper.tools.r8.graph.DexString;
 import com.debughelper.tools.r8.naming.ClassNaming;
 import com.debughelper.tools.r8.naming.ClassNaming.Builder;
+import com.debughelper.tools.r8.naming.ClassNamingForNameMapper;
 import com.debughelper.tools.r8.naming.MemberNaming;
 import com.debughelper.tools.r8.naming.MemberNaming.FieldSignature;
 import com.debughelper.tools.r8.naming.MemberNaming.MethodSignature;
@@ -27,12 +28,15 @@ import com.debughelper.tools.r8.ir.code.Position;
 import com.debughelper.tools.r8.naming.ClassNameMapper;
 import com.debughelper.tools.r8.naming.NamingLens;
 import com.debughelper.tools.r8.naming.Range;
-import com.google.common.base.Suppliers;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
 public class LineNumberOptimizer {
@@ -117,28 +121,12 @@ public class LineNumberOptimizer {
     }
   }
 
-  // PositionRemapper is a stateful function which takes a position (represented by a
+  // OptimizingPositionRemapper is a stateful function which takes a position (represented by a
   // DexDebugPositionState) and returns a remapped Position.
-  private interface PositionRemapper {
-    com.debughelper.tools.r8.ir.code.Position createRemappedPosition(DexDebugPositionState positionState);
-  }
-
-  private static class IdentityPositionRemapper implements PositionRemapper {
-    @Override
-    public com.debughelper.tools.r8.ir.code.Position createRemappedPosition(DexDebugPositionState positionState) {
-      return new com.debughelper.tools.r8.ir.code.Position(
-          positionState.getCurrentLine(),
-          positionState.getCurrentFile(),
-          positionState.getCurrentMethod(),
-          positionState.getCurrentCallerPosition());
-    }
-  }
-
-  private static class OptimizingPositionRemapper implements PositionRemapper {
+  private static class OptimizingPositionRemapper {
     private int nextLineNumber = 1;
 
-    @Override
-    public com.debughelper.tools.r8.ir.code.Position createRemappedPosition(DexDebugPositionState positionState) {
+    private com.debughelper.tools.r8.ir.code.Position createRemappedPosition(DexDebugPositionState positionState) {
       com.debughelper.tools.r8.ir.code.Position newPosition =
           new com.debughelper.tools.r8.ir.code.Position(
               nextLineNumber,
@@ -189,198 +177,312 @@ public class LineNumberOptimizer {
     }
   }
 
-  // We will be remapping positional debug events and collect them as MappedPositions.
-  private static class MappedPosition {
-    private final DexMethod method;
-    private final int originalLine;
-    private final com.debughelper.tools.r8.ir.code.Position caller;
-    private final int obfuscatedLine;
+  // We will be remapping positional debug events and collect them as mapped positions: the method,
+  // original line, caller and obfuscated line of each position. They are kept in arrays reused for
+  // all the methods processed by a task rather than in an object per position.
+  private static class MappedPositions {
+    private int size = 0;
+    // Original and obfuscated line of each position.
+    private int[] lines = new int[32];
+    private DexMethod[] methods = new DexMethod[16];
+    private com.debughelper.tools.r8.ir.code.Position[] callers =
+        new com.debughelper.tools.r8.ir.code.Position[16];
+
+    private void add(
+        DexMethod method, int originalLine, com.debughelper.tools.r8.ir.code.Position caller,
+        int obfuscatedLine) {
+      if (size == methods.length) {
+        lines = Arrays.copyOf(lines, size * 4);
+        methods = Arrays.copyOf(methods, size * 2);
+        callers = Arrays.copyOf(callers, size * 2);
+      }
+      lines[2 * size] = originalLine;
+      lines[2 * size + 1] = obfuscatedLine;
+      methods[size] = method;
+      callers[size] = caller;
+      size++;
+    }
 
-    private MappedPosition(
-            DexMethod method, int originalLine, com.debughelper.tools.r8.ir.code.Position caller, int obfuscatedLine) {
-      this.method = method;
-      this.originalLine = originalLine;
-      this.caller = caller;
-      this.obfuscatedLine = obfuscatedLine;
+    private void clear() {
+      Arrays.fill(methods, 0, size, null);
+      Arrays.fill(callers, 0, size, null);
+      size = 0;
+    }
+
+    private boolean isEmpty() {
+      return size == 0;
+    }
+
+    private int size() {
+      return size;
+    }
+
+    private DexMethod method(int index) {
+      return methods[index];
+    }
+
+    private int originalLine(int index) {
+      return lines[2 * index];
+    }
+
+    private com.debughelper.tools.r8.ir.code.Position caller(int index) {
+      return callers[index];
+    }
+
+    private int obfuscatedLine(int index) {
+      return lines[2 * index + 1];
     }
   }
 
+  // Creates the ClassNaming.Builder of a class the first time it is needed.
+  private static class OnDemandClassNamingBuilder
+      implements Supplier<com.debughelper.tools.r8.naming.ClassNaming.Builder> {
+    private final DexProgramClass clazz;
+    private final DexString renamedClassName;
+    private ClassNamingForNameMapper.Builder classNamingBuilder = null;
+
+    private OnDemandClassNamingBuilder(DexProgramClass clazz, DexString renamedClassName) {
+      this.clazz = clazz;
+      this.renamedClassName = renamedClassName;
+    }
+
+    @Override
+    public com.debughelper.tools.r8.naming.ClassNaming.Builder get() {
+      if (classNamingBuilder == null) {
+        classNamingBuilder =
+            ClassNamingForNameMapper.builder(
+                DescriptorUtils.descriptorToJavaType(renamedClassName.toString()),
+                clazz.toString());
+      }
+      return classNamingBuilder;
+    }
+  }
+
+  // Number of classes processed by one task.
+  private static final int CLASSES_PER_TASK = 64;
+
   public static com.debughelper.tools.r8.naming.ClassNameMapper run(
-          DexApplication application, com.debughelper.tools.r8.naming.NamingLens namingLens, boolean identityMapping) {
-    IdentityHashMap<DexString, List<DexProgramClass>> classesOfFiles = new IdentityHashMap<>();
+      DexApplication application,
+      com.debughelper.tools.r8.naming.NamingLens namingLens,
+      boolean identityMapping,
+      ExecutorService executorService)
+      throws ExecutionException {
+    // Classes are processed in parallel, each into its own ClassNaming.Builder. The builders are
+    // then added in the order of the classes so that the mapping is deterministic.
+    List<DexProgramClass> classes = application.classes();
+    ClassNamingForNameMapper.Builder[] classNamingBuilders =
+        new ClassNamingForNameMapper.Builder[classes.size()];
+    List<Future<?>> futures = new ArrayList<>();
+    for (int start = 0; start < classes.size(); start += CLASSES_PER_TASK) {
+      int chunkStart = start;
+      int chunkEnd = Math.min(start + CLASSES_PER_TASK, classes.size());
+      futures.add(
+          executorService.submit(
+              () -> {
+                MappedPositions mappedPositions = new MappedPositions();
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                  classNamingBuilders[i] =
+                      processClass(
+                          classes.get(i),
+                          application.dexItemFactory,
+                          namingLens,
+                          identityMapping,
+                          mappedPositions);
+                }
+              }));
+    }
+    ThreadUtils.awaitFutures(futures);
     com.debughelper.tools.r8.naming.ClassNameMapper.Builder classNameMapperBuilder = ClassNameMapper.builder();
-    // Collect which files contain which classes that need to have their line numbers optimized.
-    for (DexProgramClass clazz : application.classes()) {
-
-      // TODO(tamaskenez) fix b/69356670 and remove the conditional skipping.
-      if (!clazz.getSynthesizedFrom().isEmpty()) {
-        continue;
+    for (ClassNamingForNameMapper.Builder classNamingBuilder : classNamingBuilders) {
+      if (classNamingBuilder != null) {
+        classNameMapperBuilder.addClassNamingBuilder(classNamingBuilder);
       }
+    }
+    return classNameMapperBuilder.build();
+  }
 
-      IdentityHashMap<DexString, List<DexEncodedMethod>> methodsByName =
-          groupMethodsByName(namingLens, clazz);
-
-      // At this point we don't know if we really need to add this class to the builder.
-      // It depends on whether any methods/fields are renamed or some methods contain positions.
-      // Create a supplier which creates a new, cached ClassNaming.Builder on-demand.
-      DexString renamedClassName = namingLens.lookupDescriptor(clazz.getType());
-      Supplier<com.debughelper.tools.r8.naming.ClassNaming.Builder> onDemandClassNamingBuilder =
-          Suppliers.memoize(
-              () ->
-                  classNameMapperBuilder.classNamingBuilder(
-                      DescriptorUtils.descriptorToJavaType(renamedClassName.toString()),
-                      clazz.toString()));
-
-      // If the class is renamed add it to the classNamingBuilder.
-      addClassToClassNaming(clazz, renamedClassName, onDemandClassNamingBuilder);
-
-      // First transfer renamed fields to classNamingBuilder.
-      addFieldsToClassNaming(namingLens, clazz, onDemandClassNamingBuilder);
-
-      // Then process the methods.
-      for (List<DexEncodedMethod> methods : methodsByName.values()) {
-        if (methods.size() > 1) {
-          // If there are multiple methods with the same name (overloaded) then sort them for
-          // deterministic behaviour: the algorithm will assign new line numbers in this order.
-          // Methods with different names can share the same line numbers, that's why they don't
-          // need to be sorted.
-          sortMethods(methods);
-        }
+  // Returns the ClassNaming.Builder of the class, or null if the class needs no mapping.
+  private static ClassNamingForNameMapper.Builder processClass(
+      DexProgramClass clazz,
+      DexItemFactory dexItemFactory,
+      com.debughelper.tools.r8.naming.NamingLens namingLens,
+      boolean identityMapping,
+      MappedPositions mappedPositions) {
+    // TODO(tamaskenez) fix b/69356670 and remove the conditional skipping.
+    if (!clazz.getSynthesizedFrom().isEmpty()) {
+      return null;
+    }
 
-        PositionRemapper positionRemapper =
-            identityMapping ? new IdentityPositionRemapper() : new OptimizingPositionRemapper();
-
-        for (DexEncodedMethod method : methods) {
-          List<MappedPosition> mappedPositions = new ArrayList<>();
-
-          if (doesContainPositions(method)) {
-            // Do the actual processing for each method.
-            DexCode dexCode = method.getCode().asDexCode();
-            DexDebugInfo debugInfo = dexCode.getDebugInfo();
-            List<DexDebugEvent> processedEvents = new ArrayList<>();
-
-            // Our pipeline will be:
-            // [debugInfo.events] -> eventFilter -> positionRemapper -> positionEventEmitter ->
-            // [processedEvents]
-            PositionEventEmitter positionEventEmitter =
-                new PositionEventEmitter(
-                    application.dexItemFactory, method.method, processedEvents);
-
-            EventFilter eventFilter =
-                new EventFilter(
-                    debugInfo.startLine,
-                    method.method,
-                    processedEvents::add,
-                    positionState -> {
-                      int currentLine = positionState.getCurrentLine();
-                      assert currentLine >= 0;
-                      com.debughelper.tools.r8.ir.code.Position position = positionRemapper.createRemappedPosition(positionState);
-                      mappedPositions.add(
-                          new MappedPosition(
-                              positionState.getCurrentMethod(),
-                              currentLine,
-                              positionState.getCurrentCallerPosition(),
-                              position.line));
-                      positionEventEmitter.emitPositionEvents(
-                          positionState.getCurrentPc(), position);
-                    });
-            for (DexDebugEvent event : debugInfo.events) {
-              event.accept(eventFilter);
-            }
+    IdentityHashMap<DexString, List<DexEncodedMethod>> methodsByName =
+        groupMethodsByName(namingLens, clazz);
+
+    // At this point we don't know if we really need to add this class to the builder.
+    // It depends on whether any methods/fields are renamed or some methods contain positions.
+    // Create a supplier which creates a new, cached ClassNaming.Builder on-demand.
+    DexString renamedClassName = namingLens.lookupDescriptor(clazz.getType());
+    OnDemandClassNamingBuilder onDemandClassNamingBuilder =
+        new OnDemandClassNamingBuilder(clazz, renamedClassName);
+
+    // If the class is renamed add it to the classNamingBuilder.
+    addClassToClassNaming(clazz, renamedClassName, onDemandClassNamingBuilder);
+
+    // First transfer renamed fields to classNamingBuilder.
+    addFieldsToClassNaming(namingLens, clazz, onDemandClassNamingBuilder);
+
+    // Then process the methods.
+    for (List<DexEncodedMethod> methods : methodsByName.values()) {
+      if (methods.size() > 1) {
+        // If there are multiple methods with the same name (overloaded) then sort them for
+        // deterministic behaviour: the algorithm will assign new line numbers in this order.
+        // Methods with different names can share the same line numbers, that's why they don't
+        // need to be sorted.
+        sortMethods(methods);
+      }
 
-            DexDebugInfo optimizedDebugInfo =
-                new DexDebugInfo(
-                    positionEventEmitter.getStartLine(),
-                    debugInfo.parameters,
-                    processedEvents.toArray(new DexDebugEvent[processedEvents.size()]));
-
-            // TODO(tamaskenez) Remove this as soon as we have external tests testing not only the
-            // remapping but whether the non-positional debug events remain intact.
-            if (identityMapping) {
-              assert optimizedDebugInfo.startLine == debugInfo.startLine;
-              assert optimizedDebugInfo.events.length == debugInfo.events.length;
-              for (int i = 0; i < debugInfo.events.length; ++i) {
-                assert optimizedDebugInfo.events[i].equals(debugInfo.events[i]);
-              }
-            }
-            dexCode.setDebugInfo(optimizedDebugInfo);
+      OptimizingPositionRemapper positionRemapper = new OptimizingPositionRemapper();
+
+      for (DexEncodedMethod method : methods) {
+        mappedPositions.clear();
+
+        if (doesContainPositions(method) && identityMapping) {
+          // The positions are not changed, so the debug info is kept as is and the positions are
+          // only collected for the mapping.
+          DexDebugInfo debugInfo = method.getCode().asDexCode().getDebugInfo();
+          EventFilter eventFilter =
+              new EventFilter(
+                  debugInfo.startLine,
+                  method.method,
+                  event -> {},
+                  positionState -> {
+                    int currentLine = positionState.getCurrentLine();
+                    assert currentLine >= 0;
+                    mappedPositions.add(
+                        positionState.getCurrentMethod(),
+                        currentLine,
+                        positionState.getCurrentCallerPosition(),
+                        currentLine);
+                  });
+          for (DexDebugEvent event : debugInfo.events) {
+            event.accept(eventFilter);
+          }
+        } else if (doesContainPositions(method)) {
+          // Do the actual processing for each method.
+          DexCode dexCode = method.getCode().asDexCode();
+          DexDebugInfo debugInfo = dexCode.getDebugInfo();
+          List<DexDebugEvent> processedEvents = new ArrayList<>();
+
+          // Our pipeline will be:
+          // [debugInfo.events] -> eventFilter -> positionRemapper -> positionEventEmitter ->
+          // [processedEvents]
+          PositionEventEmitter positionEventEmitter =
+              new PositionEventEmitter(dexItemFactory, method.method, processedEvents);
+
+          EventFilter eventFilter =
+              new EventFilter(
+                  debugInfo.startLine,
+                  method.method,
+                  processedEvents::add,
+                  positionState -> {
+                    int currentLine = positionState.getCurrentLine();
+                    assert currentLine >= 0;
+                    com.debughelper.tools.r8.ir.code.Position position = positionRemapper.createRemappedPosition(positionState);
+                    mappedPositions.add(
+                        positionState.getCurrentMethod(),
+                        currentLine,
+                        positionState.getCurrentCallerPosition(),
+                        position.line);
+                    positionEventEmitter.emitPositionEvents(
+                        positionState.getCurrentPc(), position);
+                  });
+          for (DexDebugEvent event : debugInfo.events) {
+            event.accept(eventFilter);
           }
 
-          com.debughelper.tools.r8.naming.MemberNaming.MethodSignature originalSignature = com.debughelper.tools.r8.naming.MemberNaming.MethodSignature.fromDexMethod(method.method);
+          DexDebugInfo optimizedDebugInfo =
+              new DexDebugInfo(
+                  positionEventEmitter.getStartLine(),
+                  debugInfo.parameters,
+                  processedEvents.toArray(new DexDebugEvent[processedEvents.size()]));
+          dexCode.setDebugInfo(optimizedDebugInfo);
+        }
 
-          DexString obfuscatedNameDexString = namingLens.lookupName(method.method);
-          String obfuscatedName = obfuscatedNameDexString.toString();
+        com.debughelper.tools.r8.naming.MemberNaming.MethodSignature originalSignature = com.debughelper.tools.r8.naming.MemberNaming.MethodSignature.fromDexMethod(method.method);
 
-          // Add simple "a() -> b" mapping if we won't have any other with concrete line numbers
-          if (mappedPositions.isEmpty()) {
-            // But only if it's been renamed.
-            if (obfuscatedNameDexString != method.method.name) {
-              onDemandClassNamingBuilder
-                  .get()
-                  .addMappedRange(null, originalSignature, null, obfuscatedName);
-            }
-            continue;
+        DexString obfuscatedNameDexString = namingLens.lookupName(method.method);
+        String obfuscatedName = obfuscatedNameDexString.toString();
+
+        // Add simple "a() -> b" mapping if we won't have any other with concrete line numbers
+        if (mappedPositions.isEmpty()) {
+          // But only if it's been renamed.
+          if (obfuscatedNameDexString != method.method.name) {
+            onDemandClassNamingBuilder
+                .get()
+                .addMappedRange(null, originalSignature, null, obfuscatedName);
           }
+          continue;
+        }
 
-          Map<DexMethod, com.debughelper.tools.r8.naming.MemberNaming.MethodSignature> signatures = new IdentityHashMap<>();
-          signatures.put(method.method, originalSignature);
-
-          com.debughelper.tools.r8.naming.MemberNaming memberNaming = new com.debughelper.tools.r8.naming.MemberNaming(originalSignature, obfuscatedName);
-          onDemandClassNamingBuilder.get().addMemberEntry(memberNaming);
-
-          // Update memberNaming with the collected positions, merging multiple positions into a
-          // single region whenever possible.
-          for (int i = 0; i < mappedPositions.size(); /* updated in body */ ) {
-            MappedPosition firstPosition = mappedPositions.get(i);
-            int j = i + 1;
-            MappedPosition lastPosition = firstPosition;
-            for (; j < mappedPositions.size(); j++) {
-              // Break if this position cannot be merged with lastPosition.
-              MappedPosition mp = mappedPositions.get(j);
-              // Note that mp.caller and lastPosition.class must be deep-compared since multiple
-              // inlining passes lose the canonical property of the positions.
-              if ((mp.method != lastPosition.method)
-                  || (mp.originalLine - lastPosition.originalLine
-                      != mp.obfuscatedLine - lastPosition.obfuscatedLine)
-                  || !Objects.equals(mp.caller, lastPosition.caller)) {
-                break;
-              }
-              lastPosition = mp;
+        Map<DexMethod, com.debughelper.tools.r8.naming.MemberNaming.MethodSignature> signatures = new IdentityHashMap<>();
+        signatures.put(method.method, originalSignature);
+
+        com.debughelper.tools.r8.naming.MemberNaming memberNaming = new com.debughelper.tools.r8.naming.MemberNaming(originalSignature, obfuscatedName);
+        onDemandClassNamingBuilder.get().addMemberEntry(memberNaming);
+
+        // Update memberNaming with the collected positions, merging multiple positions into a
+        // single region whenever possible.
+        for (int i = 0; i < mappedPositions.size(); /* updated in body */ ) {
+          int first = i;
+          int j = i + 1;
+          int last = first;
+          for (; j < mappedPositions.size(); j++) {
+            // Break if this position cannot be merged with the last position.
+            // Note that the callers must be deep-compared since multiple inlining passes lose
+            // the canonical property of the positions.
+            if ((mappedPositions.method(j) != mappedPositions.method(last))
+                || (mappedPositions.originalLine(j) - mappedPositions.originalLine(last)
+                    != mappedPositions.obfuscatedLine(j) - mappedPositions.obfuscatedLine(last))
+                || !Objects.equals(mappedPositions.caller(j), mappedPositions.caller(last))) {
+              break;
             }
-            com.debughelper.tools.r8.naming.Range obfuscatedRange =
-                new com.debughelper.tools.r8.naming.Range(firstPosition.obfuscatedLine, lastPosition.obfuscatedLine);
-            com.debughelper.tools.r8.naming.Range originalRange = new Range(firstPosition.originalLine, lastPosition.originalLine);
-
-            com.debughelper.tools.r8.naming.ClassNaming.Builder classNamingBuilder = onDemandClassNamingBuilder.get();
+            last = j;
+          }
+          com.debughelper.tools.r8.naming.Range obfuscatedRange =
+              new com.debughelper.tools.r8.naming.Range(
+                  mappedPositions.obfuscatedLine(first), mappedPositions.obfuscatedLine(last));
+          com.debughelper.tools.r8.naming.Range originalRange =
+              new Range(mappedPositions.originalLine(first), mappedPositions.originalLine(last));
+
+          DexMethod firstMethod = mappedPositions.method(first);
+          com.debughelper.tools.r8.naming.ClassNaming.Builder classNamingBuilder = onDemandClassNamingBuilder.get();
+          classNamingBuilder.addMappedRange(
+              obfuscatedRange,
+              signatures.computeIfAbsent(
+                  firstMethod,
+                  m ->
+                      com.debughelper.tools.r8.naming.MemberNaming.MethodSignature.fromDexMethod(
+                          m, firstMethod.holder != clazz.getType())),
+              originalRange,
+              obfuscatedName);
+          com.debughelper.tools.r8.ir.code.Position caller = mappedPositions.caller(first);
+          while (caller != null) {
+            Position finalCaller = caller;
             classNamingBuilder.addMappedRange(
                 obfuscatedRange,
                 signatures.computeIfAbsent(
-                    firstPosition.method,
+                    caller.method,
                     m ->
                         com.debughelper.tools.r8.naming.MemberNaming.MethodSignature.fromDexMethod(
-                            m, firstPosition.method.holder != clazz.getType())),
-                originalRange,
+                            m, finalCaller.method.holder != clazz.getType())),
+                Math.max(caller.line, 0), // Prevent against "no-position".
                 obfuscatedName);
-            com.debughelper.tools.r8.ir.code.Position caller = firstPosition.caller;
-            while (caller != null) {
-              Position finalCaller = caller;
-              classNamingBuilder.addMappedRange(
-                  obfuscatedRange,
-                  signatures.computeIfAbsent(
-                      caller.method,
-                      m ->
-                          com.debughelper.tools.r8.naming.MemberNaming.MethodSignature.fromDexMethod(
-                              m, finalCaller.method.holder != clazz.getType())),
-                  Math.max(caller.line, 0), // Prevent against "no-position".
-                  obfuscatedName);
-              caller = caller.callerPosition;
-            }
-            i = j;
+            caller = caller.callerPosition;
           }
-        } // for each method of the group
-      } // for each method group, grouped by name
-    } // for each class
-    return classNameMapperBuilder.build();
+          i = j;
+        }
+      } // for each method of the group
+    } // for each method group, grouped by name
+    mappedPositions.clear();
+    return onDemandClassNamingBuilder.classNamingBuilder;
   }
 
   // Sort by startline, then DexEncodedMethod.slowCompare.
@@ -0,0 +1,368 @@
+// Copyright (c) 2018, the R8 project authors. Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+package com.debughelper.tools.r8.utils;
+
+import com.debughelper.tools.r8.ProgramResource;
+import com.debughelper.tools.r8.ProgramResource.Kind;
+import com.debughelper.tools.r8.ResourceException;
+import com.debughelper.tools.r8.origin.Origin;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only zip archive backed by a memory mapping of the archive file.
+ *
+ * <p>The central directory is parsed once into a list of entries and an index sorted by name.
+ * Entry contents are not copied on the heap: stored entries are read directly from a slice of the
+ * mapping and deflated entries are inflated from it while being read, using a pool of inflaters.
+ * Mapped archives are immutable, so entries can be read concurrently from any thread.
+ *
+ * <p>Only plain zip archives are supported. {@link #open(Path)} returns null for archives it
+ * cannot handle (zip64, encryption, multi-disk, unknown compression methods, or archives larger
+ * than 2GB), in which case callers should fall back to {@link java.util.zip.ZipFile}.
+ *
+ * <p>A mapping cannot be released explicitly without risking a crash on a later read, so it lasts
+ * until the garbage collector finds it unreachable. Windows does not allow deleting or replacing a
+ * mapped file, which would keep a build from updating its input archives, so archives are never
+ * mapped on Windows.
+ */
+public final class MappedZipArchive {
+
+  private static final boolean ENABLED =
+      System.getProperty("com.debughelper.tools.r8.nomappedarchives") == null
+          && !System.getProperty("os.name", "").startsWith("Windows");
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_HEADER_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+  private static final int ENCRYPTED_FLAG = 1;
+
+  private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+  /** An entry of a mapped archive. */
+  public static final class Entry {
+    private final ByteBuffer mapping;
+    private final String name;
+    private final int method;
+    private final int compressedSize;
+    private final int size;
+    private final int localHeaderOffset;
+
+    private Entry(
+        ByteBuffer mapping,
+        String name,
+        int method,
+        int compressedSize,
+        int size,
+        int localHeaderOffset) {
+      this.mapping = mapping;
+      this.name = name;
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+
+    /** Uncompressed size of the entry. */
+    public int getSize() {
+      return size;
+    }
+
+    /** Slice of the mapping holding the (possibly compressed) data of the entry. */
+    private ByteBuffer data() throws ZipException {
+      ByteBuffer buffer = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      if (localHeaderOffset + LOCAL_HEADER_SIZE > buffer.limit()
+          || buffer.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid local header for " + name);
+      }
+      int start =
+          localHeaderOffset
+              + LOCAL_HEADER_SIZE
+              + Short.toUnsignedInt(buffer.getShort(localHeaderOffset + 26))
+              + Short.toUnsignedInt(buffer.getShort(localHeaderOffset + 28));
+      if (start + compressedSize > buffer.limit()) {
+        throw new ZipException("Truncated data for " + name);
+      }
+      buffer.position(start);
+      buffer.limit(start + compressedSize);
+      return buffer.slice();
+    }
+
+    /** Returns a stream of the uncompressed content of the entry. */
+    public InputStream getInputStream() throws ZipException {
+      ByteBuffer data = data();
+      if (method == STORED) {
+        return new ByteBufferInputStream(data);
+      }
+      Inflater inflater = inflaters.poll();
+      if (inflater == null) {
+        inflater = new Inflater(true);
+      }
+      return new PooledInflaterInputStream(new ByteBufferInputStream(data), inflater);
+    }
+
+    /** Reads the uncompressed content of the entry. */
+    public byte[] getBytes() throws IOException {
+      byte[] bytes = new byte[size];
+      try (InputStream stream = getInputStream()) {
+        int offset = 0;
+        while (offset < size) {
+          int read = stream.read(bytes, offset, size - offset);
+          if (read < 0) {
+            throw new ZipException("Unexpected end of data for " + name);
+          }
+          offset += read;
+        }
+      }
+      return bytes;
+    }
+
+    /**
+     * Returns a program resource that reads the entry when its content is requested, so the
+     * content is only on the heap while it is being consumed.
+     */
+    public ProgramResource asProgramResource(
+        Origin origin, Kind kind, Set<String> classDescriptors) {
+      return new ProgramResource() {
+        @Override
+        public Origin getOrigin() {
+          return origin;
+        }
+
+        @Override
+        public Kind getKind() {
+          return kind;
+        }
+
+        @Override
+        public InputStream getByteStream() throws ResourceException {
+          try {
+            return getInputStream();
+          } catch (ZipException e) {
+            throw new ResourceException(origin, e);
+          }
+        }
+
+        @Override
+        public Set<String> getClassDescriptors() {
+          return classDescriptors;
+        }
+      };
+    }
+  }
+
+  private final List<Entry> entries;
+  private final Entry[] sortedEntries;
+
+  private MappedZipArchive(List<Entry> entries) {
+    this.entries = Collections.unmodifiableList(entries);
+    this.sortedEntries = entries.toArray(new Entry[entries.size()]);
+    Arrays.sort(this.sortedEntries, (a, b) -> a.name.compareTo(b.name));
+  }
+
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+  /**
+   * Maps the archive and reads its central directory.
+   *
+   * @return the mapped archive, or null if the archive uses features that are not supported.
+   * @throws ZipException if the archive is not a valid zip archive.
+   */
+  public static MappedZipArchive open(Path archive) throws IOException {
+    MappedByteBuffer mapping;
+    try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+      // The mapping stays valid after the channel is closed, until it is garbage collected.
+      mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    ByteBuffer buffer = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    int end = findEndHeader(buffer);
+    if (end < 0) {
+      throw new ZipException("Missing end of central directory in " + archive);
+    }
+    int disk = Short.toUnsignedInt(buffer.getShort(end + 4));
+    int entryCount = Short.toUnsignedInt(buffer.getShort(end + 10));
+    long directorySize = Integer.toUnsignedLong(buffer.getInt(end + 12));
+    long directoryOffset = Integer.toUnsignedLong(buffer.getInt(end + 16));
+    if (disk != 0 || entryCount == 0xffff || directoryOffset == 0xffffffffL) {
+      // Multi-disk or zip64 archive.
+      return null;
+    }
+    if (directoryOffset + directorySize > end) {
+      throw new ZipException("Invalid central directory in " + archive);
+    }
+    List<Entry> entries = new ArrayList<>(entryCount);
+    int position = (int) directoryOffset;
+    for (int i = 0; i < entryCount; i++) {
+      if (position + CENTRAL_HEADER_SIZE > end
+          || buffer.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid central directory entry in " + archive);
+      }
+      int flags = Short.toUnsignedInt(buffer.getShort(position + 8));
+      int method = Short.toUnsignedInt(buffer.getShort(position + 10));
+      long compressedSize = Integer.toUnsignedLong(buffer.getInt(position + 20));
+      long size = Integer.toUnsignedLong(buffer.getInt(position + 24));
+      int nameLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+      int extraLength = Short.toUnsignedInt(buffer.getShort(position + 30));
+      int commentLength = Short.toUnsignedInt(buffer.getShort(position + 32));
+      long localHeaderOffset = Integer.toUnsignedLong(buffer.getInt(position + 42));
+      if ((flags & ENCRYPTED_FLAG) != 0
+          || (method != STORED && method != DEFLATED)
+          || compressedSize > Integer.MAX_VALUE
+          || size > Integer.MAX_VALUE
+          || localHeaderOffset > Integer.MAX_VALUE) {
+        return null;
+      }
+      byte[] nameBytes = new byte[nameLength];
+      buffer.position(position + CENTRAL_HEADER_SIZE);
+      buffer.get(nameBytes);
+      String name = new String(nameBytes, StandardCharsets.UTF_8);
+      entries.add(
+          new Entry(
+              mapping, name, method, (int) compressedSize, (int) size, (int) localHeaderOffset));
+      position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return new MappedZipArchive(entries);
+  }
+
+  private static int findEndHeader(ByteBuffer buffer) {
+    int last = buffer.limit() - END_HEADER_SIZE;
+    int first = Math.max(0, last - MAX_COMMENT_SIZE);
+    for (int i = last; i >= first; i--) {
+      if (buffer.getInt(i) == END_HEADER_SIGNATURE) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Entries in central directory order. */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /** Returns the entry with the given name or null if there is no such entry. */
+  public Entry getEntry(String name) {
+    int low = 0;
+    int high = sortedEntries.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int compare = sortedEntries[mid].name.compareTo(name);
+      if (compare < 0) {
+        low = mid + 1;
+      } else if (compare > 0) {
+        high = mid - 1;
+      } else {
+        return sortedEntries[mid];
+      }
+    }
+    return null;
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  private static class PooledInflaterInputStream extends InflaterInputStream {
+    private boolean closed = false;
+    // Raw deflate data may need a trailing dummy byte for the inflater to finish, see ZipFile.
+    private boolean eofSent = false;
+
+    PooledInflaterInputStream(InputStream in, Inflater inflater) {
+      super(in, inflater, 8192);
+    }
+
+    @Override
+    protected void fill() throws IOException {
+      if (eofSent) {
+        throw new ZipException("Unexpected end of deflated data");
+      }
+      len = in.read(buf, 0, buf.length);
+      if (len == -1) {
+        buf[0] = 0;
+        len = 1;
+        eofSent = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        super.close();
+        inf.reset();
+        inflaters.add(inf);
+      }
+    }
+  }
+}
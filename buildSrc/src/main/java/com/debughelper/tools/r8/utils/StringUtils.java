@@ -60,6 +60,11 @@ public class StringUtils {
     return builder.toString();
   }
 
+  /** Returns the value as a quoted field of a CSV record, as described in RFC 4180. */
+  public static String csvField(String value) {
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+
   public static void appendNonEmpty(StringBuilder builder, String pre, Object item, String post) {
     if (item == null) {
       return;
@@ -34,7 +34,16 @@ public final class BinaryResourceFile implements SerializableResource {
   private final List<Chunk> chunks = new ArrayList<>();
 
   public BinaryResourceFile(byte[] buf) {
-    ByteBuffer buffer = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    this(ByteBuffer.wrap(buf));
+  }
+
+  /**
+   * Reads the top-level chunks from the remaining bytes of {@code buf}, which may be a read-only
+   * mapping of a file. The chunks keep referring to the buffer to read their contents on first
+   * access, so it must not be changed while this file is in use.
+   */
+  public BinaryResourceFile(ByteBuffer buf) {
+    ByteBuffer buffer = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
     while (buffer.remaining() > 0) {
       chunks.add(Chunk.newInstance(buffer));
     }
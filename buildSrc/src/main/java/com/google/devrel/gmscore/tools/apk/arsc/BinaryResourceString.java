@@ -76,7 +76,34 @@ public final class BinaryResourceString {
     } else {
       length = characterCount * 2;
     }
-    return new String(buffer.array(), offset, length, type.charset());
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + offset, length, type.charset());
+    }
+    // Buffers without an accessible array, such as read-only file mappings, are copied from.
+    byte[] bytes = new byte[length];
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.get(bytes);
+    return new String(bytes, type.charset());
+  }
+
+  /**
+   * Returns the number of bytes taken by the string at {@code offset} in {@code buffer}, including
+   * its lengths and NULL terminator.
+   *
+   * @param buffer The buffer containing the encoded string.
+   * @param offset Offset into the buffer where the string resides.
+   * @param type The encoding type that the {@link BinaryResourceString} is encoded in.
+   * @return The size of the encoded string.
+   */
+  public static int encodedSize(ByteBuffer buffer, int offset, Type type) {
+    int characterCount = decodeLength(buffer, offset, type);
+    int size = computeLengthOffset(characterCount, type);
+    if (type == Type.UTF8) {
+      int length = decodeLength(buffer, offset + size, type);
+      return size + computeLengthOffset(length, type) + length + 1;
+    }
+    return size + characterCount * 2 + 2;
   }
 
   /**
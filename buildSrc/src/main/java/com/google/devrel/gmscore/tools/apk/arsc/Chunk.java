@@ -186,6 +186,15 @@ public abstract class Chunk implements SerializableResource {
   protected void writePayload(DataOutput output, ByteBuffer header, boolean shrink)
       throws IOException {}
 
+  /**
+   * Returns the bytes this chunk was read from if it is known to be unmodified, or null if it has
+   * to be written from its contents.
+   */
+  @Nullable
+  protected byte[] getOriginalBytes() {
+    return null;
+  }
+
   /**
    * Pads {@code output} until {@code currentLength} is on a 4-byte boundary.
    *
@@ -213,6 +222,12 @@ public abstract class Chunk implements SerializableResource {
    */
   @Override
   public final byte[] toByteArray(boolean shrink) throws IOException {
+    if (!shrink) {
+      byte[] original = getOriginalBytes();
+      if (original != null) {
+        return original;
+      }
+    }
     ByteBuffer header = ByteBuffer.allocate(getHeaderSize()).order(ByteOrder.LITTLE_ENDIAN);
     writeHeader(header, 0);  // The chunk size isn't known yet. This will be filled in later.
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
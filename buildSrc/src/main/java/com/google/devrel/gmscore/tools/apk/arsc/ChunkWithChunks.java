@@ -19,15 +19,28 @@ package com.google.devrel.gmscore.tools.apk.arsc;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
-/** Represents a chunk whose payload is a list of sub-chunks. */
+/**
+ * Represents a chunk whose payload is a list of sub-chunks.
+ *
+ * <p>Sub-chunks are read from the buffer on first access. A chunk whose sub-chunks have never been
+ * accessed cannot have been modified, so it is written by copying its original bytes, and the
+ * buffer is only decoded as deep as the chunks that are actually used.
+ */
 public abstract class ChunkWithChunks extends Chunk {
 
-  private final Map<Integer, Chunk> chunks = new LinkedHashMap<>();
+  /** The sub-chunks, or null if they have not been read yet. */
+  @Nullable
+  private Map<Integer, Chunk> chunks = null;
+
+  /** The buffer this chunk was read from, kept until the sub-chunks are read. */
+  @Nullable
+  private ByteBuffer buffer;
 
   protected ChunkWithChunks(ByteBuffer buffer, @Nullable Chunk parent) {
     super(buffer, parent);
@@ -36,31 +49,55 @@ public abstract class ChunkWithChunks extends Chunk {
   @Override
   protected void init(ByteBuffer buffer) {
     super.init(buffer);
-    chunks.clear();
-    int start = this.offset + getHeaderSize();
-    int offset = start;
-    int end = this.offset + getOriginalChunkSize();
-    int position = buffer.position();
-    buffer.position(start);
-
-    while (offset < end) {
-      Chunk chunk = Chunk.newInstance(buffer, this);
-      chunks.put(offset, chunk);
-      offset += chunk.getOriginalChunkSize();
-    }
-
-    buffer.position(position);
+    this.buffer = buffer;
+    chunks = null;
   }
 
+  /**
+   * Called once the sub-chunks have been read, before they are returned from {@link #getChunks()}.
+   * Subclasses index the sub-chunks here.
+   */
+  protected void onChunksRead() {}
+
   /**
    * Retrieves the @{code chunks} contained in this chunk.
    *
    * @return map of buffer offset -> chunk contained in this chunk.
    */
   public final Map<Integer, Chunk> getChunks() {
+    if (chunks == null) {
+      chunks = new LinkedHashMap<>();
+      // Read from a copy of the buffer, as the chunks of other containers may be read from it too.
+      ByteBuffer buffer = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      int start = this.offset + getHeaderSize();
+      int offset = start;
+      int end = this.offset + getOriginalChunkSize();
+      buffer.position(start);
+
+      while (offset < end) {
+        Chunk chunk = Chunk.newInstance(buffer, this);
+        chunks.put(offset, chunk);
+        offset += chunk.getOriginalChunkSize();
+      }
+      this.buffer = null;
+      onChunksRead();
+    }
     return chunks;
   }
 
+  @Nullable
+  @Override
+  protected byte[] getOriginalBytes() {
+    if (chunks != null) {
+      return null;
+    }
+    byte[] result = new byte[getOriginalChunkSize()];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset);
+    source.get(result);
+    return result;
+  }
+
   @Override
   protected void writePayload(DataOutput output, ByteBuffer header, boolean shrink)
       throws IOException {
@@ -79,8 +79,7 @@ public final class PackageChunk extends ChunkWithChunks {
   }
 
   @Override
-  protected void init(ByteBuffer buffer) {
-    super.init(buffer);
+  protected void onChunksRead() {
     for (Chunk chunk : getChunks().values()) {
       if (chunk instanceof TypeChunk) {
         TypeChunk typeChunk = (TypeChunk) chunk;
@@ -127,6 +126,7 @@ public final class PackageChunk extends ChunkWithChunks {
 
   /** Returns all {@link TypeChunk} in this package. */
   public Collection<TypeChunk> getTypeChunks() {
+    getChunks();
     return types.values();
   }
 
@@ -138,6 +138,7 @@ public final class PackageChunk extends ChunkWithChunks {
    * @return The matching {@link TypeChunk} objects, or an empty collection if there are none.
    */
   public Collection<TypeChunk> getTypeChunks(int id) {
+    getChunks();
     return types.get(id);
   }
 
@@ -155,11 +156,13 @@ public final class PackageChunk extends ChunkWithChunks {
 
   /** Returns all {@link TypeSpecChunk} in this package. */
   public Collection<TypeSpecChunk> getTypeSpecChunks() {
+    getChunks();
     return typeSpecs.values();
   }
 
   /** For a given (1-based) type id, returns the {@link TypeSpecChunk} matching it. */
   public TypeSpecChunk getTypeSpecChunk(int id) {
+    getChunks();
     return Preconditions.checkNotNull(typeSpecs.get(id));
   }
 
@@ -34,18 +34,22 @@ public final class PackageUtils {
    * @return The package name.
    */
   public static String readPackageName(ByteBuffer buffer, int offset) {
-    byte[] data = buffer.array();
     int length = 0;
     // Look for the null terminator for the string instead of using the entire buffer.
     // It's UTF-16 so check 2 bytes at a time to see if its double 0.
-    for (int i = offset; i < data.length && i < PACKAGE_NAME_SIZE + offset; i += 2) {
-      if (data[i] == 0 && data[i + 1] == 0) {
+    for (int i = offset; i < buffer.limit() && i < PACKAGE_NAME_SIZE + offset; i += 2) {
+      if (buffer.get(i) == 0 && buffer.get(i + 1) == 0) {
         length = i - offset;
         break;
       }
     }
+    // Read through a duplicate, as the buffer may not have an accessible array.
+    byte[] data = new byte[length];
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.get(data);
     Charset utf16 = Charset.forName("UTF-16LE");
-    String str = new String(data, offset, length, utf16);
+    String str = new String(data, utf16);
     buffer.position(offset + PACKAGE_NAME_SIZE);
     return str;
   }
@@ -50,9 +50,7 @@ public final class ResourceTableChunk extends ChunkWithChunks {
   }
 
   @Override
-  protected void init(ByteBuffer buffer) {
-    super.init(buffer);
-    packages.clear();
+  protected void onChunksRead() {
     for (Chunk chunk : getChunks().values()) {
       if (chunk instanceof PackageChunk) {
         PackageChunk packageChunk = (PackageChunk) chunk;
@@ -66,17 +64,20 @@ public final class ResourceTableChunk extends ChunkWithChunks {
 
   /** Returns the string pool containing all string resource values in the resource table. */
   public StringPoolChunk getStringPool() {
+    getChunks();
     return stringPool;
   }
 
   /** Returns the package with the given {@code packageName}. Else, returns null. */
   @Nullable
   public PackageChunk getPackage(String packageName) {
+    getChunks();
     return packages.get(packageName);
   }
 
   /** Returns the packages contained in this resource table. */
   public Collection<PackageChunk> getPackages() {
+    getChunks();
     return Collections.unmodifiableCollection(packages.values());
   }
 
@@ -88,6 +89,6 @@ public final class ResourceTableChunk extends ChunkWithChunks {
   @Override
   protected void writeHeader(ByteBuffer output) {
     super.writeHeader(output);
-    output.putInt(packages.size());
+    output.putInt(getPackages().size());
   }
 }
@@ -27,7 +27,14 @@ import java.nio.ByteOrder;
 import java.util.*;
 import javax.annotation.Nullable;
 
-/** Represents a string pool structure. */
+/**
+ * Represents a string pool structure.
+ *
+ * <p>Strings added with {@link #addString} are appended to the pool. Unless the pool is shrunk,
+ * it is written by copying the strings and styles it was read with, at their original offsets,
+ * followed by the added strings, so writing a large pool with a few additions does not re-encode
+ * all of its strings.
+ */
 public final class StringPoolChunk extends Chunk {
 
   // These are the defined flags for the "flags" field of ResourceStringPoolHeader
@@ -86,6 +93,24 @@ public final class StringPoolChunk extends Chunk {
    */
   private boolean isOriginalDeduped = false;
 
+  /** Offsets of the original strings, relative to the start of {@code originalStringData}. */
+  private int[] originalStringOffsets = new int[0];
+
+  /** The encoded original strings, without the padding that follows them. */
+  private ByteBuffer originalStringData = ByteBuffer.allocate(0);
+
+  /** Offsets of the original styles, relative to the start of {@code originalStyleData}. */
+  private int[] originalStyleOffsets = new int[0];
+
+  /** The encoded original styles, including their terminating sentinels and padding. */
+  private ByteBuffer originalStyleData = ByteBuffer.allocate(0);
+
+  /**
+   * Index of the first occurrence of each string in {@code strings}. This is built on the first
+   * call to {@link #indexOf} and kept up to date by {@link #addString}.
+   */
+  @Nullable private Map<String, Integer> stringIndex = null;
+
   protected StringPoolChunk(ByteBuffer buffer, @Nullable Chunk parent) {
     super(buffer, parent);
     stringCount = buffer.getInt();
@@ -104,13 +129,36 @@ public final class StringPoolChunk extends Chunk {
 
   /**
    * Returns the 0-based index of the first occurrence of the given string, or -1 if the string is
-   * not in the pool. This runs in O(n) time.
+   * not in the pool. The first call builds an index of the pool in O(n) time, after which this runs
+   * in O(1) time.
    *
    * @param string The string to check the pool for.
    * @return Index of the string, or -1 if not found.
    */
   public int indexOf(String string) {
-    return strings.indexOf(string);
+    if (stringIndex == null) {
+      stringIndex = new HashMap<>(strings.size() * 2);
+      for (int i = 0; i < strings.size(); ++i) {
+        stringIndex.putIfAbsent(strings.get(i), i);
+      }
+    }
+    Integer index = stringIndex.get(string);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * Appends a string to the end of this pool.
+   *
+   * @param string The string to add.
+   * @return The (0-based) index of the added string.
+   */
+  public int addString(String string) {
+    strings.add(string);
+    int index = strings.size() - 1;
+    if (stringIndex != null) {
+      stringIndex.putIfAbsent(string, index);
+    }
+    return index;
   }
 
   /**
@@ -187,29 +235,47 @@ public final class StringPoolChunk extends Chunk {
   private List<String> readStrings(ByteBuffer buffer, int offset, int count) {
     List<String> result = new ArrayList<>();
     int previousOffset = -1;
+    int dataSize = 0;
+    originalStringOffsets = new int[count];
     // After the header, we now have an array of offsets for the strings in this pool.
     for (int i = 0; i < count; ++i) {
-      int stringOffset = offset + buffer.getInt();
+      originalStringOffsets[i] = buffer.getInt();
+      int stringOffset = offset + originalStringOffsets[i];
       result.add(BinaryResourceString.decodeString(buffer, stringOffset, getStringType()));
       if (stringOffset <= previousOffset) {
         isOriginalDeduped = true;
       }
       previousOffset = stringOffset;
+      dataSize = Math.max(dataSize, originalStringOffsets[i]
+          + BinaryResourceString.encodedSize(buffer, stringOffset, getStringType()));
     }
+    originalStringData = slice(buffer, offset, dataSize);
     return result;
   }
 
   private List<StringPoolStyle> readStyles(ByteBuffer buffer, int offset, int count) {
     List<StringPoolStyle> result = new ArrayList<>();
+    originalStyleOffsets = new int[count];
     // After the array of offsets for the strings in the pool, we have an offset for the styles
     // in this pool.
     for (int i = 0; i < count; ++i) {
-      int styleOffset = offset + buffer.getInt();
+      originalStyleOffsets[i] = buffer.getInt();
+      int styleOffset = offset + originalStyleOffsets[i];
       result.add(StringPoolStyle.create(buffer, styleOffset, this));
     }
+    if (count > 0) {
+      originalStyleData = slice(buffer, offset, this.offset + getOriginalChunkSize() - offset);
+    }
     return result;
   }
 
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset);
+    slice.limit(offset + size);
+    return slice.slice();
+  }
+
   private int writeStrings(DataOutput payload, ByteBuffer offsets, boolean shrink)
           throws IOException {
     int stringOffset = 0;
@@ -267,7 +333,8 @@ public final class StringPoolChunk extends Chunk {
     int stringsStart = getHeaderSize() + getOffsetSize();
     output.putInt(strings.size());
     output.putInt(styles.size());
-    output.putInt(flags);
+    // Appended strings are not sorted into the pool.
+    output.putInt(strings.size() > stringCount ? flags & ~SORTED_FLAG : flags);
     output.putInt(strings.isEmpty() ? 0 : stringsStart);
     output.putInt(0);  // Placeholder. The styles starting offset cannot be computed at this point.
   }
@@ -275,6 +342,10 @@ public final class StringPoolChunk extends Chunk {
   @Override
   protected void writePayload(DataOutput output, ByteBuffer header, boolean shrink)
           throws IOException {
+    if (!shrink) {
+      writeAppendedPayload(output, header);
+      return;
+    }
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     int stringOffset = 0;
     ByteBuffer offsets = ByteBuffer.allocate(getOffsetSize());
@@ -293,6 +364,51 @@ public final class StringPoolChunk extends Chunk {
     }
   }
 
+  /**
+   * Writes the original strings and styles as they were read, with the strings added since
+   * appended after the original strings. Added strings that are already in the pool are only
+   * deduped if the original pool was.
+   */
+  private void writeAppendedPayload(DataOutput output, ByteBuffer header) throws IOException {
+    ByteBuffer offsets = ByteBuffer.allocate(getOffsetSize()).order(ByteOrder.LITTLE_ENDIAN);
+    ByteArrayOutputStream appended = new ByteArrayOutputStream();
+    int[] stringOffsets = Arrays.copyOf(originalStringOffsets, strings.size());
+    int stringOffset = originalStringData.remaining();
+    for (int i = stringCount; i < strings.size(); ++i) {
+      String string = strings.get(i);
+      int first = isOriginalDeduped ? indexOf(string) : i;
+      if (first < i) {
+        stringOffsets[i] = stringOffsets[first];
+      } else {
+        byte[] encodedString = BinaryResourceString.encodeString(string, getStringType());
+        appended.write(encodedString);
+        stringOffsets[i] = stringOffset;
+        stringOffset += encodedString.length;
+      }
+    }
+    for (int i = 0; i < strings.size(); ++i) {
+      offsets.putInt(stringOffsets[i]);
+    }
+    for (int styleOffset : originalStyleOffsets) {
+      offsets.putInt(styleOffset);
+    }
+
+    output.write(offsets.array());
+    output.write(toArray(originalStringData));
+    output.write(appended.toByteArray());
+    stringOffset = writePad(output, stringOffset);
+    output.write(toArray(originalStyleData));
+    if (!styles.isEmpty()) {
+      header.putInt(STYLE_START_OFFSET, getHeaderSize() + getOffsetSize() + stringOffset);
+    }
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] result = new byte[buffer.remaining()];
+    buffer.duplicate().get(result);
+    return result;
+  }
+
   /**
    * Represents all of the styles for a particular string. The string is determined by its index
    * in {@link StringPoolChunk}.
@@ -433,9 +549,4 @@ public final class StringPoolChunk extends Chunk {
               parent.getString(nameIndex), start, stop);
     }
   }
-
-  public int addString(String string) {
-    strings.add(string);
-    return strings.size() - 1;
-  }
 }
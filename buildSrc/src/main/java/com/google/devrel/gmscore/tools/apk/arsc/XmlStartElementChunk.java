@@ -21,13 +21,19 @@ import com.google.common.base.Preconditions;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
-/** Represents the beginning of an XML node. */
+/**
+ * Represents the beginning of an XML node.
+ *
+ * <p>The attributes are read from the buffer on first access. An element whose attributes have
+ * never been accessed cannot have been modified, so it is written by copying its original bytes.
+ */
 public final class XmlStartElementChunk extends XmlNodeChunk {
 
   /** A string reference to the namespace URI, or -1 if not present. */
@@ -51,8 +57,13 @@ public final class XmlStartElementChunk extends XmlNodeChunk {
   /** The (0-based) index of the style attribute, or -1 if not present. */
   private final int styleIndex;
 
-  /** The XML attributes associated with this element.  */
-  private final List<XmlAttribute> attributes = new ArrayList<>();
+  /** The XML attributes associated with this element, or null if they have not been read yet. */
+  @Nullable
+  private List<XmlAttribute> attributes = null;
+
+  /** The buffer this chunk was read from, kept until the attributes are read. */
+  @Nullable
+  private ByteBuffer buffer;
 
   protected XmlStartElementChunk(ByteBuffer buffer, @Nullable Chunk parent) {
     super(buffer, parent);
@@ -73,14 +84,23 @@ public final class XmlStartElementChunk extends XmlNodeChunk {
   @Override
   protected void init(ByteBuffer buffer) {
     super.init(buffer);
-    attributes.addAll(enumerateAttributes(buffer));
+    this.buffer = buffer;
+    attributes = null;
+  }
+
+  private List<XmlAttribute> attributes() {
+    if (attributes == null) {
+      // Read from a copy of the buffer, as other chunks may be read from it too.
+      attributes = enumerateAttributes(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+      buffer = null;
+    }
+    return attributes;
   }
 
   private List<XmlAttribute> enumerateAttributes(ByteBuffer buffer) {
     List<XmlAttribute> result = new ArrayList<>(attributeCount);
     int offset = this.offset + getHeaderSize() + attributeStart;
     int endOffset = offset + XmlAttribute.SIZE * attributeCount;
-    buffer.mark();
     buffer.position(offset);
 
     while (offset < endOffset) {
@@ -88,7 +108,6 @@ public final class XmlStartElementChunk extends XmlNodeChunk {
       offset += XmlAttribute.SIZE;
     }
 
-    buffer.reset();
     return result;
   }
 
@@ -104,7 +123,20 @@ public final class XmlStartElementChunk extends XmlNodeChunk {
 
   /** Returns an unmodifiable list of this XML element's attributes. */
   public List<XmlAttribute> getAttributes() {
-    return Collections.unmodifiableList(attributes);
+    return Collections.unmodifiableList(attributes());
+  }
+
+  @Nullable
+  @Override
+  protected byte[] getOriginalBytes() {
+    if (attributes != null) {
+      return null;
+    }
+    byte[] result = new byte[getOriginalChunkSize()];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset);
+    source.get(result);
+    return result;
   }
 
   @Override
@@ -120,11 +152,11 @@ public final class XmlStartElementChunk extends XmlNodeChunk {
     output.writeInt(name);
     output.writeShort((short) XmlAttribute.SIZE);  // attribute start
     output.writeShort((short) XmlAttribute.SIZE);
-    output.writeShort((short) attributes.size());
+    output.writeShort((short) attributes().size());
     output.writeShort((short) (idIndex + 1));
     output.writeShort((short) (classIndex + 1));
     output.writeShort((short) (styleIndex + 1));
-    for (XmlAttribute attribute : attributes) {
+    for (XmlAttribute attribute : attributes()) {
       output.write(attribute.toByteArray(shrink));
     }
   }
@@ -141,10 +173,10 @@ public final class XmlStartElementChunk extends XmlNodeChunk {
   public String toString() {
     return String.format(
         "XmlStartElementChunk{line=%d, comment=%s, namespace=%s, name=%s, attributes=%s}",
-        getLineNumber(), getComment(), getNamespace(), getName(), attributes.toString());
+        getLineNumber(), getComment(), getNamespace(), getName(), attributes().toString());
   }
 
   public void addAttribute(int pos, XmlAttribute xmlAttribute) {
-    attributes.add(pos, xmlAttribute);
+    attributes().add(pos, xmlAttribute);
   }
 }